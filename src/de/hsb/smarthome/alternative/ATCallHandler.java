@@ -5,7 +5,6 @@ import java.util.Arrays;
 
 import com.fazecast.jSerialComm.SerialPort;
 
-import de.hsb.smarthome.server.FritzBoxConnection;
 import de.hsb.smarthome.util.json.Device;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
@@ -410,22 +409,12 @@ public class ATCallHandler {
 			}
 
 			if (aid != "") {
-				String sessionId = "0000000000000000";
-				for (int i = 0; i < RemoteController.TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-					sessionId = FritzBoxConnection.getSessionId(RemoteController.REMOTE_GATEWAY,
-							RemoteController.FB_USERNAME, RemoteController.FB_PASSWORD);
-				}
-
 				if (deviceStatus == 0) {
-					FritzBoxConnection.sendDeviceCommand(RemoteController.REMOTE_GATEWAY, aid,
-							RemoteController.CMD_SWITCH_OFF, sessionId);
+					RemoteController.FB_SESSION.sendDeviceCommand(aid, RemoteController.CMD_SWITCH_OFF);
 				} else if (deviceStatus == 1) {
-					FritzBoxConnection.sendDeviceCommand(RemoteController.REMOTE_GATEWAY, aid,
-							RemoteController.CMD_SWITCH_ON, sessionId);
+					RemoteController.FB_SESSION.sendDeviceCommand(aid, RemoteController.CMD_SWITCH_ON);
 				}
 
-				FritzBoxConnection.logout(RemoteController.REMOTE_GATEWAY, sessionId);
-
 				return true;
 			} else {
 				return false;
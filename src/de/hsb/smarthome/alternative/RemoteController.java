@@ -1,19 +1,14 @@
 package de.hsb.smarthome.alternative;
 
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.xml.sax.SAXException;
-
 import com.kilo52.common.io.ConfigurationFile;
+import com.kilo52.common.io.ConfigurationFile.Section;
 import com.kilo52.common.io.ConfigurationFileHandler;
 
-import de.hsb.smarthome.server.FritzBoxConnection;
+import de.hsb.smarthome.server.FritzBoxSession;
 import de.hsb.smarthome.util.json.Device;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
@@ -48,6 +43,7 @@ public class RemoteController {
 		REMOTE_GATEWAY = remote_gateway;
 		FB_USERNAME = fb_username;
 		FB_PASSWORD = fb_password;
+		FB_SESSION = new FritzBoxSession(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
 		AT_CALL_HANDLER = new ATCallHandler(commPort, phoneNumbers, timeout, pinCode, mode);
 
 		loop();
@@ -65,9 +61,19 @@ public class RemoteController {
 			ConfigurationFileHandler confFileHandler = new ConfigurationFileHandler(confFilePath);
 			ConfigurationFile confFile = confFileHandler.read();
 
-			REMOTE_GATEWAY = confFile.getSection("general").valueOf("remoteGateway");
-			FB_USERNAME = confFile.getSection("general").valueOf("fbUserName");
-			FB_PASSWORD = confFile.getSection("general").valueOf("fbPassword");
+			// the first FRITZ!Box, [general] if there is no gateway section
+			Section general = confFile.getSection("general");
+			Section gateway = general;
+			for (Section section : confFile) {
+				if (section.getName().startsWith(GATEWAY_SECTION_PREFIX)) {
+					gateway = section;
+					break;
+				}
+			}
+			REMOTE_GATEWAY = valueOf(gateway, general, "remoteGateway");
+			FB_USERNAME = valueOf(gateway, general, "fbUserName");
+			FB_PASSWORD = valueOf(gateway, general, "fbPassword");
+			FB_SESSION = new FritzBoxSession(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
 
 			String commPort = confFile.getSection("general").valueOf("commPort");
 			String[] phoneNumbers = confFile.getSection("general").valueOf("phoneNumbers").split("([,])");
@@ -85,6 +91,11 @@ public class RemoteController {
 		loop();
 	}
 
+	private static String valueOf(Section section, Section general, String key) {
+		String value = section.valueOf(key);
+		return value != null ? value : general.valueOf(key);
+	}
+
 	private void loop() {
 		mDevices = getDevices();
 
@@ -106,16 +117,8 @@ public class RemoteController {
 		List<Device> listDevices = new ArrayList<Device>();
 
 		try {
-			String sessionId = "0000000000000000";
-			for (int i = 0; i < TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-				sessionId = FritzBoxConnection.getSessionId(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
-			}
-
-			listDevices = FritzBoxConnection.getDeviceListInfos(REMOTE_GATEWAY, sessionId);
-			FritzBoxConnection.logout(REMOTE_GATEWAY, sessionId);
-
-		} catch (KeyManagementException | NoSuchAlgorithmException | IOException | ParserConfigurationException
-				| SAXException e) {
+			listDevices = FB_SESSION.getDeviceListInfos();
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
@@ -128,9 +131,10 @@ public class RemoteController {
 	static String REMOTE_GATEWAY;
 	static String FB_USERNAME;
 	static String FB_PASSWORD;
+	static FritzBoxSession FB_SESSION;
 	static final String CMD_SWITCH_OFF = "setswitchoff";
 	static final String CMD_SWITCH_ON = "setswitchon";
-	static final int TEST_COUNT = 5;
+	private static final String GATEWAY_SECTION_PREFIX = "gateway.";
 	static List<Device> mDevices = new ArrayList<Device>();
 
 	/**
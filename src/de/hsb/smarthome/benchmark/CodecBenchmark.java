@@ -0,0 +1,186 @@
+package de.hsb.smarthome.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import de.hsb.smarthome.util.json.Control;
+import de.hsb.smarthome.util.json.Control.Memory;
+import de.hsb.smarthome.util.json.Control.Processor;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Cycle;
+import de.hsb.smarthome.util.json.Device.Type;
+import de.hsb.smarthome.util.json.Image;
+import de.hsb.smarthome.util.json.JsonCodec;
+import de.hsb.smarthome.util.json.Transmission;
+import de.hsb.smarthome.util.json.Transmission.Action;
+import de.hsb.smarthome.util.json.Weekday;
+
+/**
+ * Measures the allocated bytes and the time per message for encoding and
+ * decoding a {@link Transmission}, as sent for a REPORT of all devices. It
+ * compares a new Gson instance per call (as before the {@link JsonCodec}), a
+ * shared Gson instance with reflective adapters, the {@link JsonCodec} with
+ * its streaming adapters, and the CBOR encoding of the JsonCodec, which is
+ * sent in binary frames. For each the size of the message on the wire is
+ * shown, including the line break or the frame length. The allocations are
+ * taken from the per-thread allocation counter of the JVM.
+ * <p>
+ * Run with:
+ * <code>java de.hsb.smarthome.benchmark.CodecBenchmark [devices] [messages]</code>
+ *
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		final Transmission transmission = createTransmission(devices);
+		final String json = JsonCodec.toJson(transmission);
+		final byte[] cbor = JsonCodec.toCbor(transmission);
+		final Gson shared = new GsonBuilder().setDateFormat(Transmission.TIMESTAMP_FORMAT).create();
+		System.out.println(String.format("%d devices, %d bytes per message, %d messages", devices, json.length(),
+				messages));
+		System.out.println("same JSON as reflective Gson: " + json.equals(shared.toJson(transmission))
+				+ ", round trip: " + json.equals(JsonCodec.toJson(JsonCodec.fromJson(json, Transmission.class)))
+				+ ", CBOR round trip: " + json.equals(JsonCodec.toJson(JsonCodec.fromCbor(cbor, Transmission.class))));
+
+		final int line = json.getBytes().length + 1;
+
+		List<Codec> codecs = new ArrayList<Codec>();
+		codecs.add(new Codec("legacy", json, line) {
+			@Override
+			Object roundTrip(Object in) {
+				// a new instance for every call, like serializeToJson and deserializeJson did
+				Transmission transmission = new GsonBuilder().setDateFormat(Transmission.TIMESTAMP_FORMAT).create()
+						.fromJson((String) in, Transmission.class);
+				return new GsonBuilder().setDateFormat(Transmission.TIMESTAMP_FORMAT).create().toJson(transmission);
+			}
+		});
+		codecs.add(new Codec("shared", json, line) {
+			@Override
+			Object roundTrip(Object in) {
+				return shared.toJson(shared.fromJson((String) in, Transmission.class));
+			}
+		});
+		codecs.add(new Codec("codec", json, line) {
+			@Override
+			Object roundTrip(Object in) {
+				return Transmission.serializeToJson(Transmission.deserializeJson((String) in));
+			}
+		});
+		codecs.add(new Codec("cbor", cbor, cbor.length + 4) {
+			@Override
+			Object roundTrip(Object in) {
+				return Transmission.serializeToCbor(Transmission.deserializeCbor((byte[]) in));
+			}
+		});
+
+		for (Codec codec : codecs) {
+			// warm up the JIT
+			run(codec, Math.max(1, messages / 4));
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			run(codec, messages);
+			long elapsed = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			System.out.println(String.format("%-8s | %6d B on wire | %9d B/msg | %8.2f us/msg", codec.name,
+					codec.wireSize, bytes / messages, elapsed / 1e3 / messages));
+		}
+	}
+
+	private static void run(Codec codec, int messages) {
+		// keeps the JIT from removing the calls
+		int sink = 0;
+		for (int i = 0; i < messages; i++) {
+			sink += codec.roundTrip(codec.input).hashCode();
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	@SuppressWarnings("restriction")
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static Transmission createTransmission(int count) throws Exception {
+		Transmission transmission = new Transmission();
+		transmission.setAction(Action.REPORT);
+		transmission.setMessage("Report is submitted!");
+
+		Control control = new Control();
+		control.setInfo("Raspberry Pi 3 Model B");
+		List<Processor> cpu = new ArrayList<Processor>();
+		for (int i = 0; i < 4; i++) {
+			Processor processor = control.new Processor();
+			processor.setCore(i);
+			processor.setWork(12.5f + i);
+			processor.setTemperature(48.3f);
+			cpu.add(processor);
+		}
+		control.setCpu(cpu);
+		Memory memory = control.new Memory();
+		memory.setFree(512L * 1024 * 1024);
+		memory.setUsed(412L * 1024 * 1024);
+		control.setMem(memory);
+		transmission.setControl(control);
+
+		for (int i = 1; i <= count; i++) {
+			Device device = new Device();
+			device.setId(i);
+			device.setType(Type.SOCKET);
+			device.setName("Socket " + i);
+			device.setConnected(true);
+			device.setStatus(i % 2);
+			device.setTemperature(21.5f);
+			device.setPower(13.37f * i);
+			device.setEnergy(1024f * i);
+			List<Cycle> cycles = new ArrayList<Cycle>();
+			Cycle cycle = device.new Cycle(Cycle.CYCLETYPE_TIME);
+			cycle.setName("Morning");
+			cycle.setStartTime("06:30:00");
+			cycle.setStopTime("07:15:00");
+			cycle.setDays(EnumSet.of(Weekday.MONDAY, Weekday.WEDNESDAY, Weekday.FRIDAY));
+			cycles.add(cycle);
+			device.setCycles(cycles);
+			transmission.addDevice(device);
+		}
+
+		List<Image> images = new ArrayList<Image>();
+		Image image = new Image();
+		image.setTitle("Camera");
+		image.setFormat(Image.Format.JPG);
+		image.setTimestamp(new Timestamp(1500000000000L));
+		image.setData("/9j/4AAQSkZJRgABAQEASABIAAD/2wBDAP//////////////////////////////////////////");
+		images.add(image);
+		transmission.setImages(images);
+		return transmission;
+	}
+
+	private abstract static class Codec {
+
+		Codec(String name, Object input, int wireSize) {
+			this.name = name;
+			this.input = input;
+			this.wireSize = wireSize;
+		}
+
+		/**
+		 * Decodes the encoded message and encodes it again.
+		 */
+		abstract Object roundTrip(Object in);
+
+		private final String name;
+		private final Object input;
+		private final int wireSize;
+	}
+}
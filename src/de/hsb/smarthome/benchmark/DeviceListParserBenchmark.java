@@ -0,0 +1,177 @@
+package de.hsb.smarthome.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import de.hsb.smarthome.server.DeviceListParser;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Type;
+
+/**
+ * Compares the streaming {@link DeviceListParser} with the former DOM based
+ * parsing of "getdevicelistinfos" (read the answer line by line into a string,
+ * build and normalize a DOM, pick values by child position). Prints time and
+ * allocated bytes per parsed answer for different installation sizes.
+ * <p>
+ * Run with: <code>java de.hsb.smarthome.benchmark.DeviceListParserBenchmark [iterations]</code>
+ *
+ */
+public class DeviceListParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		for (int devices : new int[] { 1, 10, 100, 500 }) {
+			final String xml = createDeviceList(devices);
+			final byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+
+			Run dom = measure(iterations, new Parser() {
+				@Override
+				public List<Device> parse() throws Exception {
+					// the former path first copies the answer into a string
+					BufferedLineCopy copy = new BufferedLineCopy(bytes);
+					return parseDom(copy.toString());
+				}
+			});
+			Run stax = measure(iterations, new Parser() {
+				@Override
+				public List<Device> parse() throws Exception {
+					return DeviceListParser.parse(new ByteArrayInputStream(bytes));
+				}
+			});
+
+			System.out.println(String.format("%4d devices (%7d bytes) | DOM  %9.1f us/op %11d B/op | StAX %9.1f us/op %11d B/op",
+					devices, bytes.length, dom.micros, dom.bytes, stax.micros, stax.bytes));
+		}
+	}
+
+	/**
+	 * Builds a device list as sent by a FRITZ!Box with the given number of
+	 * FRITZ!DECT 200 sockets.
+	 */
+	static String createDeviceList(int count) {
+		StringBuilder sb = new StringBuilder("<devicelist version=\"1\">\n");
+		for (int i = 0; i < count; i++) {
+			sb.append("<device identifier=\"08761 ").append(String.format("%07d", i))
+					.append("\" id=\"").append(16 + i)
+					.append("\" functionbitmask=\"2944\" fwversion=\"03.87\" manufacturer=\"AVM\" productname=\"FRITZ!DECT 200\">\n")
+					.append("<present>1</present><name>Steckdose ").append(i).append("</name>\n")
+					.append("<switch><state>").append(i % 2).append("</state><mode>manuell</mode><lock>0</lock><devicelock>0</devicelock></switch>\n")
+					.append("<powermeter><power>").append(i * 1000).append("</power><energy>").append(i * 7)
+					.append("</energy></powermeter>\n")
+					.append("<temperature><celsius>").append(200 + i % 50).append("</celsius><offset>0</offset></temperature>\n")
+					.append("</device>\n");
+		}
+		return sb.append("</devicelist>\n").toString();
+	}
+
+	/**
+	 * The DOM based parsing as it was done before the streaming parser.
+	 */
+	static List<Device> parseDom(String str) throws Exception {
+		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+		Document doc = dBuilder.parse(new InputSource(new StringReader(str)));
+		doc.normalizeDocument();
+
+		List<Device> devices = new ArrayList<Device>();
+		NodeList rootDevices = doc.getElementsByTagName("device");
+		for (int i = 0; i < rootDevices.getLength(); ++i) {
+			Element deviceElement = (Element) rootDevices.item(i);
+			NodeList deviceChilds = deviceElement.getChildNodes();
+			Device tmp = new Device();
+
+			tmp.setAid(deviceElement.getAttribute("identifier"));
+			tmp.setTemperature(Float.parseFloat(deviceChilds.item(4).getChildNodes().item(0).getTextContent()) / 10);
+			tmp.setPower(Float.parseFloat(deviceChilds.item(3).getChildNodes().item(0).getTextContent()));
+			tmp.setEnergy(Float.parseFloat(deviceChilds.item(3).getChildNodes().item(1).getTextContent()));
+			tmp.setStatus(Integer.parseInt(deviceChilds.item(2).getChildNodes().item(0).getTextContent()));
+			tmp.setId(i + 1);
+			tmp.setConnected(true);
+			tmp.setType(Type.SOCKET);
+			tmp.setName(deviceElement.getElementsByTagName("name").item(0).getTextContent());
+			devices.add(tmp);
+		}
+		return devices;
+	}
+
+	private static Run measure(int iterations, Parser parser) throws Exception {
+		// warm up
+		for (int i = 0; i < iterations; i++) {
+			parser.parse();
+		}
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			parser.parse();
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		Run run = new Run();
+		run.micros = elapsed / 1000.0 / iterations;
+		run.bytes = allocated < 0 ? -1 : allocated / iterations;
+		return run;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread, or -1 if the JVM does not
+	 *         support allocation measurement
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private interface Parser {
+		List<Device> parse() throws Exception;
+	}
+
+	private static class Run {
+		private double micros;
+		private long bytes;
+	}
+
+	/**
+	 * Reproduces the former reading of the HTTP answer: line by line into a
+	 * string buffer.
+	 */
+	private static class BufferedLineCopy {
+
+		private BufferedLineCopy(byte[] bytes) throws Exception {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				content.append(line);
+			}
+			in.close();
+		}
+
+		@Override
+		public String toString() {
+			return content.toString();
+		}
+
+		private final StringBuffer content = new StringBuffer();
+	}
+}
@@ -0,0 +1,138 @@
+package de.hsb.smarthome.benchmark;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hsb.smarthome.server.CircuitBreaker;
+import de.hsb.smarthome.server.FritzBoxSession;
+import de.hsb.smarthome.util.json.Device;
+
+/**
+ * Asynchronous variant of {@link FritzBoxSession}. Every operation returns a
+ * CompletableFuture immediately, so callers can compose and fan out FRITZ!Box
+ * calls instead of waiting for them. The requests are not non-blocking, each
+ * one blocks a thread of a small pool owned by this class. They pass the
+ * session, i.e. its shared session id and its {@link CircuitBreaker}.
+ * <p>
+ * The timeout starts when the request is sent, not while it waits for a free
+ * thread. A future which does not complete within the timeout fails with a
+ * {@link TimeoutException}, the request itself may still be executed by the
+ * FRITZ!Box. A request whose future is already completed or cancelled when
+ * its turn comes is not sent.
+ * <p>
+ * Part of the benchmark only, to compare the futures with the clients of the
+ * server. The server does not use it, the FRITZ!Box is only reached with the
+ * blocking HTTP client, so each request ties up a thread either way.
+ *
+ */
+class FritzBoxAsyncConnection {
+
+	/**
+	 * @param session
+	 *            Session which performs the requests
+	 * @param threads
+	 *            Number of requests which may run at the same time
+	 * @param timeout
+	 *            Time in ms after which a future fails
+	 */
+	FritzBoxAsyncConnection(FritzBoxSession session, int threads, long timeout) {
+		SESSION = session;
+		TIMEOUT_MS = timeout;
+		EXECUTOR = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FritzBoxAsync-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @see FritzBoxSession#sendDeviceCommand(String, String)
+	 */
+	public CompletableFuture<String> sendDeviceCommand(String ain, String cmd) {
+		return submit(() -> SESSION.sendDeviceCommand(ain, cmd));
+	}
+
+	/**
+	 * @see FritzBoxSession#pollDevice(String)
+	 */
+	public CompletableFuture<Device> pollDevice(String ain) {
+		return submit(() -> SESSION.pollDevice(ain));
+	}
+
+	/**
+	 * @see FritzBoxSession#getDeviceListInfos()
+	 */
+	public CompletableFuture<List<Device>> getDeviceListInfos() {
+		return submit(() -> SESSION.getDeviceListInfos());
+	}
+
+	/**
+	 * Stops the worker threads. Requests already running are completed.
+	 */
+	public void shutdown() {
+		EXECUTOR.shutdown();
+	}
+
+	/**
+	 * Runs the request on the pool and fails the future when the timeout expires
+	 * first. The timeout starts when the request is taken from the queue.
+	 */
+	private <T> CompletableFuture<T> submit(Request<T> request) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			EXECUTOR.execute(() -> {
+				if (future.isDone()) {
+					// given up by the caller while waiting in the queue
+					return;
+				}
+				ScheduledFuture<?> timeout = TIMER.schedule(() -> future.completeExceptionally(
+						new TimeoutException("FRITZ!Box did not answer within " + TIMEOUT_MS + " ms")), TIMEOUT_MS,
+						TimeUnit.MILLISECONDS);
+				try {
+					future.complete(request.execute());
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				} finally {
+					timeout.cancel(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private interface Request<T> {
+		T execute() throws Exception;
+	}
+
+	public static final long DEFAULT_TIMEOUT_MS = 20000;
+
+	private static final ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FritzBoxAsync-Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final FritzBoxSession SESSION;
+	private final long TIMEOUT_MS;
+	private final ExecutorService EXECUTOR;
+}
@@ -0,0 +1,236 @@
+package de.hsb.smarthome.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import de.hsb.smarthome.server.FritzBoxConnection;
+import de.hsb.smarthome.server.FritzBoxConnectionPool;
+import de.hsb.smarthome.server.FritzBoxSession;
+import de.hsb.smarthome.server.SwitchQueue;
+import de.hsb.smarthome.server.SwitchQueue.Command;
+import de.hsb.smarthome.server.SwitchQueue.CommandResult;
+import de.hsb.smarthome.simulator.FritzBoxSimulator;
+import de.hsb.smarthome.util.log.Logger;
+
+/**
+ * Measures how many switch commands per second the FRITZ!Box clients of the
+ * server get through, and the p50/p99 latency of a single command. All clients
+ * run against a local {@link FritzBoxSimulator} with the configured latency
+ * and failure rate, so the numbers can be compared between changes.
+ * <p>
+ * Every round toggles all sockets of the simulator once. A new client
+ * implementation is measured by adding a {@link Client} to
+ * {@link #createClients(FritzBoxConnection)}.
+ * <p>
+ * Run with:
+ * <code>java de.hsb.smarthome.benchmark.GatewayBenchmark [devices] [rounds] [latencyMs] [failureRate]</code>
+ *
+ */
+public class GatewayBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+		double failureRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+		Logger.getLogger();
+		Logger.setOutput(Logger.OUTPUT_NONE);
+
+		FritzBoxSimulator simulator = new FritzBoxSimulator(0, devices);
+		simulator.setLatency(latency, latency / 2);
+		simulator.setFailureRate(failureRate);
+		simulator.start();
+
+		System.out.println(String.format("%d devices, %d rounds, latency %d-%d ms, failure rate %.2f", devices,
+				rounds, latency, latency + latency / 2, failureRate));
+		try {
+			FritzBoxConnection connection = new FritzBoxConnection(simulator.getProtocol(), "localhost",
+					simulator.getPort(), new FritzBoxConnectionPool());
+			for (Client client : createClients(connection)) {
+				simulator.resetCounters();
+				Run run = measure(client, simulator.getAins(), rounds);
+				client.close();
+				System.out.println(String.format("%-8s | %8.1f cmd/s | p50 %7.1f ms | p99 %7.1f ms | %d failed | %s",
+						client.getName(), run.throughput, run.p50, run.p99, run.failed, simulator));
+			}
+		} finally {
+			simulator.stop();
+		}
+	}
+
+	/**
+	 * @return the clients to compare, all using the given connection
+	 */
+	static List<Client> createClients(final FritzBoxConnection connection) {
+		final String user = FritzBoxSimulator.DEFAULT_USERNAME;
+		final String password = FritzBoxSimulator.DEFAULT_PASSWORD;
+		List<Client> clients = new ArrayList<Client>();
+
+		// login, command and logout for every single command
+		clients.add(new Client("legacy") {
+			@Override
+			void send(List<Command> commands, long[] latencies) {
+				for (int i = 0; i < commands.size(); i++) {
+					long start = System.nanoTime();
+					try {
+						String sid = connection.getSessionId(user, password);
+						connection.sendDeviceCommand(commands.get(i).getAin(), commands.get(i).getCmd(), sid);
+						connection.logout(sid);
+						latencies[i] = System.nanoTime() - start;
+					} catch (Exception e) {
+						latencies[i] = FAILED;
+					}
+				}
+			}
+		});
+
+		// one cached session, commands one after another
+		final FritzBoxSession session = new FritzBoxSession(connection, user, password,
+				FritzBoxSession.DEFAULT_VALIDITY_MS);
+		clients.add(new Client("session") {
+			@Override
+			void send(List<Command> commands, long[] latencies) {
+				for (int i = 0; i < commands.size(); i++) {
+					long start = System.nanoTime();
+					try {
+						session.sendDeviceCommand(commands.get(i).getAin(), commands.get(i).getCmd());
+						latencies[i] = System.nanoTime() - start;
+					} catch (Exception e) {
+						latencies[i] = FAILED;
+					}
+				}
+			}
+		});
+
+		// all commands of a round through the switch queue of the server, without a window
+		final SwitchQueue queue = new SwitchQueue(session, SwitchQueue.DEFAULT_WORKERS, 0);
+		clients.add(new Client("queue") {
+			@Override
+			void send(List<Command> commands, long[] latencies) {
+				long start = System.nanoTime();
+				List<CommandResult> results = queue.submit(commands, SwitchQueue.Priority.MANUAL).join().getResults();
+				long latency = System.nanoTime() - start;
+				for (int i = 0; i < results.size(); i++) {
+					latencies[i] = results.get(i).isSuccessful() ? latency : FAILED;
+				}
+			}
+
+			@Override
+			void close() {
+				queue.shutdown();
+			}
+		});
+
+		// all commands of a round as futures on the shared session
+		final FritzBoxAsyncConnection async = new FritzBoxAsyncConnection(session,
+				SwitchQueue.DEFAULT_WORKERS, FritzBoxAsyncConnection.DEFAULT_TIMEOUT_MS);
+		clients.add(new Client("async") {
+			@Override
+			void send(List<Command> commands, final long[] latencies) {
+				List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+				for (int i = 0; i < commands.size(); i++) {
+					final int index = i;
+					final long start = System.nanoTime();
+					futures.add(async.sendDeviceCommand(commands.get(i).getAin(), commands.get(i).getCmd())
+							.whenComplete((answer, error) -> latencies[index] = error == null ? System.nanoTime() - start
+								: FAILED));
+				}
+				try {
+					CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+				} catch (CompletionException e) {
+					// failed commands are marked in the latencies
+				}
+			}
+
+			@Override
+			void close() {
+				async.shutdown();
+				session.logout();
+			}
+		});
+		return clients;
+	}
+
+	private static Run measure(Client client, List<String> ains, int rounds) {
+		List<Command> commands = new ArrayList<Command>();
+		for (String ain : ains) {
+			commands.add(new Command(ain, "setswitchtoggle"));
+		}
+
+		// warm up the JIT and the keep-alive connections
+		long[] round = new long[commands.size()];
+		for (int i = 0; i < Math.min(3, rounds); i++) {
+			client.send(commands, round);
+		}
+
+		long[] latencies = new long[rounds * commands.size()];
+		int succeeded = 0;
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			Arrays.fill(round, FAILED);
+			client.send(commands, round);
+			for (long latency : round) {
+				if (latency != FAILED) {
+					latencies[succeeded++] = latency;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		long[] sorted = Arrays.copyOf(latencies, succeeded);
+		Arrays.sort(sorted);
+		Run run = new Run();
+		run.throughput = succeeded / (elapsed / 1e9);
+		run.p50 = percentile(sorted, 0.50) / 1e6;
+		run.p99 = percentile(sorted, 0.99) / 1e6;
+		run.failed = latencies.length - succeeded;
+		return run;
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * A way of sending switch commands to the FRITZ!Box.
+	 *
+	 */
+	abstract static class Client {
+
+		Client(String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * Sends all commands and stores the latency of every command in ns, or
+		 * {@link GatewayBenchmark#FAILED} if the command failed.
+		 */
+		abstract void send(List<Command> commands, long[] latencies);
+
+		void close() {
+		}
+
+		private final String name;
+	}
+
+	static final long FAILED = -1;
+
+	private static class Run {
+		private double throughput;
+		private double p50;
+		private double p99;
+		private int failed;
+	}
+}
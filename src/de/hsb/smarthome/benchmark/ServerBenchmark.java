@@ -0,0 +1,162 @@
+package de.hsb.smarthome.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import de.hsb.smarthome.util.json.Transmission;
+import de.hsb.smarthome.util.json.Transmission.Action;
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.transmission.TCPConnection.ConnectionState;
+import de.hsb.smarthome.util.transmission.TCPServer;
+import de.hsb.smarthome.util.transmission.TCPServer.IClientListener;
+import de.hsb.smarthome.util.transmission.TCPThreadServer;
+
+/**
+ * Compares the multi-client server modes of the RemoteSocket: the selector
+ * based {@link TCPServer} and the thread per connection
+ * {@link TCPThreadServer}, at 1, 10 and 100 clients. Every request is answered
+ * after a blocking wait which stands for a FRITZ!Box request. For every run
+ * the heap in use and the platform threads of the server are measured while
+ * all clients are connected, together with the p50/p99 latency of a request.
+ * The thread mode has a reader and a writer thread per client.
+ * <p>
+ * The thread mode uses virtual threads when run on Java 21 or later, so the
+ * benchmark should be run on both kinds of JVM.
+ * <p>
+ * Run with:
+ * <code>java de.hsb.smarthome.benchmark.ServerBenchmark [requests] [workMs]</code>
+ *
+ */
+public class ServerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		final long work = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		Logger.getLogger();
+		Logger.setOutput(Logger.OUTPUT_NONE);
+
+		System.out.println(String.format("Java %s, %d requests per client, %d ms work per request",
+				System.getProperty("java.version"), requests, work));
+		IClientListener echo = connection -> state -> {
+			if (state == ConnectionState.CONNECTED) {
+				connection.register(transmission -> {
+					try {
+						Thread.sleep(work);
+						connection.sendTransmission(transmission);
+					} catch (InterruptedException | IOException e) {
+						connection.close();
+					}
+				});
+			}
+		};
+
+		for (String mode : new String[] { "nio", "thread" }) {
+			for (int clients : new int[] { 1, 10, 100 }) {
+				int port = freePort();
+				Thread server;
+				String name = mode;
+				if (mode.equals("nio")) {
+					server = TCPServer.getInstance(port, 0, null, echo);
+				} else {
+					TCPThreadServer threadServer = TCPThreadServer.getInstance(port, 0, null, echo);
+					name = threadServer.isVirtual() ? "virtual" : "platform";
+					server = threadServer;
+				}
+				Thread.sleep(200);
+
+				Run run = measure(port, clients, requests);
+				if (server instanceof TCPServer) {
+					((TCPServer) server).close();
+				} else {
+					((TCPThreadServer) server).close();
+				}
+				server.join();
+
+				System.out.println(String.format(
+						"%-8s | %3d clients | %3d server threads | heap %6.1f MB | p50 %7.1f ms | p99 %7.1f ms",
+						name, clients, run.threads, run.heap / 1024.0 / 1024.0, run.p50, run.p99));
+			}
+		}
+	}
+
+	private static Run measure(final int port, int clients, final int requests) throws Exception {
+		final CountDownLatch connected = new CountDownLatch(clients);
+		final CountDownLatch measured = new CountDownLatch(1);
+		final long[] latencies = new long[clients * requests];
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int c = 0; c < clients; c++) {
+			final int offset = c * requests;
+			Thread thread = new Thread(() -> {
+				try (Socket socket = new Socket("localhost", port)) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+					OutputStream out = socket.getOutputStream();
+					Transmission transmission = new Transmission();
+					transmission.setAction(Action.REPORT);
+					byte[] request = (Transmission.serializeToJson(transmission) + "\n").getBytes();
+
+					// the first request makes sure the server serves the client
+					out.write(request);
+					in.readLine();
+					connected.countDown();
+					measured.await();
+
+					for (int i = 0; i < requests; i++) {
+						long start = System.nanoTime();
+						out.write(request);
+						in.readLine();
+						latencies[offset + i] = System.nanoTime() - start;
+					}
+				} catch (IOException | InterruptedException e) {
+					connected.countDown();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		connected.await();
+		Run run = new Run();
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		run.heap = runtime.totalMemory() - runtime.freeMemory();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("TCP")) {
+				run.threads++;
+			}
+		}
+
+		measured.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		run.p50 = sorted[(int) Math.ceil(0.50 * sorted.length) - 1] / 1e6;
+		run.p99 = sorted[(int) Math.ceil(0.99 * sorted.length) - 1] / 1e6;
+		return run;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static class Run {
+		private long heap;
+		private int threads;
+		private double p50;
+		private double p99;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
+import de.hsb.smarthome.util.transmission.TCPConnection;
 
 public class ConnectionCheck {
 	/**
@@ -46,15 +47,31 @@ public class ConnectionCheck {
 		return mIP;
 	}
 
+	/**
+	 * Sets the connection to the IP. While the connection has a heartbeat it
+	 * detects a lost server itself, so no ping is sent.
+	 * 
+	 * @param connection - the connection, may be null
+	 */
+	public void setConnection(TCPConnection connection) {
+		this.mConnection = connection;
+	}
+
 	/**
 	 * These method sends a ping to the given IP. It will be triggerd by a internal Thread by the given interval.
+	 * If the connection has a heartbeat, its state is taken instead.
 	 */
 	public synchronized void checkConnection() {
 		boolean reachable = false;
-		try {
-			reachable = InetAddress.getByName(mIP).isReachable(mIPCheckTimeout);
-		} catch (IOException e) {
-			e.printStackTrace();
+		TCPConnection connection = mConnection;
+		if (connection != null && connection.hasHeartbeat()) {
+			reachable = connection.isConnected();
+		} else {
+			try {
+				reachable = InetAddress.getByName(mIP).isReachable(mIPCheckTimeout);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 		if (reachable) {
 			this.mStatus = Status.OK;
@@ -119,6 +136,7 @@ public class ConnectionCheck {
 	private long mShutdown;
 	private long mLastTimeStatusUnclear = -1l;
 	private volatile boolean mCommitSend;
+	private volatile TCPConnection mConnection;
 
 	private final String mIP;
 	private Logger mLogger = Logger.getLogger();
@@ -2,6 +2,10 @@ package de.hsb.smarthome.client.controller;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JOptionPane;
 
@@ -43,6 +47,11 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 			mPort = Integer.valueOf(mConfig.getSection("Global").valueOf("RemotePort"));
 			mLogger.write(this,"Read IP from config file: " +  mIP, LoggerMode.INFO);
 			mLogger.write(this, "Read port from config file: " + mPort, LoggerMode.INFO);
+			String heartbeatInterval = mConfig.getSection("Global").valueOf("HeartbeatInterval");
+			String heartbeatMisses = mConfig.getSection("Global").valueOf("HeartbeatMisses");
+			if(heartbeatInterval != null && heartbeatMisses != null) {
+				TCPConnection.setHeartbeat(Long.valueOf(heartbeatInterval), Integer.valueOf(heartbeatMisses));
+			}
 			
 		} catch (IOException e) {
 			mLogger.write(this, "Failed to read config file: " + configFilePath, LoggerMode.ERROR);
@@ -79,6 +88,7 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 			mMainFrame.setVisible(true);
 			if(!mDebug) {
 				mConnectionCheck = new ConnectionCheck(mIP, 500, 1000, 5, this);
+				mConnectionCheck.setConnection(mTcpConnection);
 			}
 		} else {
 			mLogger.write(this, "No connection Possible", LoggerMode.ERROR);
@@ -91,9 +101,10 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 	 * 
 	 * @param IP have to be in the form \"192.168.128.111\"
 	 * @param port - a number between 0 and 65535
+	 * @return true if the data of the server has been received
 	 */
-	private void createTCPConnection(String IP, int port) {
-		mTcpConnection = TCPConnection.getClientInstance(IP, port, 10000, this);
+	private boolean createTCPConnection(String IP, int port) {
+		mTcpConnection = TCPConnection.getClientInstance(IP, port, 10000, this, true);
 		//Warten bis TCP-Verbindung aufgebaut ist.
 		try {
 			mTcpConnection.join();
@@ -105,42 +116,219 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 		//Als zurhoerer bei der Verbindung registrieren.
 		//null-pointer check, falles was schief gegangen ist wird hier benoetigt, 
 		//weil bei einem CLOSED signal die Variable auf null gesetzt wird (siehe tcpConnectionCallback)
-		if(mTcpConnection != null && !mTcpConnection.register(this)) {
+		TCPConnection connection = mTcpConnection;
+		if(connection == null || !connection.register(this)) {
 			mLogger.write(this, "controller registration in TCP-connection failed", LoggerMode.ERROR);
-		}else {
-			return;
+			return false;
 		}
 		
-		//initiale Abfrage fuer die Elemente
+		//nach einem Verbindungsabbruch die Sitzung fortsetzen, der Server schickt nur die verpassten Aenderungen
+		if(mSession != null && resume(connection)) {
+			return true;
+		}
+		
+		//initiale Abfrage fuer die Elemente, mit bekannter Version nur die Aenderungen
 		Transmission trans = new Transmission();
 		trans.setAction(Action.REPORT);
+		trans.setVersion(mVersion);
 		
-		//Bekomme die Initialen Daten
+		//Bekomme die Initialen Daten, die Antwort wird ueber die ID zugeordnet
 		try {
 			mLogger.write(this, "Try to send initial request.", LoggerMode.INFO);
-			//null-pointer check, falls was schief gegangen ist wird hier benoetigt, 
-			//weil bei einem CLOSED signal die Variable auf null gesetzt wird (siehe tcpConnectionCallback)
-			if(mTcpConnection != null && !mTcpConnection.sendTransmission(trans)) {
-				mLogger.write(this, "Initial request failed.", LoggerMode.ERROR);
-			}else {
-				return;
+			Transmission report = connection.request(trans).get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+			reportReceived(report);
+			subscribe(connection);
+			return true;
+		} catch (ExecutionException | TimeoutException e) {
+			mLogger.write(this, "Error while requesting the initial data", LoggerMode.ERROR);
+			mLogger.write(this, String.valueOf(e.getMessage()), LoggerMode.ERROR);
+		} catch (InterruptedException e) {
+			mLogger.write(this, "Interrupted while waiting for the initial data", LoggerMode.ERROR);
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Resumes the session of the lost connection with SUBSCRIBE. The answer
+	 * contains only the changes since the version of the model. Servers which do
+	 * not know the session start a new one.
+	 * 
+	 * @param connection
+	 * @return false if the server did not accept SUBSCRIBE
+	 */
+	private boolean resume(TCPConnection connection) {
+		Transmission trans = new Transmission();
+		trans.setAction(Action.SUBSCRIBE);
+		trans.setSession(mSession);
+		trans.setVersion(mVersion);
+		try {
+			mLogger.write(this, "Try to resume the session.", LoggerMode.INFO);
+			Transmission answer = connection.request(trans).get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+			if(answer.getAction() != Action.SUCCESS) {
+				return false;
 			}
-		} catch (IOException e) {
-			mLogger.write(this, "Error while sending the initial request", LoggerMode.ERROR);
-			mLogger.write(this, e.getMessage(), LoggerMode.ERROR);
-			
+			mSession = answer.getSession();
+			reportReceived(answer);
+			return true;
+		} catch (ExecutionException | TimeoutException e) {
+			mLogger.write(this, "Error while resuming the session", LoggerMode.ERROR);
+			mLogger.write(this, String.valueOf(e.getMessage()), LoggerMode.ERROR);
+		} catch (InterruptedException e) {
+			mLogger.write(this, "Interrupted while resuming the session", LoggerMode.ERROR);
+			Thread.currentThread().interrupt();
 		}
-		
-		//Warte bis die initialen Daten da sind.
-		synchronized(this) {
+		return false;
+	}
+
+	/**
+	 * Recreates the TCP-Connection in the background until it succeeds or the
+	 * program is shut down. The delay between two tries is doubled up to
+	 * {@link #RECONNECT_MAX_DELAY}. Does nothing if a reconnect is already
+	 * running or the initial data has never been received.
+	 */
+	private void reconnect() {
+		if(mShutdown || !mGotInitialData || !mReconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(() -> {
+			long delay = RECONNECT_MIN_DELAY;
 			try {
-				wait();
+				while(!mShutdown) {
+					mLogger.write(this, "Try to recreate a TCP-Connection", LoggerMode.INFO);
+					if(createTCPConnection(mIP, mPort)) {
+						if(mConnectionCheck != null) {
+							mConnectionCheck.setConnection(mTcpConnection);
+						}
+						return;
+					}
+					closeTCPConnection();
+					mTcpConnection = null;
+					Thread.sleep(delay);
+					delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+				}
 			} catch (InterruptedException e) {
-				mLogger.write(this, "Error while waiting for notify", LoggerMode.ERROR);
-				e.printStackTrace();
+				mLogger.write(this, "Reconnect interrupted", LoggerMode.WARN);
+			} finally {
+				mReconnecting.set(false);
+			}
+		}, "Reconnect");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks the server to push all changes, e.g. switches of the scheduler, so the
+	 * client does not have to poll. Servers which do not know SUBSCRIBE answer
+	 * with an ERROR.
+	 * 
+	 * @param connection
+	 */
+	private void subscribe(TCPConnection connection) {
+		Transmission trans = new Transmission();
+		trans.setAction(Action.SUBSCRIBE);
+		trans.setVersion(mVersion);
+		connection.request(trans).whenComplete((answer, error) -> {
+			if(error != null || answer.getAction() != Action.SUCCESS) {
+				mLogger.write(this, "Server does not push changes.", LoggerMode.WARN);
+			}else {
+				mLogger.write(this, "Subscribed to the changes of the server.", LoggerMode.INFO);
+				mSession = answer.getSession();
+				reportReceived(answer);
 			}
+		});
+	}
+
+	/**
+	 * Takes over a report: the answer to a REPORT request or SUBSCRIBE, or a
+	 * change pushed by the server. The first report fills the model, later ones
+	 * update the views. A delta is merged into the devices of the model.
+	 * 
+	 * @param report
+	 */
+	private void reportReceived(Transmission report) {
+		if(report.getVersion() != null) {
+			mVersion = report.getVersion();
 		}
 		
+		if(report.isDelta()) {
+			deltaReceived(report);
+		}else if(!mGotInitialData){
+			
+			if(report.getControl() != null) {
+				model.setControl(report.getControl());
+			}
+			
+			if(report.getDevices() != null) {
+				model.setSmartElements(report.getDevices());
+			}
+			
+			mLogger.write(this, report.getMessage(), LoggerMode.INFO);
+			mGotInitialData = true;
+		}else if(mMainFrame != null) {
+			if(report.getControl() != null) {
+				updateControl(report.getControl());
+			}
+			
+			if(report.getDevices() != null) {
+				updateViews(report.getDevices());
+			}
+		}
+		
+		if(report.getEnvironment() != null) {
+			model.setEnvironment(report.getEnvironment());
+			mLogger.write(this, "Room: " + report.getEnvironment().getTemperature() + " C, "
+					+ report.getEnvironment().getHumidity() + " %", LoggerMode.TRACE);
+		}
+	}
+
+	/**
+	 * Takes over the changed fields and the removed devices of a delta report.
+	 * 
+	 * @param report
+	 */
+	private void deltaReceived(Transmission report) {
+		if(report.getControl() != null && mMainFrame != null) {
+			updateControl(report.getControl());
+		}
+		if(report.getChanges() != null) {
+			for(Device change : report.getChanges()) {
+				Device device = model.updateSmartElement(change);
+				if(mMainFrame != null) {
+					mMainFrame.updateView(device);
+				}
+			}
+		}
+		if(report.getRemoved() != null) {
+			for(Integer id : report.getRemoved()) {
+				mLogger.write(this, "Device " + id + " has been removed", LoggerMode.INFO);
+				model.removeSmartElement(id);
+			}
+		}
+		mGotInitialData = true;
+	}
+
+	/**
+	 * Takes over the answer to a COMMIT request of the given device.
+	 * 
+	 * @param device - the committed device
+	 * @param answer
+	 */
+	private void commitAnswered(Device device, Transmission answer) {
+		switch(answer.getAction()) {
+		case SUCCESS:
+			if(device.getType() == Device.Type.CAMERA && answer.getImages() != null) {
+				updateViews(answer.getDevices(), answer.getImages());
+			}else {
+				updateViews(answer.getDevices());
+			}
+			break;
+		case ERROR:
+			mLogger.write(this, "Commit of device " + device.getId() + " failed: " + answer.getMessage(), LoggerMode.ERROR);
+			break;
+		default:
+			break;
+		}
 	}
 	
 
@@ -156,15 +344,20 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 		
 		switch(mConnectionState){
 		case TIMEOUT: 
-			this.shutdown();
-			synchronized (this) {
-				notify();
+			//beim Wiederverbinden wird es weiter versucht
+			if(!mReconnecting.get()) {
+				this.shutdown();
 			}
 			break;
 		case ERROR:
 			break;
 		case CLOSED:
-			mTcpConnection = null;
+			//ein spaetes CLOSED der alten Verbindung darf die neue nicht entfernen
+			TCPConnection connection = mTcpConnection;
+			if(connection != null && !connection.isConnected()) {
+				mTcpConnection = null;
+			}
+			reconnect();
 			break;
 		default: 
 			break;
@@ -172,55 +365,28 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 		
 	}
 	
+	/**
+	 * Gets the transmissions which are no answer to a request of this client,
+	 * i.e. the changes pushed by the server.
+	 */
 	@Override
 	public void receiveTransmission(Transmission obj) {
 		mLogger.write(this, "Receive Data", LoggerMode.TRACE);
-		if(!mGotInitialData){
-			
-			if(obj.getControl() != null) {
-				model.setControl(obj.getControl());
-			}
-			
-			if(obj.getDevices() != null) {
-				model.setSmartElements(obj.getDevices());
-			}
-			
-			mLogger.write(this, obj.getMessage(), LoggerMode.INFO);
-			synchronized (this) {
-				notify();
-			}
-			mGotInitialData = true;
-		}else {
-			switch(obj.getAction()) {
-			case REPORT:
-				if(obj.getControl() != null) {
-					updateControl(obj.getControl());
-				}
-				
-				if(obj.getDevices() != null) {
-					updateViews(obj.getDevices());
-				}
-				
-				break;
-			case COMMIT:
-				break;
-			case SUCCESS:
-				
-				if(obj.getImages() != null) {
-					updateViews(obj.getDevices(), obj.getImages());
-					
-				}else {
-					updateViews(obj.getDevices());
-				}
-				break;
-			case ERROR:
-				mLogger.write(this, "ERROR in receive", LoggerMode.ERROR);
-				break;
-			case CLOSE:
-				mTcpConnection.close();
-				break;
-			}
-	
+		if(obj.getAction() == null) {
+			return;
+		}
+		switch(obj.getAction()) {
+		case REPORT:
+			reportReceived(obj);
+			break;
+		case ERROR:
+			mLogger.write(this, "ERROR in receive", LoggerMode.ERROR);
+			break;
+		case CLOSE:
+			closeTCPConnection();
+			break;
+		default:
+			break;
 		}
 	}
 	
@@ -260,21 +426,29 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 		}
 	}
 	
+	/**
+	 * Sends the device to the server. The answer is taken over when it arrives,
+	 * other requests may be answered before, e.g. a switch while a camera picture
+	 * is taken.
+	 */
 	@Override
-	public void commitDevice(Device device) {
+	public void commitDevice(final Device device) {
 		mLogger.write(this, "Commit Device", LoggerMode.TRACE);
 		mConnectionCheck.setCommitSend(true);
-		if(mTcpConnection != null) {
+		TCPConnection connection = mTcpConnection;
+		if(connection != null) {
 			Transmission trans = new Transmission();
 			trans.setAction(Action.COMMIT);
 			trans.setMessage("test test test");
 			trans.addDevice(device);
-			try {
-				mTcpConnection.sendTransmission(trans);
-			} catch (IOException e) {
-				mLogger.write(this, e.getMessage(), LoggerMode.ERROR);
-				mLogger.write(this, "Error while sending", LoggerMode.ERROR);
-			}
+			connection.request(trans).whenComplete((answer, error) -> {
+				if(error != null) {
+					mLogger.write(this, error.getMessage(), LoggerMode.ERROR);
+					mLogger.write(this, "Error while sending", LoggerMode.ERROR);
+				}else {
+					commitAnswered(device, answer);
+				}
+			});
 		}else {
 			mLogger.write(this,"TCPConnection not initialized", LoggerMode.WARN);
 		}
@@ -289,6 +463,7 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 	@Override
 	public void shutdown() {
 		mLogger.write(this, "Shutdown programm", LoggerMode.INFO);
+		mShutdown = true;
 		closeTCPConnection();
 		if(mConnectionCheck != null) {
 			mConnectionCheck.stopConnectionCheck();
@@ -301,9 +476,7 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 			mMainFrame.mFooterInfo.setInfo("Verbindung OK");
 			mLogger.write(this, "Connection state changed to \"Connection OK\"", LoggerMode.INFO);
 			if(mTcpConnection == null) {
-				mLogger.write(this, "Try to recreate a TCP-Connection", LoggerMode.INFO);
-				createTCPConnection(mIP, mPort);
-				
+				reconnect();
 			}
 		}else if (status == Status.UNCLEAR) {
 			mMainFrame.mFooterInfo.setInfo("Verbindung unbekannt");
@@ -357,10 +530,16 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 	
 	private Model model = null;
 	private Logger mLogger = Logger.getLogger();
-	private TCPConnection mTcpConnection;
+	private volatile TCPConnection mTcpConnection;
 	private ConnectionState mConnectionState = ConnectionState.UNCONNECTED;
 	private ConnectionCheck mConnectionCheck;
 	private boolean mGotInitialData = false;
+	// version of the devices of the model, null until a server sent one
+	private Long mVersion = null;
+	// session of the subscription, resumed after a lost connection
+	private volatile String mSession = null;
+	private final AtomicBoolean mReconnecting = new AtomicBoolean();
+	private volatile boolean mShutdown = false;
 	private SSH_MainFrame mMainFrame;
 	private String mIP = "";
 	private int mPort = 0;
@@ -368,4 +547,7 @@ public class SSH_Control implements TCPConnection.IConnectionCallback, TCPConnec
 	private ConfigurationFile mConfig = null;
 	private boolean mDebug = false; //without TCPConnection
 	private boolean mTmpConfig = false;
+	private static final long REQUEST_TIMEOUT = 10000;
+	private static final long RECONNECT_MIN_DELAY = 1000;
+	private static final long RECONNECT_MAX_DELAY = 30000;
 }
@@ -6,6 +6,7 @@ import java.util.Vector;
 import de.hsb.smarthome.util.json.Control;
 import de.hsb.smarthome.util.json.Device;
 import de.hsb.smarthome.util.json.Device.Type;
+import de.hsb.smarthome.util.json.env.TempHumSensor;
 
 public class Model {
 
@@ -28,6 +29,38 @@ public class Model {
 		}
 	}
 
+	/**
+	 * Takes over the change of a device, see {@link Device#createChange}.
+	 * Unknown devices are added.
+	 * 
+	 * @param change
+	 * @return the updated device of the model
+	 */
+	public Device updateSmartElement(Device change) {
+		if( mSmartObjects == null ) {
+			mSmartObjects = new Vector<Device>();
+		}
+		for(Device device : mSmartObjects) {
+			if(device.getId() == change.getId()) {
+				device.update(change);
+				return device;
+			}
+		}
+		Device device = new Device();
+		device.setId(change.getId());
+		device.update(change);
+		mSmartObjects.addElement(device);
+		return device;
+	}
+	
+	public void removeSmartElement(int id) {
+		if( mSmartObjects != null ) {
+			Device device = new Device();
+			device.setId(id);
+			mSmartObjects.removeElement(device);
+		}
+	}
+
 	public void setControl(Control control) {
 		mControl = control;
 	}
@@ -36,6 +69,14 @@ public class Model {
 		return mControl;
 	}
 
+	public void setEnvironment(TempHumSensor environment) {
+		mEnvironment = environment;
+	}
+	
+	public TempHumSensor getEnvironment() {
+		return mEnvironment;
+	}
+
 //	public static Device getEqualDevice(List<Device> list, Device device) {
 //		Device tmp = null;
 //		if(list != null) {
@@ -50,6 +91,7 @@ public class Model {
 
 	Vector<Device> mSmartObjects = null;
 	Control mControl = null;
+	TempHumSensor mEnvironment = null;
 
 	
 	@SuppressWarnings("unused")
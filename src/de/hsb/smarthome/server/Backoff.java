@@ -0,0 +1,56 @@
+package de.hsb.smarthome.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter. The delay doubles with every attempt up to
+ * a maximum, half of it is randomized so that several callers which failed at
+ * the same time do not retry at the same time again.
+ *
+ */
+public class Backoff {
+
+	/**
+	 * @param base
+	 *            Delay in ms before the first retry
+	 * @param max
+	 *            Upper limit of the delay in ms
+	 */
+	public Backoff(long base, long max) {
+		BASE_MS = Math.max(1, base);
+		MAX_MS = Math.max(BASE_MS, max);
+	}
+
+	/**
+	 * @param attempt
+	 *            Number of the retry, starting with 0
+	 * @return delay in ms, between half and the full exponential delay
+	 */
+	public long getDelay(int attempt) {
+		long delay = MAX_MS;
+		if (attempt < 31 && (BASE_MS << attempt) > 0) {
+			delay = Math.min(MAX_MS, BASE_MS << attempt);
+		}
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Waits for the delay of the given attempt.
+	 *
+	 * @param attempt
+	 *            Number of the retry, starting with 0
+	 * @return false if the thread was interrupted while waiting
+	 */
+	public boolean sleep(int attempt) {
+		try {
+			Thread.sleep(getDelay(attempt));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private final long BASE_MS;
+	private final long MAX_MS;
+}
@@ -0,0 +1,142 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Stops requests to a gateway which does not answer, e.g. while the FRITZ!Box
+ * is rebooting. After the configured number of failures in a row the breaker
+ * opens and every request fails immediately with an {@link OpenException}
+ * instead of waiting for timeouts on the mobile link. When the open time has
+ * passed, a single trial request is let through (half-open). If it succeeds the
+ * breaker closes again, otherwise it opens for a longer, jittered time.
+ *
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	/**
+	 * @param name
+	 *            Name of the gateway, used in messages
+	 * @param failureThreshold
+	 *            Number of failures in a row which open the breaker
+	 * @param openTime
+	 *            Maximum time in ms the breaker stays open the first time, doubled on
+	 *            every failed trial up to {@link #MAX_OPEN_TIME_MS}
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openTime) {
+		NAME = name;
+		FAILURE_THRESHOLD = Math.max(1, failureThreshold);
+		BACKOFF = new Backoff(openTime, Math.max(openTime, MAX_OPEN_TIME_MS));
+	}
+
+	/**
+	 * Has to be called before every request. While the breaker is half-open only
+	 * the first caller gets through.
+	 *
+	 * @throws OpenException
+	 *             If the request must not be sent
+	 */
+	public synchronized void acquire() throws OpenException {
+		if (mState == State.OPEN && System.currentTimeMillis() >= mOpenUntil) {
+			mState = State.HALF_OPEN;
+			mTrialRunning = false;
+			LOGGER.write(this, NAME + " half-open, sending a trial request", LoggerMode.INFO);
+		}
+		if (mState == State.OPEN || (mState == State.HALF_OPEN && mTrialRunning)) {
+			throw new OpenException(NAME + " is not reachable, next try in " + (getRetryIn() + 999) / 1000 + " s");
+		}
+		if (mState == State.HALF_OPEN) {
+			mTrialRunning = true;
+		}
+	}
+
+	/**
+	 * Reports a request which was answered by the gateway.
+	 */
+	public synchronized void onSuccess() {
+		if (mState != State.CLOSED) {
+			LOGGER.write(this, NAME + " reachable again, circuit closed", LoggerMode.INFO);
+		}
+		mState = State.CLOSED;
+		mFailures = 0;
+		mOpenCount = 0;
+		mTrialRunning = false;
+	}
+
+	/**
+	 * Reports a request which failed because the gateway did not answer
+	 * properly.
+	 */
+	public synchronized void onFailure() {
+		if (mState == State.OPEN) {
+			// a request sent before the breaker opened
+			return;
+		}
+		mFailures++;
+		if (mState == State.HALF_OPEN || mFailures >= FAILURE_THRESHOLD) {
+			long openTime = BACKOFF.getDelay(mOpenCount++);
+			mState = State.OPEN;
+			mOpenUntil = System.currentTimeMillis() + openTime;
+			mTrialRunning = false;
+			LOGGER.write(this, NAME + " failed " + mFailures + " times, circuit open for " + openTime + " ms",
+					LoggerMode.WARN);
+		}
+	}
+
+	public synchronized State getState() {
+		return mState;
+	}
+
+	/**
+	 * @return true if requests are currently rejected without being sent
+	 */
+	public synchronized boolean isOpen() {
+		return mState == State.OPEN && System.currentTimeMillis() < mOpenUntil;
+	}
+
+	/**
+	 * @return time in ms until the next trial request is allowed, 0 if requests
+	 *         are allowed now
+	 */
+	public synchronized long getRetryIn() {
+		return mState == State.OPEN ? Math.max(0, mOpenUntil - System.currentTimeMillis()) : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return NAME + " " + mState + " (failures=" + mFailures + ")";
+	}
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_OPEN_TIME_MS = 10000;
+	public static final long MAX_OPEN_TIME_MS = 1000 * 60 * 5;
+
+	private final String NAME;
+	private final int FAILURE_THRESHOLD;
+	private final Backoff BACKOFF;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private State mState = State.CLOSED;
+	private int mFailures;
+	private int mOpenCount;
+	private long mOpenUntil;
+	private boolean mTrialRunning;
+
+	/**
+	 * Thrown instead of sending a request while the circuit is open.
+	 */
+	public static class OpenException extends IOException {
+
+		public OpenException(String msg) {
+			super(msg);
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,553 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Cycle;
+import de.hsb.smarthome.util.json.Device.Field;
+import de.hsb.smarthome.util.json.Device.Type;
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Keeps the devices of the smart home in memory. Every entry remembers when it
+ * was last confirmed by the FRITZ!Box (or, for the camera, by a reachability
+ * probe). Reads are answered from memory, only entries older than the
+ * configured maximum age are fetched again. A background task can keep the
+ * inventory fresh so that client requests do not have to wait for the gateway.
+ * <p>
+ * Single stale sockets are polled with the per-AIN commands of the FRITZ!Box,
+ * which transfer a few bytes instead of the whole device list. The device list
+ * is only fetched to discover new sockets or when many entries are stale at
+ * once.
+ * <p>
+ * The Device instances are updated in place and never replaced, the
+ * {@link Scheduler} and the cycles registered by clients keep working on the
+ * same objects. Listeners are told which fields of a device have changed.
+ * <p>
+ * The updates of the devices are serialized per inventory. A status fetched
+ * before a switch command was answered is older than the answer and is not
+ * taken over. The listeners are called after the lock has been released.
+ *
+ */
+public class DeviceInventory {
+
+	/**
+	 * Listener interface for classes which want to know when the state of a device
+	 * has changed on the gateway.
+	 *
+	 */
+	public interface InventoryListener {
+		/**
+		 * Will be called after a refresh changed one or more fields of a device.
+		 * Newly discovered devices are reported with all fields.
+		 *
+		 * @param device
+		 *            the device which has changed
+		 * @param fields
+		 *            the fields which have changed
+		 */
+		void onDeviceChanged(Device device, EnumSet<Field> fields);
+
+		/**
+		 * Will be called after a device has been removed from the gateway.
+		 *
+		 * @param device
+		 *            the device which has been removed
+		 */
+		void onDeviceRemoved(Device device);
+	}
+
+	/**
+	 * @param session
+	 *            Session to the FRITZ!Box which provides the sockets
+	 * @param ip_camera
+	 *            IP address of the ip camera, may be null
+	 * @param maxAge
+	 *            Time in ms after which an entry is fetched again
+	 */
+	public DeviceInventory(FritzBoxSession session, String ip_camera, long maxAge) {
+		this(session, ip_camera, maxAge, new AtomicInteger());
+	}
+
+	/**
+	 * @param session
+	 *            Session to the FRITZ!Box which provides the sockets
+	 * @param ip_camera
+	 *            IP address of the ip camera, may be null
+	 * @param maxAge
+	 *            Time in ms after which an entry is fetched again
+	 * @param ids
+	 *            Source of device IDs, shared by the inventories of all gateways
+	 *            so that the IDs are unique across them
+	 */
+	public DeviceInventory(FritzBoxSession session, String ip_camera, long maxAge, AtomicInteger ids) {
+		SESSION = session;
+		IP_CAMERA = ip_camera;
+		MAX_AGE_MS = maxAge;
+		IDS = ids;
+	}
+
+	/**
+	 * Returns all known devices. The list is answered from memory and is safe to
+	 * iterate while the inventory is refreshed.
+	 *
+	 * @return live list of all devices
+	 */
+	public List<Device> getDevices() {
+		return mDevices;
+	}
+
+	/**
+	 * Returns the device with the given ID. An entry which is older than the
+	 * maximum age is returned as it is and fetched again by the background
+	 * refresh, the caller does not wait for the gateway. Without a background
+	 * refresh it is fetched right away.
+	 *
+	 * @param id
+	 *            ID of the device
+	 * @return the device, or null if it is not known
+	 */
+	public Device getDevice(int id) {
+		Device device = find(id);
+		if (device != null && isStale(device) && !refreshLater(device)) {
+			refresh(device);
+		}
+		return device;
+	}
+
+	/**
+	 * Indicates whether the entry is older than the maximum age.
+	 *
+	 * @param device
+	 * @return true if the device has to be fetched again
+	 */
+	public boolean isStale(Device device) {
+		Long updated = mUpdated.get(device.getId());
+		return updated == null || (System.currentTimeMillis() - updated) > MAX_AGE_MS;
+	}
+
+	/**
+	 * Fetches all sockets from the FRITZ!Box and probes the camera.
+	 */
+	public void refresh() {
+		refreshSockets();
+		refreshCamera();
+	}
+
+	/**
+	 * Fetches the given device again.
+	 *
+	 * @param device
+	 */
+	public void refresh(Device device) {
+		if (device.getType() == Type.CAMERA) {
+			refreshCamera();
+		} else if (device.getAid() != null) {
+			pollSocket(device);
+		} else {
+			refreshSockets();
+		}
+	}
+
+	/**
+	 * Takes over the state of a socket from the answer to a switch command,
+	 * without waiting for the next refresh.
+	 *
+	 * @param ain
+	 *            AIN of the socket
+	 * @param status
+	 *            0 (off) or 1 (on)
+	 */
+	public void setStatus(String ain, int status) {
+		List<Change> changes = new ArrayList<Change>();
+		synchronized (this) {
+			for (Device device : mDevices) {
+				if (ain.equals(device.getAid())) {
+					mSwitched.put(device.getId(), System.currentTimeMillis());
+					if (device.getStatus() != status) {
+						device.setStatus(status);
+						changes.add(new Change(device, EnumSet.of(Field.STATUS)));
+					}
+					break;
+				}
+			}
+		}
+		notifyListeners(changes);
+	}
+
+	/**
+	 * Takes over the cycles a client has set for a device.
+	 *
+	 * @param id
+	 *            ID of the device
+	 * @param cycles
+	 *            the new cycles
+	 * @return the device, or null if it is not known
+	 */
+	public Device setCycles(int id, List<Cycle> cycles) {
+		Device device = find(id);
+		if (device != null) {
+			synchronized (this) {
+				device.setCycles(cycles);
+			}
+			notifyListeners(Collections.singletonList(new Change(device, EnumSet.of(Field.CYCLES))));
+		}
+		return device;
+	}
+
+	/**
+	 * Starts refreshing all stale entries in the background. Subsequent calls to
+	 * this method have no effect.
+	 */
+	public synchronized void startBackgroundRefresh() {
+		if (mRefresher != null) {
+			return;
+		}
+		mRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DeviceInventory");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mRefresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				List<Device> stale = new ArrayList<Device>();
+				for (Device device : mDevices) {
+					if (isStale(device)) {
+						stale.add(device);
+					}
+				}
+				refreshStale(stale);
+			}
+		}, 0, Math.max(1000, MAX_AGE_MS / 2), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background refresh.
+	 */
+	public synchronized void stopBackgroundRefresh() {
+		if (mRefresher != null) {
+			mRefresher.shutdownNow();
+			mRefresher = null;
+		}
+		mPending.clear();
+	}
+
+	public void addListener(InventoryListener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(InventoryListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Lets the background refresh fetch the given device as soon as possible. A
+	 * device which is already waiting for it is not added again.
+	 *
+	 * @return false if there is no background refresh
+	 */
+	private synchronized boolean refreshLater(final Device device) {
+		if (mRefresher == null) {
+			return false;
+		}
+		if (mPending.add(device.getId())) {
+			mRefresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					mPending.remove(device.getId());
+					if (isStale(device)) {
+						refresh(device);
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Polls the given stale devices one by one, or fetches the whole device list
+	 * if that is cheaper.
+	 */
+	private void refreshStale(List<Device> stale) {
+		int sockets = 0;
+		for (Device device : stale) {
+			if (device.getType() != Type.CAMERA) {
+				sockets++;
+			}
+		}
+		if (sockets > MAX_POLLED_SOCKETS) {
+			refreshSockets();
+		}
+		for (Device device : stale) {
+			if (device.getType() == Type.CAMERA || sockets <= MAX_POLLED_SOCKETS) {
+				refresh(device);
+			}
+		}
+	}
+
+	/**
+	 * Reads the state of a single socket with the per-AIN commands. Values of a
+	 * socket which is not connected are kept, the FRITZ!Box does not know them.
+	 */
+	private void pollSocket(Device device) {
+		long started = System.currentTimeMillis();
+		try {
+			Device polled = SESSION.pollDevice(device.getAid());
+			List<Change> changes = new ArrayList<Change>();
+			synchronized (this) {
+				if (!polled.isConnected()) {
+					polled.setStatus(device.getStatus());
+					polled.setPower(device.getPower());
+					polled.setEnergy(device.getEnergy());
+					polled.setTemperature(device.getTemperature());
+				}
+				update(device, polled, started, changes);
+			}
+			notifyListeners(changes);
+		} catch (IOException e) {
+			LOGGER.write(this, device + " could not be polled: " + e.getMessage(), LoggerMode.WARN);
+		}
+	}
+
+	/**
+	 * Fetches the device list from the FRITZ!Box and merges it into the inventory.
+	 * Sockets which are no longer in the list have been removed from the
+	 * FRITZ!Box and are removed from the inventory. Concurrent callers share one
+	 * request.
+	 */
+	private void refreshSockets() {
+		List<Change> changes = new ArrayList<Change>();
+		synchronized (mSocketLock) {
+			// another thread may have refreshed while this one was waiting
+			if (mSocketsUpdated != 0 && System.currentTimeMillis() - mSocketsUpdated < MIN_REFRESH_INTERVAL_MS) {
+				return;
+			}
+			long started = System.currentTimeMillis();
+			try {
+				List<Device> fetched = SESSION.getDeviceListInfos();
+				Set<String> ains = new HashSet<String>();
+				for (Device source : fetched) {
+					merge(source, started, changes);
+					ains.add(source.getAid());
+				}
+				for (Device device : mDevices) {
+					if (device.getAid() != null && !ains.contains(device.getAid())) {
+						remove(device, changes);
+					}
+				}
+				mSocketsUpdated = System.currentTimeMillis();
+			} catch (IOException e) {
+				LOGGER.write(this, "Device list could not be fetched: " + e.getMessage(), LoggerMode.WARN);
+			}
+		}
+		notifyListeners(changes);
+	}
+
+	/**
+	 * Probes the camera and adds it to the inventory if it is not known yet.
+	 */
+	private void refreshCamera() {
+		if (IP_CAMERA == null) {
+			return;
+		}
+		List<Change> changes = new ArrayList<Change>();
+		synchronized (mCameraLock) {
+			long started = System.currentTimeMillis();
+			Device camera = null;
+			for (Device device : mDevices) {
+				if (device.getType() == Type.CAMERA) {
+					camera = device;
+					break;
+				}
+			}
+			if (camera != null && !isStale(camera)) {
+				return;
+			}
+
+			boolean reachable = false;
+			try {
+				reachable = InetAddress.getByName(IP_CAMERA).isReachable(CAMERA_TIMEOUT_MS);
+			} catch (IOException e) {
+				LOGGER.write(this, "Camera could not be probed: " + e.getMessage(), LoggerMode.TRACE);
+			}
+
+			Device probe = new Device();
+			probe.setType(Type.CAMERA);
+			probe.setName("IPCamera");
+			probe.setConnected(reachable);
+			probe.setStatus(reachable ? 1 : 0);
+
+			if (camera == null) {
+				add(probe, changes);
+			} else {
+				update(camera, probe, started, changes);
+			}
+		}
+		notifyListeners(changes);
+	}
+
+	/**
+	 * Copies the state of a fetched socket into the known device with the same
+	 * AIN, or adds it as a new device.
+	 */
+	private synchronized void merge(Device source, long started, List<Change> changes) {
+		for (Device device : mDevices) {
+			if (device.getAid() != null && device.getAid().equals(source.getAid())) {
+				update(device, source, started, changes);
+				return;
+			}
+		}
+		add(source, changes);
+	}
+
+	private synchronized void add(Device device, List<Change> changes) {
+		device.setId(IDS.incrementAndGet());
+		mDevices.add(device);
+		mUpdated.put(device.getId(), System.currentTimeMillis());
+		changes.add(new Change(device, EnumSet.allOf(Field.class)));
+	}
+
+	private synchronized void remove(Device device, List<Change> changes) {
+		mDevices.remove(device);
+		mUpdated.remove(device.getId());
+		mSwitched.remove(device.getId());
+		LOGGER.write(this, device + " removed", LoggerMode.INFO);
+		changes.add(new Change(device, null));
+	}
+
+	/**
+	 * Copies the gateway state into the device and adds the changed fields to the
+	 * changes. The status is not taken over if the device has been switched since
+	 * the request was started.
+	 *
+	 * @param started
+	 *            Time the request for the gateway state was started
+	 */
+	private synchronized void update(Device device, Device source, long started, List<Change> changes) {
+		Long switched = mSwitched.get(device.getId());
+		if (switched != null && switched >= started) {
+			source.setStatus(device.getStatus());
+		}
+
+		EnumSet<Field> changed = EnumSet.noneOf(Field.class);
+
+		if (source.getName() != null && !source.getName().equals(device.getName())) {
+			device.setName(source.getName());
+			changed.add(Field.NAME);
+		}
+		if (source.isConnected() != device.isConnected()) {
+			device.setConnected(source.isConnected());
+			changed.add(Field.CONNECTED);
+		}
+		if (source.getStatus() != device.getStatus()) {
+			device.setStatus(source.getStatus());
+			changed.add(Field.STATUS);
+		}
+		if (!equal(source.getPower(), device.getPower())) {
+			device.setPower(source.getPower());
+			changed.add(Field.POWER);
+		}
+		if (!equal(source.getEnergy(), device.getEnergy())) {
+			device.setEnergy(source.getEnergy());
+			changed.add(Field.ENERGY);
+		}
+		if (!equal(source.getTemperature(), device.getTemperature())) {
+			device.setTemperature(source.getTemperature());
+			changed.add(Field.TEMPERATURE);
+		}
+
+		mUpdated.put(device.getId(), System.currentTimeMillis());
+		if (!changed.isEmpty()) {
+			LOGGER.write(this, device + " changed " + changed, LoggerMode.TRACE);
+			changes.add(new Change(device, changed));
+		}
+	}
+
+	/**
+	 * Tells the listeners about the changes, must not be called while holding a
+	 * lock of the inventory.
+	 */
+	private void notifyListeners(List<Change> changes) {
+		for (Change change : changes) {
+			for (InventoryListener listener : mListeners) {
+				if (change.fields == null) {
+					listener.onDeviceRemoved(change.device);
+				} else {
+					listener.onDeviceChanged(change.device, change.fields);
+				}
+			}
+		}
+	}
+
+	private Device find(int id) {
+		for (Device device : mDevices) {
+			if (device.getId() == id) {
+				return device;
+			}
+		}
+		return null;
+	}
+
+	private static boolean equal(Float a, Float b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public static final long DEFAULT_MAX_AGE_MS = 30000;
+	private static final long MIN_REFRESH_INTERVAL_MS = 1000;
+	// five small requests per socket, above this the device list is cheaper
+	private static final int MAX_POLLED_SOCKETS = 3;
+	private static final int CAMERA_TIMEOUT_MS = 10000;
+
+	private final FritzBoxSession SESSION;
+	private final String IP_CAMERA;
+	private final long MAX_AGE_MS;
+	private final AtomicInteger IDS;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private final List<Device> mDevices = new CopyOnWriteArrayList<Device>();
+	private final Map<Integer, Long> mUpdated = new ConcurrentHashMap<Integer, Long>();
+	// time of the last switch command answered, by ID
+	private final Map<Integer, Long> mSwitched = new ConcurrentHashMap<Integer, Long>();
+	private final List<InventoryListener> mListeners = new CopyOnWriteArrayList<InventoryListener>();
+	private final Object mSocketLock = new Object();
+	private final Object mCameraLock = new Object();
+	// IDs of the devices which wait for the background refresh
+	private final Set<Integer> mPending = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private long mSocketsUpdated;
+	private ScheduledExecutorService mRefresher;
+
+	/**
+	 * Changed fields of a device which the listeners have not been told yet.
+	 */
+	private static class Change {
+
+		private Change(Device device, EnumSet<Field> fields) {
+			this.device = device;
+			this.fields = fields;
+		}
+
+		private final Device device;
+		// null if the device has been removed
+		private final EnumSet<Field> fields;
+	}
+}
@@ -0,0 +1,186 @@
+package de.hsb.smarthome.server;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Type;
+
+/**
+ * Single pass parser for the answer of the AHA command "getdevicelistinfos".
+ * The XML is read as a stream and every &lt;device&gt; record is turned into a
+ * {@link Device} directly, without building a DOM. Values are picked by element
+ * name, so additional or reordered elements (newer firmware, other actor types)
+ * do not break the parser. &lt;group&gt; records are skipped.
+ *
+ */
+public class DeviceListParser {
+
+	private DeviceListParser() {
+		// static helper
+	}
+
+	/**
+	 * Parses the device list from the given stream. The stream is not closed.
+	 *
+	 * @param in
+	 *            answer of "getdevicelistinfos"
+	 * @return list of devices, IDs are assigned in document order starting with 1
+	 * @throws XMLStreamException
+	 *             If the answer is no well-formed XML
+	 */
+	public static List<Device> parse(InputStream in) throws XMLStreamException {
+		XMLStreamReader reader;
+		synchronized (FACTORY) {
+			reader = FACTORY.createXMLStreamReader(in, "UTF-8");
+		}
+		return parse(reader);
+	}
+
+	/**
+	 * Parses the device list from the given reader. The reader is not closed.
+	 *
+	 * @param in
+	 *            answer of "getdevicelistinfos"
+	 * @return list of devices, IDs are assigned in document order starting with 1
+	 * @throws XMLStreamException
+	 *             If the answer is no well-formed XML
+	 */
+	public static List<Device> parse(Reader in) throws XMLStreamException {
+		XMLStreamReader reader;
+		synchronized (FACTORY) {
+			reader = FACTORY.createXMLStreamReader(in);
+		}
+		return parse(reader);
+	}
+
+	private static List<Device> parse(XMLStreamReader reader) throws XMLStreamException {
+		List<Device> devices = new ArrayList<Device>();
+		Device device = null;
+		String section = null;
+		int depth = 0;
+		int groupDepth = 0;
+
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+
+					if (groupDepth > 0 || (device == null && ELEMENT_GROUP.equals(name))) {
+						groupDepth++;
+					} else if (device == null) {
+						if (ELEMENT_DEVICE.equals(name)) {
+							device = new Device();
+							device.setAid(reader.getAttributeValue(null, "identifier"));
+							device.setId(devices.size() + 1);
+							device.setType(Type.SOCKET);
+							depth = 0;
+						}
+					} else if (depth == 0 && isSection(name)) {
+						section = name;
+						depth++;
+					} else if (isValue(depth, section, name)) {
+						// consumes the END_ELEMENT as well
+						setValue(device, section, name, reader.getElementText());
+					} else {
+						depth++;
+					}
+
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (groupDepth > 0) {
+						groupDepth--;
+					} else if (device != null) {
+						if (depth == 0) {
+							devices.add(device);
+							device = null;
+						} else if (--depth == 0) {
+							section = null;
+						}
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return devices;
+	}
+
+	private static boolean isSection(String name) {
+		return SECTION_SWITCH.equals(name) || SECTION_POWERMETER.equals(name) || SECTION_TEMPERATURE.equals(name);
+	}
+
+	/**
+	 * Indicates whether the element is a leaf this parser takes a value from.
+	 * Only direct children of &lt;device&gt; and direct children of the known
+	 * sections are considered, nested records (e.g. buttons) have their own names.
+	 */
+	private static boolean isValue(int depth, String section, String name) {
+		if (depth == 0) {
+			return "present".equals(name) || "name".equals(name);
+		}
+		if (depth != 1 || section == null) {
+			return false;
+		}
+		if (SECTION_SWITCH.equals(section)) {
+			return "state".equals(name);
+		}
+		if (SECTION_POWERMETER.equals(section)) {
+			return "power".equals(name) || "energy".equals(name);
+		}
+		return "celsius".equals(name);
+	}
+
+	/**
+	 * Assigns the text of a leaf element to the matching field of the device.
+	 */
+	private static void setValue(Device device, String section, String name, String text) {
+		String value = text.trim();
+		if (value.isEmpty()) {
+			return;
+		}
+
+		try {
+			if (section == null) {
+				if ("present".equals(name)) {
+					device.setConnected("1".equals(value));
+				} else {
+					device.setName(value);
+				}
+			} else if (SECTION_SWITCH.equals(section)) {
+				device.setStatus(Integer.parseInt(value));
+			} else if ("power".equals(name)) {
+				device.setPower(Float.parseFloat(value));
+			} else if ("energy".equals(name)) {
+				device.setEnergy(Float.parseFloat(value));
+			} else {
+				device.setTemperature(Float.parseFloat(value) / 10);
+			}
+		} catch (NumberFormatException e) {
+			// "inval" or similar, the value stays unset
+		}
+	}
+
+	private static final String ELEMENT_DEVICE = "device";
+	private static final String ELEMENT_GROUP = "group";
+	private static final String SECTION_SWITCH = "switch";
+	private static final String SECTION_POWERMETER = "powermeter";
+	private static final String SECTION_TEMPERATURE = "temperature";
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+}
@@ -9,9 +9,9 @@ import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParseException;
 
+import de.hsb.smarthome.util.json.JsonCodec;
 import de.hsb.smarthome.util.json.env.ServiceBroadcast;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
@@ -230,7 +230,7 @@ public class DeviceServiceRegister {
 	private ServiceBroadcast deserializePayload(final String payload) {
 		ServiceBroadcast sb = null;
 		try {
-			sb = new GsonBuilder().create().fromJson(payload, ServiceBroadcast.class);
+			sb = JsonCodec.fromJson(payload, ServiceBroadcast.class);
 		} catch(JsonParseException ex) {
 			return null;
 		}
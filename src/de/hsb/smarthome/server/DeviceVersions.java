@@ -0,0 +1,134 @@
+package de.hsb.smarthome.server;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.hsb.smarthome.server.DeviceInventory.InventoryListener;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Field;
+import de.hsb.smarthome.util.json.Transmission;
+
+/**
+ * Keeps a version per device and field, so a client which sends the version it
+ * has seen last gets only the fields which have changed since then and the IDs
+ * of the removed devices instead of all devices with all their cycles.
+ * <p>
+ * The version is a counter which is incremented on every change. It starts at
+ * the time the server was started in ms, so a version from an earlier run of
+ * the server is older than every version of this run. Clients with such a
+ * version, or with a version older than the removals still remembered, get all
+ * devices again.
+ *
+ */
+public class DeviceVersions implements InventoryListener {
+
+	public DeviceVersions() {
+		mVersion = System.currentTimeMillis();
+		mOldest = mVersion;
+	}
+
+	/**
+	 * @return the version of the latest change
+	 */
+	public synchronized long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Indicates whether the changes since the given version are known.
+	 *
+	 * @param version
+	 *            version the client has seen last
+	 * @return false if the client has to get all devices again
+	 */
+	public synchronized boolean isKnown(long version) {
+		return version >= mOldest && version <= mVersion;
+	}
+
+	/**
+	 * Puts the devices into the answer to a REPORT request together with the
+	 * current version. If the version of the request is known, the answer only
+	 * contains the changes since that version, otherwise all devices.
+	 *
+	 * @param transmissionOut
+	 *            the answer
+	 * @param since
+	 *            version the client has seen last, may be null
+	 * @param devices
+	 *            all devices
+	 */
+	public synchronized void report(Transmission transmissionOut, Long since, List<Device> devices) {
+		transmissionOut.setVersion(mVersion);
+		if (since == null || !isKnown(since)) {
+			transmissionOut.setDevices(devices);
+			return;
+		}
+
+		List<Device> changes = new ArrayList<Device>();
+		for (Device device : devices) {
+			Map<Field, Long> versions = mFields.get(device.getId());
+			if (versions == null) {
+				continue;
+			}
+			EnumSet<Field> changed = EnumSet.noneOf(Field.class);
+			for (Map.Entry<Field, Long> entry : versions.entrySet()) {
+				if (entry.getValue() > since) {
+					changed.add(entry.getKey());
+				}
+			}
+			if (!changed.isEmpty()) {
+				changes.add(Device.createChange(device, changed));
+			}
+		}
+		List<Integer> removed = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Long> entry : mRemoved.entrySet()) {
+			if (entry.getValue() > since) {
+				removed.add(entry.getKey());
+			}
+		}
+		transmissionOut.setChanges(changes);
+		transmissionOut.setRemoved(removed);
+	}
+
+	@Override
+	public synchronized void onDeviceChanged(Device device, EnumSet<Field> fields) {
+		mVersion++;
+		Map<Field, Long> versions = mFields.get(device.getId());
+		if (versions == null) {
+			versions = new EnumMap<Field, Long>(Field.class);
+			mFields.put(device.getId(), versions);
+		}
+		for (Field field : fields) {
+			versions.put(field, mVersion);
+		}
+	}
+
+	@Override
+	public synchronized void onDeviceRemoved(Device device) {
+		mVersion++;
+		mFields.remove(device.getId());
+		mRemoved.put(device.getId(), mVersion);
+
+		// clients which have seen none of the forgotten removals get all devices
+		Iterator<Long> versions = mRemoved.values().iterator();
+		while (mRemoved.size() > MAX_REMOVED) {
+			mOldest = versions.next();
+			versions.remove();
+		}
+	}
+
+	private static final int MAX_REMOVED = 100;
+
+	// per device ID
+	private final Map<Integer, Map<Field, Long>> mFields = new HashMap<Integer, Map<Field, Long>>();
+	// version of the removal per device ID, oldest first
+	private final LinkedHashMap<Integer, Long> mRemoved = new LinkedHashMap<Integer, Long>();
+	private long mVersion;
+	private long mOldest;
+}
@@ -8,8 +8,7 @@ import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.Socket;
 
-import com.google.gson.GsonBuilder;
-
+import de.hsb.smarthome.util.json.JsonCodec;
 import de.hsb.smarthome.util.json.env.TempHumSensor;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
@@ -173,9 +172,7 @@ public class EnvironmentMonitor {
 							while ((line = br.readLine()) != null) {
 								sb.append(line);
 							}
-							final TempHumSensor sensor = new GsonBuilder()
-									.create()
-									.fromJson(sb.toString(), TempHumSensor.class);
+							final TempHumSensor sensor = JsonCodec.fromJson(sb.toString(), TempHumSensor.class);
 							
 							if(sensor != null) {
 								currentTemp = sensor.getTemperature();
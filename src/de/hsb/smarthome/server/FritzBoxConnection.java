@@ -4,43 +4,81 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.List;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import de.hsb.smarthome.util.json.Device;
-import de.hsb.smarthome.util.json.Device.Type;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
 
 /**
- * This class tries an HTTPS_CONNection to the FRITZ!Box and various operations
+ * This class tries an HTTPS connection to the FRITZ!Box and various operations
  * can be performed, such as turn the Socket ON, OFF etc.
- * 
+ * <p>
+ * An instance is bound to one FRITZ!Box and keeps no state between requests,
+ * every request works on its own local variables. Instances can therefore be
+ * shared and used by several threads at the same time, e.g. by the
+ * {@link Scheduler} and the {@link RemoteSocket}.
+ *
  * @author Coulibaly, Ben Inza
  *
  */
 public class FritzBoxConnection {
 
+	/**
+	 * @param remote_gateway
+	 *            IP address of the remote gateway (FRITZ!Box)
+	 */
+	public FritzBoxConnection(String remote_gateway) {
+		this(remote_gateway, FritzBoxConnectionPool.getInstance());
+	}
+
+	/**
+	 * @param remote_gateway
+	 *            IP address of the remote gateway (FRITZ!Box)
+	 * @param pool
+	 *            Pool which provides the HTTPS connections
+	 */
+	public FritzBoxConnection(String remote_gateway, FritzBoxConnectionPool pool) {
+		this("https", remote_gateway, -1, pool);
+	}
+
+	/**
+	 * @param protocol
+	 *            "https", or "http" e.g. for the FRITZ!Box simulator
+	 * @param remote_gateway
+	 *            IP address of the remote gateway (FRITZ!Box)
+	 * @param port
+	 *            Port of the web interface, -1 for the default port
+	 * @param pool
+	 *            Pool which provides the connections
+	 */
+	public FritzBoxConnection(String protocol, String remote_gateway, int port, FritzBoxConnectionPool pool) {
+		PROTOCOL = protocol;
+		REMOTE_GATEWAY = remote_gateway;
+		PORT = port;
+		POOL = pool;
+	}
+
 	/**
 	 * Get a valid Session-ID to prove your Identity and use that to command the
 	 * FRITZ!Box components.
-	 * 
-	 * @param remote_gateway
+	 *
 	 * @param username
 	 * @param password
 	 * @return session id (FRITZ!Box)
@@ -48,53 +86,233 @@ public class FritzBoxConnection {
 	 * @throws ParserConfigurationException
 	 * @throws SAXException
 	 * @throws NoSuchAlgorithmException
-	 * @throws KeyManagementException
 	 */
-	public static String getSessionId(String remote_gateway, String username, String password) throws IOException,
-			ParserConfigurationException, SAXException, NoSuchAlgorithmException, KeyManagementException {
-		url = new URL("https", remote_gateway, "/login_sid.lua");
-		HTTPS_CONN = TrustCertificate.trustCertificate(url);
-		HTTPS_CONN = (HttpsURLConnection) url.openConnection();
-		String webSite = getWebsiteInString();
-		doc = convertStringToDoc(webSite);
+	public String getSessionId(String username, String password)
+			throws IOException, ParserConfigurationException, SAXException, NoSuchAlgorithmException {
+		String webSite = getWebsiteInString(createUrl("/login_sid.lua"));
+		Document doc = convertStringToDoc(webSite);
 		String sid = getValue(doc, "SID");
 
-		if ("0000000000000000".equals(sid)) {
+		if (INVALID_SESSION_ID.equals(sid)) {
 			String challenge = getValue(doc, "Challenge");
 			String response = getResponse(challenge, password);
-			url = new URL("https", remote_gateway, "/login_sid.lua?username=" + username + "&response=" + response);
-			webSite = getWebsiteInString();
+			webSite = getWebsiteInString(createUrl("/login_sid.lua?username=" + username + "&response=" + response));
 			doc = convertStringToDoc(webSite);
 			sid = getValue(doc, "SID");
-			logger.write(new FritzBoxConnection(), "SID = " + sid, LoggerMode.INFO);
+			LOGGER.write(this, "SID = " + sid, LoggerMode.INFO);
 		}
 
 		return sid;
 	}
 
+	/**
+	 * To command the FRITZ!Box component, you need the AIN_Number of the Socket.
+	 *
+	 * @param ain
+	 * @param cmd
+	 * @param sid
+	 * @return answer of the FRITZ!Box
+	 * @throws IOException
+	 */
+	public String sendDeviceCommand(String ain, String cmd, String sid) throws IOException {
+		String str = getWebsiteInString(
+				createUrl("/webservices/homeautoswitch.lua?ain=" + ain + "&switchcmd=" + cmd + "&sid=" + sid));
+		LOGGER.write(this, cmd + " = " + str, LoggerMode.INFO);
+
+		return str;
+	}
+
+	/**
+	 * Asks the FRITZ!Box whether the socket is connected (getswitchpresent).
+	 *
+	 * @param ain
+	 * @param sid
+	 * @return true if the socket is connected, null if the answer is invalid
+	 * @throws IOException
+	 */
+	public Boolean getSwitchPresent(String ain, String sid) throws IOException {
+		Integer present = parseInteger(sendDeviceCommand(ain, CMD_GET_SWITCH_PRESENT, sid));
+		return present != null ? present == 1 : null;
+	}
+
+	/**
+	 * Reads the switch state of the socket (getswitchstate).
+	 *
+	 * @param ain
+	 * @param sid
+	 * @return 1 if switched on, 0 if switched off, null if unknown
+	 * @throws IOException
+	 */
+	public Integer getSwitchState(String ain, String sid) throws IOException {
+		return parseInteger(sendDeviceCommand(ain, CMD_GET_SWITCH_STATE, sid));
+	}
+
+	/**
+	 * Reads the current power of the socket (getswitchpower).
+	 *
+	 * @param ain
+	 * @param sid
+	 * @return power in mW, null if unknown
+	 * @throws IOException
+	 */
+	public Float getSwitchPower(String ain, String sid) throws IOException {
+		return parseFloat(sendDeviceCommand(ain, CMD_GET_SWITCH_POWER, sid));
+	}
+
+	/**
+	 * Reads the energy used by the socket since the first use (getswitchenergy).
+	 *
+	 * @param ain
+	 * @param sid
+	 * @return energy in Wh, null if unknown
+	 * @throws IOException
+	 */
+	public Float getSwitchEnergy(String ain, String sid) throws IOException {
+		return parseFloat(sendDeviceCommand(ain, CMD_GET_SWITCH_ENERGY, sid));
+	}
+
+	/**
+	 * Reads the temperature measured by the socket (gettemperature).
+	 *
+	 * @param ain
+	 * @param sid
+	 * @return temperature in degrees Celsius, null if unknown
+	 * @throws IOException
+	 */
+	public Float getTemperature(String ain, String sid) throws IOException {
+		return parseTemperature(sendDeviceCommand(ain, CMD_GET_TEMPERATURE, sid));
+	}
+
+	/**
+	 * This methode returns a list of all connected devices with the FRITZ!Box.
+	 * The answer is parsed while it is received, see {@link DeviceListParser}.
+	 *
+	 * @param sid
+	 * @return list of devices
+	 * @throws IOException
+	 */
+	public List<Device> getDeviceListInfos(String sid) throws IOException {
+		HttpURLConnection conn = openConnection(
+				createUrl("/webservices/homeautoswitch.lua?switchcmd=getdevicelistinfos&sid=" + sid));
+		List<Device> devices;
+		try {
+			devices = DeviceListParser.parse(conn.getInputStream());
+		} catch (XMLStreamException e) {
+			throw new IOException("Invalid device list received: " + e.getMessage(), e);
+		} finally {
+			FritzBoxConnectionPool.release(conn);
+		}
+		LOGGER.write(this, devices.toString(), LoggerMode.INFO);
+
+		return devices;
+	}
+
+	/**
+	 * Log-out successfull from the FRITZ!Box.
+	 *
+	 * @param sid
+	 * @throws IOException
+	 */
+	public void logout(String sid) throws IOException {
+		URL url = createUrl("/login.lua?page=/home/home.lua&logout=1&sid=" + sid);
+		HttpURLConnection conn = POOL.openConnection(url);
+		int responseCode = conn.getResponseCode();
+		FritzBoxConnectionPool.release(conn);
+
+		if (responseCode == 200)
+			LOGGER.write(this, "log-out successfull with responseCode = " + responseCode, LoggerMode.INFO);
+		else
+			LOGGER.write(this, "log-out failled with responseeCode = " + responseCode, LoggerMode.INFO);
+
+		LOGGER.write(this, "connection statistics: " + POOL, LoggerMode.TRACE);
+	}
+
+	/**
+	 * @return IP address of the FRITZ!Box this connection is bound to
+	 */
+	public String getRemoteGateway() {
+		return REMOTE_GATEWAY;
+	}
+
+	/**
+	 * @deprecated Use an instance and {@link #getSessionId(String, String)}
+	 */
+	@Deprecated
+	public static String getSessionId(String remote_gateway, String username, String password) throws IOException,
+			ParserConfigurationException, SAXException, NoSuchAlgorithmException, KeyManagementException {
+		return new FritzBoxConnection(remote_gateway).getSessionId(username, password);
+	}
+
+	/**
+	 * @deprecated Use an instance and
+	 *             {@link #sendDeviceCommand(String, String, String)}
+	 */
+	@Deprecated
+	public static String sendDeviceCommand(String remote_gateway, String ain, String cmd, String sid)
+			throws IOException, ParserConfigurationException, SAXException {
+		return new FritzBoxConnection(remote_gateway).sendDeviceCommand(ain, cmd, sid);
+	}
+
+	/**
+	 * @deprecated Use an instance and {@link #getDeviceListInfos(String)}
+	 */
+	@Deprecated
+	public static List<Device> getDeviceListInfos(String remote_gateway, String sid) throws IOException {
+		return new FritzBoxConnection(remote_gateway).getDeviceListInfos(sid);
+	}
+
+	/**
+	 * @deprecated Use an instance and {@link #logout(String)}
+	 */
+	@Deprecated
+	public static void logout(String remote_gateway, String sid) throws IOException {
+		new FritzBoxConnection(remote_gateway).logout(sid);
+	}
+
 	/**
 	 * Reads any web page, saves it to a string and returns it.
-	 * 
+	 *
+	 * @param url
 	 * @return web page as String
 	 * @throws IOException
 	 */
-	private static String getWebsiteInString() throws IOException {
-		HTTPS_CONN = (HttpsURLConnection) url.openConnection();
-		BufferedReader in = new BufferedReader(new InputStreamReader(HTTPS_CONN.getInputStream()));
+	private String getWebsiteInString(URL url) throws IOException {
+		HttpURLConnection conn = openConnection(url);
+		BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
 		String inputLine;
-		StringBuffer respon = new StringBuffer();
+		StringBuilder respon = new StringBuilder();
 
 		while ((inputLine = in.readLine()) != null) {
 			respon.append(inputLine);
 		}
 		in.close();
-		inputLine = respon.toString();
-		return inputLine;
+		return respon.toString();
+	}
+
+	private URL createUrl(String file) throws MalformedURLException {
+		return new URL(PROTOCOL, REMOTE_GATEWAY, PORT, file);
+	}
+
+	/**
+	 * Opens a connection from the pool and checks that the FRITZ!Box accepted the
+	 * session id.
+	 *
+	 * @param url
+	 * @return connection with a readable response
+	 * @throws IOException
+	 */
+	private HttpURLConnection openConnection(URL url) throws IOException {
+		HttpURLConnection conn = POOL.openConnection(url);
+		if (conn.getResponseCode() == HttpURLConnection.HTTP_FORBIDDEN) {
+			FritzBoxConnectionPool.release(conn);
+			throw new InvalidSessionException("FRITZ!Box rejected the session id (" + url.getPath() + ")");
+		}
+		return conn;
 	}
 
 	/**
 	 * Build a string into a DOM document and return it.
-	 * 
+	 *
 	 * @param str
 	 * @return DOM document
 	 * @throws ParserConfigurationException
@@ -106,7 +324,7 @@ public class FritzBoxConnection {
 
 		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
 		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-		doc = dBuilder.parse(new InputSource(new StringReader(str)));
+		Document doc = dBuilder.parse(new InputSource(new StringReader(str)));
 		doc.normalizeDocument();
 
 		return doc;
@@ -114,7 +332,7 @@ public class FritzBoxConnection {
 
 	/**
 	 * This method returns a HASH-CODE>250 in string.
-	 * 
+	 *
 	 * @param input
 	 * @return MD5 hash
 	 * @throws NoSuchAlgorithmException
@@ -124,7 +342,7 @@ public class FritzBoxConnection {
 		MessageDigest md5 = MessageDigest.getInstance("MD5");
 		byte[] data = md5.digest(input.getBytes("UTF-16LE"));
 
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < data.length; i++) {
 			sb.append(Integer.toHexString((data[i] & 0xFF) | 0x100).substring(1, 3));
 		}
@@ -133,21 +351,25 @@ public class FritzBoxConnection {
 
 	/**
 	 * Get the value of any element in a DOM document
-	 * 
+	 *
 	 * @param doc
 	 * @param name
 	 * @return element value
+	 * @throws IOException
+	 *             If the document has no such element
 	 */
-	private static String getValue(Document doc, String name) {
-		String info;
-		info = doc.getElementsByTagName(name).item(0).getTextContent();
-		return info;
+	private static String getValue(Document doc, String name) throws IOException {
+		Node node = doc.getElementsByTagName(name).item(0);
+		if (node == null) {
+			throw new IOException("Unexpected answer of the FRITZ!Box, no element " + name);
+		}
+		return node.getTextContent();
 	}
 
 	/**
-	 * Get a valid response value for the HTTPS_CONN to FRITZ!Box and get a valid
-	 * SID.
-	 * 
+	 * Get a valid response value for the HTTPS connection to FRITZ!Box and get a
+	 * valid SID.
+	 *
 	 * @param challenge
 	 * @param password
 	 * @return response value
@@ -156,111 +378,68 @@ public class FritzBoxConnection {
 	 */
 	private static String getResponse(String challenge, String password) throws NoSuchAlgorithmException, IOException {
 		String getMD5 = getMD5Hash(challenge + "-" + password);
-		String responseValue = challenge + "-" + getMD5;
-		return responseValue;
+		return challenge + "-" + getMD5;
 	}
 
 	/**
-	 * To command the FRITZ!Box component, you need the AIN_Number of the Socket.
-	 * 
-	 * @param remote_gateway
-	 * @param ain
-	 * @param cmd
-	 * @param sid
-	 * @return
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
+	 * Parses the plain text answer of a per-AIN command. The FRITZ!Box answers
+	 * "inval" if the value is not known, e.g. while the socket is not connected.
+	 *
+	 * @param answer
+	 * @return value, or null if the answer is invalid
 	 */
-	public static String sendDeviceCommand(String remote_gateway, String ain, String cmd, String sid)
-			throws IOException, ParserConfigurationException, SAXException {
-		String str = "";
-		url = new URL("https", remote_gateway,
-				"/webservices/homeautoswitch.lua?ain=" + ain + "&switchcmd=" + cmd + "&sid=" + sid);
-		str = getWebsiteInString();
-		logger.write(new FritzBoxConnection(), cmd + " = " + str, LoggerMode.INFO);
-
-		return str;
+	static Integer parseInteger(String answer) {
+		try {
+			return answer != null ? Integer.valueOf(answer.trim()) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
 	}
 
 	/**
-	 * This methode returns a list of all connected devices with the FRITZ!Box.
-	 * 
-	 * @param remote_gateway
-	 * @param sid
-	 * @return
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
+	 * @see #parseInteger(String)
 	 */
-	private static List<Device> setDeviceListInfos(String remote_gateway, String sid)
-			throws IOException, ParserConfigurationException, SAXException {
-		url = new URL("https", remote_gateway,
-				"/webservices/homeautoswitch.lua?switchcmd=getdevicelistinfos&sid=" + sid);
-
-		String s = getWebsiteInString();
-		doc = convertStringToDoc(s);
-		Device tmp = new Device();
-
-		NodeList rootDevices = doc.getElementsByTagName("device");
-
-		for (int i = 0; i < rootDevices.getLength(); ++i) {
-			NodeList deviceChilds = rootDevices.item(i).getChildNodes();
-
-			tmp.setAid(((Element) rootDevices.item(i)).getAttribute("identifier").toString());
-			tmp.setTemperature(Float.parseFloat(deviceChilds.item(4).getChildNodes().item(0).getTextContent()) / 10);
-			tmp.setPower(Float.parseFloat(deviceChilds.item(3).getChildNodes().item(0).getTextContent()));
-			tmp.setEnergy(Float.parseFloat(deviceChilds.item(3).getChildNodes().item(1).getTextContent()));
-			tmp.setStatus(Integer.parseInt(deviceChilds.item(2).getChildNodes().item(0).getTextContent()));
-			tmp.setId(i + 1);
-			tmp.setConnected(true);
-			tmp.setType(Type.SOCKET);
-			tmp.setName(getValue(doc, "name"));
-			myList.add(tmp);
-			logger.write(new FritzBoxConnection(), myList.toString(), LoggerMode.INFO);
+	static Float parseFloat(String answer) {
+		try {
+			return answer != null ? Float.valueOf(answer.trim()) : null;
+		} catch (NumberFormatException e) {
+			return null;
 		}
-
-		return myList;
 	}
 
 	/**
-	 * This methode returns a list of all connected devices with the FRITZ!Box.
-	 * 
-	 * @param remote_gateway
-	 * @param sid
-	 * @return
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
+	 * The temperature is sent in 0.1 degrees Celsius.
+	 *
+	 * @see #parseInteger(String)
 	 */
-	public static List<Device> getDeviceListInfos(String remote_gateway, String sid)
-			throws IOException, ParserConfigurationException, SAXException {
-		return myList = setDeviceListInfos(remote_gateway, sid);
+	static Float parseTemperature(String answer) {
+		Float value = parseFloat(answer);
+		return value != null ? value / 10 : null;
 	}
 
+	public static final String INVALID_SESSION_ID = "0000000000000000";
+	public static final String CMD_GET_SWITCH_PRESENT = "getswitchpresent";
+	public static final String CMD_GET_SWITCH_STATE = "getswitchstate";
+	public static final String CMD_GET_SWITCH_POWER = "getswitchpower";
+	public static final String CMD_GET_SWITCH_ENERGY = "getswitchenergy";
+	public static final String CMD_GET_TEMPERATURE = "gettemperature";
+
+	private final String PROTOCOL;
+	private final String REMOTE_GATEWAY;
+	private final int PORT;
+	private final FritzBoxConnectionPool POOL;
+	private final Logger LOGGER = Logger.getLogger();
+
 	/**
-	 * Log-out successfull from the FRITZ!Box.
-	 * 
-	 * @param remote_gateway
-	 * @param sid
-	 * @throws IOException
+	 * Thrown when the FRITZ!Box answers a request with "403 Forbidden", i.e. the
+	 * session id used for the request is unknown or has expired.
 	 */
-	public static void logout(String remote_gateway, String sid) throws IOException {
-		url = new URL("https", remote_gateway, "/login.lua?page=/home/home.lua&logout=1&sid=" + sid);
-		HTTPS_CONN = (HttpsURLConnection) url.openConnection();
-		int responseCode = HTTPS_CONN.getResponseCode();
+	public static class InvalidSessionException extends IOException {
 
-		if (responseCode == 200)
-			logger.write(new FritzBoxConnection(), "log-out successfull with responseCode = " + responseCode,
-					LoggerMode.INFO);
-		else
-			logger.write(new FritzBoxConnection(), "log-out failled with responseeCode = " + responseCode,
-					LoggerMode.INFO);
-	}
+		public InvalidSessionException(String msg) {
+			super(msg);
+		}
 
-	private static HttpsURLConnection HTTPS_CONN;
-	private static URL url;
-	private static List<Device> myList = new ArrayList<>();
-	private final static Logger logger = Logger.getLogger();
-	private static Document doc;
-}
\ No newline at end of file
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,267 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Hands out HTTPS connections to the FRITZ!Box which all share one configured
+ * SSLContext. Because the same socket factory is used for every request, the
+ * JDK keeps the underlying TCP/TLS connection alive between requests and
+ * resumes TLS sessions when a new connection has to be opened. This saves the
+ * full handshake on the slow GPRS/VPN link. The socket factory counts the
+ * connections and handshakes, so the counters show how often an existing
+ * connection could be reused.
+ * <p>
+ * Connections are only returned to the keep-alive cache when their response
+ * has been read completely and the stream was closed, see
+ * {@link #release(HttpURLConnection)}.
+ * <p>
+ * Plain HTTP URLs are supported as well (e.g. for the FRITZ!Box simulator).
+ * The JDK opens their sockets without a socket factory, so their connections
+ * cannot be counted. They are counted as requests of their own and left out of
+ * the connection and reuse counters.
+ *
+ */
+public class FritzBoxConnectionPool {
+
+	/**
+	 * Creates a pool with the default timeouts.
+	 */
+	public FritzBoxConnectionPool() {
+		this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            Time in ms to wait for a new connection to the FRITZ!Box
+	 * @param readTimeout
+	 *            Time in ms to wait for an answer of the FRITZ!Box
+	 */
+	public FritzBoxConnectionPool(int connectTimeout, int readTimeout) {
+		CONNECT_TIMEOUT_MS = connectTimeout;
+		READ_TIMEOUT_MS = readTimeout;
+	}
+
+	/**
+	 * Returns the pool shared by all FRITZ!Box connections of this process.
+	 *
+	 * @return shared FritzBoxConnectionPool
+	 */
+	public synchronized static FritzBoxConnectionPool getInstance() {
+		if (pool == null) {
+			pool = new FritzBoxConnectionPool();
+		}
+		return pool;
+	}
+
+	/**
+	 * Opens a connection to the given URL. An idle keep-alive connection to the
+	 * FRITZ!Box is reused if available.
+	 *
+	 * @param url
+	 *            URL on the FRITZ!Box
+	 * @return connection configured for the FRITZ!Box
+	 * @throws IOException
+	 */
+	public HttpURLConnection openConnection(URL url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		if (conn instanceof HttpsURLConnection) {
+			((HttpsURLConnection) conn).setSSLSocketFactory(getSocketFactory());
+			((HttpsURLConnection) conn).setHostnameVerifier(TrustCertificate.getHostnameVerifier());
+			mRequests.incrementAndGet();
+		} else {
+			mPlainRequests.incrementAndGet();
+		}
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		conn.setReadTimeout(READ_TIMEOUT_MS);
+		conn.setRequestProperty("Connection", "keep-alive");
+		return conn;
+	}
+
+	/**
+	 * Reads the rest of the response and closes the stream, so that the
+	 * connection goes back into the keep-alive cache instead of being closed.
+	 *
+	 * @param conn
+	 *            connection whose response is no longer needed
+	 */
+	public static void release(HttpURLConnection conn) {
+		InputStream in = null;
+		try {
+			in = conn.getInputStream();
+		} catch (IOException e) {
+			in = conn.getErrorStream();
+		}
+		if (in == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[512];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+			in.close();
+		} catch (IOException e) {
+			// connection is not reusable, the JDK drops it
+		}
+	}
+
+	/**
+	 * @return number of HTTPS requests sent through this pool
+	 */
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/**
+	 * @return number of plain HTTP requests sent through this pool
+	 */
+	public long getPlainRequestCount() {
+		return mPlainRequests.get();
+	}
+
+	/**
+	 * @return number of HTTPS connections opened to the FRITZ!Box
+	 */
+	public long getConnectionCount() {
+		return mConnections.get();
+	}
+
+	/**
+	 * @return number of HTTPS requests served by an already open connection
+	 */
+	public long getReusedConnectionCount() {
+		return Math.max(0, mRequests.get() - mConnections.get());
+	}
+
+	/**
+	 * Counts full and abbreviated handshakes alike, the JDK does not tell them
+	 * apart in a way which also holds for TLS 1.3.
+	 *
+	 * @return number of completed TLS handshakes
+	 */
+	public long getHandshakeCount() {
+		return mHandshakes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + getRequestCount() + ", connections=" + getConnectionCount() + ", reused="
+				+ getReusedConnectionCount() + ", handshakes=" + getHandshakeCount() + ", http requests="
+				+ getPlainRequestCount();
+	}
+
+	private synchronized SSLSocketFactory getSocketFactory() throws IOException {
+		if (mSocketFactory == null) {
+			try {
+				SSLContext ctx = TrustCertificate.createSSLContext();
+				ctx.getClientSessionContext().setSessionTimeout(SESSION_CACHE_TIMEOUT_S);
+				mSocketFactory = new CountingSocketFactory(ctx.getSocketFactory());
+			} catch (GeneralSecurityException e) {
+				LOGGER.write(this, "TLS context could not be created: " + e.getMessage(), LoggerMode.ERROR);
+				throw new IOException("TLS context could not be created", e);
+			}
+		}
+		return mSocketFactory;
+	}
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+	private static final int SESSION_CACHE_TIMEOUT_S = 60 * 60;
+
+	private static FritzBoxConnectionPool pool;
+
+	private final int CONNECT_TIMEOUT_MS;
+	private final int READ_TIMEOUT_MS;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mPlainRequests = new AtomicLong();
+	private final AtomicLong mConnections = new AtomicLong();
+	private final AtomicLong mHandshakes = new AtomicLong();
+	private SSLSocketFactory mSocketFactory;
+
+	/**
+	 * Delegates to the socket factory of the shared SSLContext and counts new
+	 * connections and completed handshakes.
+	 *
+	 */
+	private class CountingSocketFactory extends SSLSocketFactory implements HandshakeCompletedListener {
+
+		private CountingSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return track(delegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return track(delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return track(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return track(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return track(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return track(delegate.createSocket(address, port, localAddress, localPort));
+		}
+
+		@Override
+		public void handshakeCompleted(HandshakeCompletedEvent event) {
+			mHandshakes.incrementAndGet();
+		}
+
+		private Socket track(Socket socket) {
+			mConnections.incrementAndGet();
+			if (socket instanceof SSLSocket) {
+				((SSLSocket) socket).addHandshakeCompletedListener(this);
+			}
+			return socket;
+		}
+
+		private final SSLSocketFactory delegate;
+	}
+}
@@ -0,0 +1,380 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import de.hsb.smarthome.server.FritzBoxConnection.InvalidSessionException;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Type;
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Keeps one FRITZ!Box session alive and shares it between all callers. The
+ * session id is obtained lazily on first use, reused for every following
+ * command and only renewed when it has been idle for longer than the validity
+ * window or when the FRITZ!Box rejects it (HTTP 403). In the normal case a
+ * command therefore costs exactly one request to the FRITZ!Box.
+ * <p>
+ * Only the login is serialized, commands run concurrently on the shared
+ * session id.
+ * <p>
+ * All requests pass a {@link CircuitBreaker}. Failed requests are repeated
+ * with a jittered exponential backoff instead of back to back, and while the
+ * FRITZ!Box does not answer at all they fail immediately with
+ * {@link CircuitBreaker.OpenException}.
+ *
+ */
+public class FritzBoxSession {
+
+	/**
+	 * @param remote_gateway
+	 *            IP address of the remote gateway (FRITZ!Box)
+	 * @param username
+	 *            Username for the FRITZ!Box
+	 * @param password
+	 *            Password for the FRITZ!Box
+	 */
+	public FritzBoxSession(String remote_gateway, String username, String password) {
+		this(remote_gateway, username, password, DEFAULT_VALIDITY_MS);
+	}
+
+	/**
+	 * @param remote_gateway
+	 *            IP address of the remote gateway (FRITZ!Box)
+	 * @param username
+	 *            Username for the FRITZ!Box
+	 * @param password
+	 *            Password for the FRITZ!Box
+	 * @param validity
+	 *            Time in ms a session id is considered valid after its last use
+	 */
+	public FritzBoxSession(String remote_gateway, String username, String password, long validity) {
+		this(new FritzBoxConnection(remote_gateway), username, password, validity);
+	}
+
+	/**
+	 * @param connection
+	 *            Connection to the FRITZ!Box
+	 * @param username
+	 *            Username for the FRITZ!Box
+	 * @param password
+	 *            Password for the FRITZ!Box
+	 * @param validity
+	 *            Time in ms a session id is considered valid after its last use
+	 */
+	public FritzBoxSession(FritzBoxConnection connection, String username, String password, long validity) {
+		this(connection, username, password, validity, new CircuitBreaker(connection.getRemoteGateway(),
+				CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_OPEN_TIME_MS));
+	}
+
+	/**
+	 * @param connection
+	 *            Connection to the FRITZ!Box
+	 * @param username
+	 *            Username for the FRITZ!Box
+	 * @param password
+	 *            Password for the FRITZ!Box
+	 * @param validity
+	 *            Time in ms a session id is considered valid after its last use
+	 * @param breaker
+	 *            Circuit breaker of the FRITZ!Box
+	 */
+	public FritzBoxSession(FritzBoxConnection connection, String username, String password, long validity,
+			CircuitBreaker breaker) {
+		CONNECTION = connection;
+		USERNAME = username;
+		PASSWORD = password;
+		VALIDITY_MS = validity;
+		BREAKER = breaker;
+	}
+
+	/**
+	 * Returns the current session id. A new login is only performed if there is
+	 * no session yet or the cached one has not been used within the validity
+	 * window.
+	 *
+	 * @return valid session id
+	 * @throws IOException
+	 *             If no valid session id could be obtained, or
+	 *             {@link CircuitBreaker.OpenException} while the FRITZ!Box is
+	 *             considered unreachable
+	 */
+	public String getSessionId() throws IOException {
+		return execute(new Request<String>() {
+			@Override
+			public String execute(String sid) {
+				return sid;
+			}
+		}, true);
+	}
+
+	/**
+	 * Indicates whether a session id is cached and still inside its validity
+	 * window. The FRITZ!Box itself has the final say, a session may still be
+	 * rejected and is then renewed on the next command.
+	 *
+	 * @return true if a cached session id can be used
+	 */
+	public synchronized boolean isValid() {
+		return mSessionId != null && (System.currentTimeMillis() - mLastUse) < VALIDITY_MS;
+	}
+
+	/**
+	 * Drops the cached session id, if it is still the given one. The next command
+	 * will perform a new login.
+	 *
+	 * @param sid
+	 *            session id which was rejected by the FRITZ!Box
+	 */
+	public synchronized void invalidate(String sid) {
+		if (sid != null && sid.equals(mSessionId)) {
+			LOGGER.write(this, "FRITZ!Box session is no longer valid", LoggerMode.INFO);
+			mSessionId = null;
+		}
+	}
+
+	/**
+	 * Logs in if there is no valid session id. A login which is refused by the
+	 * FRITZ!Box is repeated with an exponential, jittered backoff and then fails
+	 * with a {@link LoginRefusedException}. Transport errors are not repeated
+	 * here, they are counted by the circuit breaker.
+	 * <p>
+	 * Only the attempts are serialized, the backoff is waited without holding
+	 * the lock, so other callers are not blocked by it.
+	 */
+	private String login() throws IOException {
+		for (int i = 0; i < LOGIN_ATTEMPTS; i++) {
+			if (i > 0 && !LOGIN_BACKOFF.sleep(i - 1)) {
+				break;
+			}
+			synchronized (this) {
+				// another caller may have logged in meanwhile
+				if (isValid()) {
+					return mSessionId;
+				}
+				String sessionId;
+				try {
+					sessionId = CONNECTION.getSessionId(USERNAME, PASSWORD);
+				} catch (NoSuchAlgorithmException | ParserConfigurationException | SAXException e) {
+					throw new IOException("Login to the FRITZ!Box failed: " + e.getMessage(), e);
+				}
+				if (!FritzBoxConnection.INVALID_SESSION_ID.equals(sessionId)) {
+					mSessionId = sessionId;
+					mLastUse = System.currentTimeMillis();
+					mLogins++;
+					LOGGER.write(this, "New FRITZ!Box session established (login #" + mLogins + ")",
+							LoggerMode.INFO);
+					return mSessionId;
+				}
+			}
+		}
+		throw new LoginRefusedException("Login to the FRITZ!Box failed, no valid session id received");
+	}
+
+	/**
+	 * Sends a switch command to the socket with the given AIN using the shared
+	 * session.
+	 *
+	 * @param ain
+	 *            AIN of the socket
+	 * @param cmd
+	 *            Command, e.g. "setswitchon"
+	 * @return answer of the FRITZ!Box
+	 * @throws IOException
+	 */
+	public String sendDeviceCommand(final String ain, final String cmd) throws IOException {
+		// a toggle which timed out may have been executed, repeating it could undo it
+		return execute(new Request<String>() {
+			@Override
+			public String execute(String sid) throws IOException {
+				return CONNECTION.sendDeviceCommand(ain, cmd, sid);
+			}
+		}, !CMD_SWITCH_TOGGLE.equals(cmd));
+	}
+
+	/**
+	 * Reads the current state of a single socket with the per-AIN commands of the
+	 * FRITZ!Box. Each answer is only a few bytes, which is much cheaper than the
+	 * whole device list when only one socket is of interest. Values which are not
+	 * known are left null, a socket which is not connected is only asked for its
+	 * presence.
+	 *
+	 * @param ain
+	 *            AIN of the socket
+	 * @return device with AIN, connection, status, power, energy and temperature
+	 * @throws IOException
+	 */
+	public Device pollDevice(String ain) throws IOException {
+		Device device = new Device();
+		device.setAid(ain);
+		device.setType(Type.SOCKET);
+
+		Integer present = FritzBoxConnection
+				.parseInteger(sendDeviceCommand(ain, FritzBoxConnection.CMD_GET_SWITCH_PRESENT));
+		device.setConnected(present != null && present == 1);
+		if (!device.isConnected()) {
+			return device;
+		}
+
+		Integer state = FritzBoxConnection
+				.parseInteger(sendDeviceCommand(ain, FritzBoxConnection.CMD_GET_SWITCH_STATE));
+		device.setStatus(state != null ? state : 0);
+		device.setPower(
+				FritzBoxConnection.parseFloat(sendDeviceCommand(ain, FritzBoxConnection.CMD_GET_SWITCH_POWER)));
+		device.setEnergy(
+				FritzBoxConnection.parseFloat(sendDeviceCommand(ain, FritzBoxConnection.CMD_GET_SWITCH_ENERGY)));
+		device.setTemperature(
+				FritzBoxConnection.parseTemperature(sendDeviceCommand(ain, FritzBoxConnection.CMD_GET_TEMPERATURE)));
+		return device;
+	}
+
+	/**
+	 * Returns a list of all devices connected with the FRITZ!Box using the shared
+	 * session.
+	 *
+	 * @return list of devices
+	 * @throws IOException
+	 */
+	public List<Device> getDeviceListInfos() throws IOException {
+		return execute(new Request<List<Device>>() {
+			@Override
+			public List<Device> execute(String sid) throws IOException {
+				return CONNECTION.getDeviceListInfos(sid);
+			}
+		}, true);
+	}
+
+	/**
+	 * Ends the shared session on the FRITZ!Box. Should only be called when the
+	 * connection to the FRITZ!Box is torn down, e.g. before the VPN is closed.
+	 */
+	public synchronized void logout() {
+		if (mSessionId == null || BREAKER.isOpen()) {
+			mSessionId = null;
+			return;
+		}
+		try {
+			CONNECTION.logout(mSessionId);
+		} catch (IOException e) {
+			LOGGER.write(this, "Log-out from the FRITZ!Box failed: " + e.getMessage(), LoggerMode.WARN);
+		}
+		mSessionId = null;
+	}
+
+	/**
+	 * @return number of logins performed by this session manager
+	 */
+	public synchronized int getLoginCount() {
+		return mLogins;
+	}
+
+	/**
+	 * @return connection to the FRITZ!Box used by this session
+	 */
+	public FritzBoxConnection getConnection() {
+		return CONNECTION;
+	}
+
+	/**
+	 * @return circuit breaker which guards the requests to the FRITZ!Box
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return BREAKER;
+	}
+
+	/**
+	 * Sends a request with the shared session id. A rejected session id is
+	 * renewed once. Requests which failed because the FRITZ!Box did not answer
+	 * are repeated with an exponential, jittered backoff if they are idempotent,
+	 * as long as the circuit breaker allows it. A refused login is neither
+	 * repeated nor counted as a failure, the FRITZ!Box did answer.
+	 */
+	private <T> T execute(Request<T> request, boolean idempotent) throws IOException {
+		int retries = idempotent ? MAX_RETRIES : 0;
+		for (int attempt = 0;; attempt++) {
+			BREAKER.acquire();
+			try {
+				T result = send(request);
+				BREAKER.onSuccess();
+				return result;
+			} catch (InvalidSessionException | LoginRefusedException e) {
+				// the FRITZ!Box answered, it only refused the session or the login
+				BREAKER.onSuccess();
+				throw e;
+			} catch (IOException e) {
+				BREAKER.onFailure();
+				if (attempt >= retries || BREAKER.isOpen() || !RETRY_BACKOFF.sleep(attempt)) {
+					throw e;
+				}
+				LOGGER.write(this, "FRITZ!Box request failed, retry #" + (attempt + 1) + ": " + e.getMessage(),
+						LoggerMode.WARN);
+			} catch (RuntimeException e) {
+				// also ends a half-open trial, the breaker would reject every request otherwise
+				BREAKER.onFailure();
+				throw e;
+			}
+		}
+	}
+
+	private <T> T send(Request<T> request) throws IOException {
+		String sid = login();
+		try {
+			T result = request.execute(sid);
+			touch();
+			return result;
+		} catch (InvalidSessionException e) {
+			invalidate(sid);
+			T result = request.execute(login());
+			touch();
+			return result;
+		}
+	}
+
+	private void touch() {
+		mLastUse = System.currentTimeMillis();
+	}
+
+	private interface Request<T> {
+		T execute(String sid) throws IOException;
+	}
+
+	/**
+	 * Thrown when the FRITZ!Box answered every login attempt without a valid
+	 * session id, e.g. because of a wrong username or password.
+	 */
+	public static class LoginRefusedException extends IOException {
+
+		public LoginRefusedException(String msg) {
+			super(msg);
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	// AVM documents 60 minutes without use for current FRITZ!OS versions and 10
+	// minutes for older ones, the shorter one holds for every box; a session
+	// dropped earlier, e.g. by a reboot, is renewed after the 403
+	public static final long DEFAULT_VALIDITY_MS = 1000 * 60 * 10;
+	private static final int LOGIN_ATTEMPTS = 3;
+	private static final int MAX_RETRIES = 2;
+	private static final String CMD_SWITCH_TOGGLE = "setswitchtoggle";
+	private static final Backoff LOGIN_BACKOFF = new Backoff(1000, 8000);
+	private static final Backoff RETRY_BACKOFF = new Backoff(500, 4000);
+
+	private final FritzBoxConnection CONNECTION;
+	private final String USERNAME;
+	private final String PASSWORD;
+	private final long VALIDITY_MS;
+	private final CircuitBreaker BREAKER;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private volatile String mSessionId;
+	private volatile long mLastUse;
+	private int mLogins;
+}
@@ -0,0 +1,96 @@
+package de.hsb.smarthome.server;
+
+import de.hsb.smarthome.util.json.Device;
+
+/**
+ * One FRITZ!Box of the remote side together with everything which belongs to
+ * it: the session with its own connection pool and circuit breaker, the
+ * inventory of its devices and the queue of its switch commands. A gateway
+ * which does not answer therefore never delays the others.
+ *
+ */
+public class Gateway {
+
+	/**
+	 * @param name
+	 *            Name of the gateway from the configuration, e.g. "main"
+	 * @param session
+	 *            Session to the FRITZ!Box
+	 * @param inventory
+	 *            Inventory of the devices of the FRITZ!Box
+	 * @param queue
+	 *            Queue of the switch commands for the FRITZ!Box
+	 */
+	public Gateway(String name, FritzBoxSession session, DeviceInventory inventory, SwitchQueue queue) {
+		NAME = name;
+		SESSION = session;
+		INVENTORY = inventory;
+		QUEUE = queue;
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	public FritzBoxSession getSession() {
+		return SESSION;
+	}
+
+	public DeviceInventory getInventory() {
+		return INVENTORY;
+	}
+
+	public SwitchQueue getSwitchQueue() {
+		return QUEUE;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return SESSION.getCircuitBreaker();
+	}
+
+	/**
+	 * @param id
+	 *            ID of the device
+	 * @return true if the device belongs to this gateway
+	 */
+	public boolean contains(int id) {
+		for (Device device : INVENTORY.getDevices()) {
+			if (device.getId() == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param ain
+	 *            AIN of the actor
+	 * @return true if the actor belongs to this gateway
+	 */
+	public boolean contains(String ain) {
+		for (Device device : INVENTORY.getDevices()) {
+			if (ain.equals(device.getAid())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the background refresh and the switch queue.
+	 */
+	public void shutdown() {
+		INVENTORY.stopBackgroundRefresh();
+		QUEUE.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return NAME + " (" + SESSION.getConnection().getRemoteGateway() + ")";
+	}
+
+	private final String NAME;
+	private final FritzBoxSession SESSION;
+	private final DeviceInventory INVENTORY;
+	private final SwitchQueue QUEUE;
+}
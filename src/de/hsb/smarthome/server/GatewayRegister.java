@@ -0,0 +1,277 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hsb.smarthome.server.SwitchQueue.Command;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Register of all FRITZ!Boxes of the remote side. The devices of all gateways
+ * share one ID space, so the {@link RemoteSocket} and the {@link Scheduler}
+ * work with a single merged device list and do not need to know which gateway
+ * a device belongs to. Commands are routed to the gateway of the actor by its
+ * AIN.
+ *
+ */
+public class GatewayRegister {
+
+	/**
+	 * @param gateways
+	 *            All gateways, the first one is the primary gateway
+	 */
+	public GatewayRegister(List<Gateway> gateways) {
+		GATEWAYS = Collections.unmodifiableList(new ArrayList<Gateway>(gateways));
+		EXECUTOR = Executors.newFixedThreadPool(Math.max(1, GATEWAYS.size()), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GatewayRegister-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public List<Gateway> getGateways() {
+		return GATEWAYS;
+	}
+
+	/**
+	 * @return the devices of all gateways, in the order of the gateways
+	 */
+	public List<Device> getDevices() {
+		List<Device> devices = new ArrayList<Device>();
+		for (Gateway gateway : GATEWAYS) {
+			devices.addAll(gateway.getInventory().getDevices());
+		}
+		return devices;
+	}
+
+	/**
+	 * Returns the device with the given ID. The entry is only fetched from its
+	 * gateway if it is older than the maximum age.
+	 *
+	 * @param id
+	 *            ID of the device
+	 * @return the device, or null if it is not known
+	 */
+	public Device getDevice(int id) {
+		Gateway gateway = getGateway(id);
+		return gateway != null ? gateway.getInventory().getDevice(id) : null;
+	}
+
+	/**
+	 * @param id
+	 *            ID of the device
+	 * @return the gateway of the device, or null if it is not known
+	 */
+	public Gateway getGateway(int id) {
+		for (Gateway gateway : GATEWAYS) {
+			if (gateway.contains(id)) {
+				return gateway;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param ain
+	 *            AIN of the actor
+	 * @return the gateway of the actor, or null if it is not known
+	 */
+	public Gateway getGateway(String ain) {
+		for (Gateway gateway : GATEWAYS) {
+			if (gateway.contains(ain)) {
+				return gateway;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Indicates whether the entry is older than the maximum age of its gateway.
+	 *
+	 * @param device
+	 * @return true if the device has to be fetched again
+	 */
+	public boolean isStale(Device device) {
+		Gateway gateway = getGateway(device.getId());
+		return gateway == null || gateway.getInventory().isStale(device);
+	}
+
+	/**
+	 * Refreshes the inventories of all gateways. The first refresh runs in the
+	 * order of the gateways, so the devices get the same IDs on every start.
+	 * Later refreshes run in parallel, a slow gateway does not delay the others.
+	 */
+	public void refresh() {
+		if (!mRefreshed) {
+			for (Gateway gateway : GATEWAYS) {
+				gateway.getInventory().refresh();
+			}
+			mRefreshed = true;
+			return;
+		}
+
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (final Gateway gateway : GATEWAYS) {
+			futures.add(CompletableFuture.runAsync(() -> gateway.getInventory().refresh(), EXECUTOR));
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+		} catch (CompletionException e) {
+			LOGGER.write(this, "Refresh failed: " + e.getCause(), LoggerMode.WARN);
+		}
+	}
+
+	/**
+	 * Takes over the state of a socket from the answer to a switch command.
+	 *
+	 * @param ain
+	 *            AIN of the socket
+	 * @param status
+	 *            0 (off) or 1 (on)
+	 */
+	public void setStatus(String ain, int status) {
+		Gateway gateway = ain != null ? getGateway(ain) : null;
+		if (gateway != null) {
+			gateway.getInventory().setStatus(ain, status);
+		}
+	}
+
+	/**
+	 * Takes over the cycles a client has set for a device.
+	 *
+	 * @param id
+	 *            ID of the device
+	 * @param cycles
+	 *            the new cycles
+	 * @return the device, or null if it is not known
+	 */
+	public Device setCycles(int id, List<Device.Cycle> cycles) {
+		Gateway gateway = getGateway(id);
+		return gateway != null ? gateway.getInventory().setCycles(id, cycles) : null;
+	}
+
+	/**
+	 * Registers the listener at the inventories of all gateways.
+	 *
+	 * @param listener
+	 */
+	public void addListener(DeviceInventory.InventoryListener listener) {
+		for (Gateway gateway : GATEWAYS) {
+			gateway.getInventory().addListener(listener);
+		}
+	}
+
+	public void startBackgroundRefresh() {
+		for (Gateway gateway : GATEWAYS) {
+			gateway.getInventory().startBackgroundRefresh();
+		}
+	}
+
+	public void stopBackgroundRefresh() {
+		for (Gateway gateway : GATEWAYS) {
+			gateway.getInventory().stopBackgroundRefresh();
+		}
+	}
+
+	/**
+	 * Queues a command at the gateway of the actor.
+	 *
+	 * @param ain
+	 *            AIN of the actor
+	 * @param cmd
+	 *            setswitchon, setswitchoff or setswitchtoggle
+	 * @param priority
+	 *            Origin of the command
+	 * @return future with the answer of the FRITZ!Box, failed if no gateway
+	 *         knows the actor
+	 */
+	public CompletableFuture<String> submit(String ain, String cmd, SwitchQueue.Priority priority) {
+		Gateway gateway = ain != null ? getGateway(ain) : null;
+		if (gateway == null) {
+			CompletableFuture<String> future = new CompletableFuture<String>();
+			future.completeExceptionally(new IOException("No gateway knows the actor " + ain));
+			return future;
+		}
+		return gateway.getSwitchQueue().submit(ain, cmd, priority);
+	}
+
+	/**
+	 * Queues every command at the gateway of its actor.
+	 *
+	 * @param commands
+	 *            Commands to send
+	 * @param priority
+	 *            Origin of the commands
+	 * @return future with the result per command in the order of the given list,
+	 *         completed when every command has been answered
+	 */
+	public CompletableFuture<SwitchQueue.Result> submit(List<Command> commands, SwitchQueue.Priority priority) {
+		long start = System.currentTimeMillis();
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		for (Command command : commands) {
+			futures.add(submit(command.getAin(), command.getCmd(), priority));
+		}
+		return SwitchQueue.collect(commands, futures, start);
+	}
+
+	/**
+	 * Returns the time until the commands can be sent. Commands are only
+	 * rejected if the circuits of all their gateways are open.
+	 *
+	 * @param commands
+	 *            Commands to send
+	 * @return time in ms until the first gateway of the commands accepts
+	 *         requests again, 0 if at least one of them accepts requests now
+	 */
+	public long getRetryIn(List<Command> commands) {
+		long retryIn = Long.MAX_VALUE;
+		for (Command command : commands) {
+			Gateway gateway = command.getAin() != null ? getGateway(command.getAin()) : null;
+			if (gateway == null || !gateway.getCircuitBreaker().isOpen()) {
+				return 0;
+			}
+			retryIn = Math.min(retryIn, gateway.getCircuitBreaker().getRetryIn());
+		}
+		return retryIn == Long.MAX_VALUE ? 0 : retryIn;
+	}
+
+	/**
+	 * Ends the sessions of all gateways.
+	 */
+	public void logout() {
+		for (Gateway gateway : GATEWAYS) {
+			gateway.getSession().logout();
+		}
+	}
+
+	/**
+	 * Stops all gateways.
+	 */
+	public void shutdown() {
+		for (Gateway gateway : GATEWAYS) {
+			gateway.shutdown();
+		}
+		EXECUTOR.shutdownNow();
+	}
+
+	private final List<Gateway> GATEWAYS;
+	private final ExecutorService EXECUTOR;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private volatile boolean mRefreshed;
+}
@@ -2,17 +2,13 @@ package de.hsb.smarthome.server;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.xml.sax.SAXException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.kilo52.common.io.ConfigurationFile;
+import com.kilo52.common.io.ConfigurationFile.Section;
 import com.kilo52.common.io.ConfigurationFileHandler;
 
 import de.hsb.smarthome.server.Scheduler.CycleListener;
@@ -20,6 +16,8 @@ import de.hsb.smarthome.util.json.Device;
 import de.hsb.smarthome.util.json.Device.Type;
 import de.hsb.smarthome.util.log.Logger;
 import de.hsb.smarthome.util.log.Logger.LoggerMode;
+import de.hsb.smarthome.util.transmission.OutputQueue;
+import de.hsb.smarthome.util.transmission.TCPConnection;
 
 /**
  * Controls the program flow on the remote side of the Safer Smart Home project.
@@ -34,7 +32,7 @@ public class RemoteController implements CycleListener {
 	 * @param home_ip
 	 *            IP address in the home network
 	 * @param remote_gateway
-	 *            IP address of the remote gateway (FRITZ!Box)
+	 *            IP address of the remote gateway (FRITZ!Box), the only gateway
 	 * @param ip_camera
 	 *            IP address of the ip camera
 	 * @param fb_username
@@ -53,10 +51,18 @@ public class RemoteController implements CycleListener {
 	public RemoteController(String home_ip, String remote_gateway, String ip_camera, String fb_username,
 			String fb_password, String commPort, String[] phoneNumbers, int port, int timeout) {
 		HOME_IP = home_ip;
-		REMOTE_GATEWAY = remote_gateway;
 		IP_CAMERA = ip_camera;
-		FB_USERNAME = fb_username;
-		FB_PASSWORD = fb_password;
+		FritzBoxSession session = new FritzBoxSession(remote_gateway, fb_username, fb_password);
+		List<Gateway> gateways = new ArrayList<Gateway>();
+		gateways.add(new Gateway(DEFAULT_GATEWAY_NAME, session,
+				new DeviceInventory(session, IP_CAMERA, DeviceInventory.DEFAULT_MAX_AGE_MS),
+				new SwitchQueue(session, SwitchQueue.DEFAULT_WORKERS, SwitchQueue.DEFAULT_WINDOW_MS)));
+		GATEWAYS = new GatewayRegister(gateways);
+		VERSIONS = new DeviceVersions();
+		PUBLISHER = new StatePublisher(StatePublisher.DEFAULT_INTERVAL_MS, VERSIONS);
+		// the publisher first, see StatePublisher
+		GATEWAYS.addListener(PUBLISHER);
+		GATEWAYS.addListener(VERSIONS);
 		AT_CALL_HANDLER = new ATCallHandler(commPort, phoneNumbers);
 		REM_SOCKET = new RemoteSocket(this, port, timeout);
 
@@ -75,19 +81,56 @@ public class RemoteController implements CycleListener {
 			ConfigurationFileHandler confFileHandler = new ConfigurationFileHandler(confFilePath);
 			ConfigurationFile confFile = confFileHandler.read();
 
-			HOME_IP = confFile.getSection("general").valueOf("homeIp");
-			REMOTE_GATEWAY = confFile.getSection("general").valueOf("remoteGateway");
-			IP_CAMERA = confFile.getSection("general").valueOf("ipCamera");
-			FB_USERNAME = confFile.getSection("general").valueOf("fbUserName");
-			FB_PASSWORD = confFile.getSection("general").valueOf("fbPassword");
-
-			String commPort = confFile.getSection("general").valueOf("commPort");
-			String[] phoneNumbers = confFile.getSection("general").valueOf("phoneNumbers").split("([,])");
-			int timeout = Integer.valueOf(confFile.getSection("general").valueOf("timeout"));
-			int port = Integer.valueOf(confFile.getSection("general").valueOf("port"));
+			Section general = confFile.getSection("general");
+			HOME_IP = general.valueOf("homeIp");
+			IP_CAMERA = general.valueOf("ipCamera");
+
+			// one section per FRITZ!Box, [general] if there is only one
+			List<Gateway> gateways = new ArrayList<Gateway>();
+			AtomicInteger ids = new AtomicInteger();
+			for (Section section : confFile) {
+				if (section.getName().startsWith(GATEWAY_SECTION_PREFIX)) {
+					gateways.add(createGateway(section.getName().substring(GATEWAY_SECTION_PREFIX.length()), section,
+							general, gateways.isEmpty() ? IP_CAMERA : null, ids));
+				}
+			}
+			if (gateways.isEmpty()) {
+				gateways.add(createGateway(DEFAULT_GATEWAY_NAME, general, general, IP_CAMERA, ids));
+			}
+			GATEWAYS = new GatewayRegister(gateways);
+			LOGGER.write(this, "Gateways: " + gateways, LoggerMode.INFO);
+			String pushInterval = general.valueOf("pushInterval");
+			VERSIONS = new DeviceVersions();
+			PUBLISHER = new StatePublisher(
+					pushInterval != null ? Long.valueOf(pushInterval) : StatePublisher.DEFAULT_INTERVAL_MS, VERSIONS);
+			// the publisher first, see StatePublisher
+			GATEWAYS.addListener(PUBLISHER);
+			GATEWAYS.addListener(VERSIONS);
+			String maxMessageSize = general.valueOf("maxMessageSize");
+			if (maxMessageSize != null) {
+				TCPConnection.setMaxMessageSize(Integer.valueOf(maxMessageSize));
+			}
+			String outputQueueSize = general.valueOf("outputQueueSize");
+			String outputQueuePolicy = general.valueOf("outputQueuePolicy");
+			TCPConnection.setOutputQueue(
+					outputQueueSize != null ? Integer.valueOf(outputQueueSize) : OutputQueue.DEFAULT_CAPACITY,
+					outputQueuePolicy != null ? OutputQueue.Policy.valueOf(outputQueuePolicy.toUpperCase())
+							: OutputQueue.Policy.BLOCK);
+			String heartbeatInterval = general.valueOf("heartbeatInterval");
+			String heartbeatMisses = general.valueOf("heartbeatMisses");
+			TCPConnection.setHeartbeat(
+					heartbeatInterval != null ? Long.valueOf(heartbeatInterval)
+							: TCPConnection.DEFAULT_HEARTBEAT_INTERVAL,
+					heartbeatMisses != null ? Integer.valueOf(heartbeatMisses) : TCPConnection.DEFAULT_HEARTBEAT_MISSES);
+			String commPort = general.valueOf("commPort");
+			String[] phoneNumbers = general.valueOf("phoneNumbers").split("([,])");
+			int timeout = Integer.valueOf(general.valueOf("timeout"));
+			int port = Integer.valueOf(general.valueOf("port"));
 
 			AT_CALL_HANDLER = new ATCallHandler(commPort, phoneNumbers);
-			REM_SOCKET = new RemoteSocket(this, port, timeout);
+			String serverMode = general.valueOf("serverMode");
+			REM_SOCKET = new RemoteSocket(this, port, timeout,
+					serverMode != null ? RemoteSocket.Mode.valueOf(serverMode.toUpperCase()) : RemoteSocket.Mode.SINGLE);
 		} catch (IOException e) {
 			LOGGER.write(this, "Failed to read the conf file: " + confFilePath, LoggerMode.ERROR);
 			throw new ProcessException("Failed to read the conf file: " + confFilePath);
@@ -96,8 +139,53 @@ public class RemoteController implements CycleListener {
 		loop();
 	}
 
+	/**
+	 * Creates a gateway with its own session, inventory and switch queue.
+	 * Settings missing in the section of the gateway are taken from [general].
+	 *
+	 * @param name
+	 *            Name of the gateway
+	 * @param section
+	 *            Section of the gateway in the conf file
+	 * @param general
+	 *            Section [general] of the conf file
+	 * @param ip_camera
+	 *            IP address of the ip camera, null if the camera belongs to
+	 *            another gateway
+	 * @param ids
+	 *            Source of device IDs shared by all gateways
+	 * @return the gateway
+	 */
+	private Gateway createGateway(String name, Section section, Section general, String ip_camera,
+			AtomicInteger ids) {
+		String host = valueOf(section, general, "remoteGateway");
+		String breakerThreshold = valueOf(section, general, "breakerThreshold");
+		String breakerOpenTime = valueOf(section, general, "breakerOpenTime");
+		CircuitBreaker breaker = new CircuitBreaker(host,
+				breakerThreshold != null ? Integer.valueOf(breakerThreshold) : CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+				breakerOpenTime != null ? Long.valueOf(breakerOpenTime) : CircuitBreaker.DEFAULT_OPEN_TIME_MS);
+		FritzBoxSession session = new FritzBoxSession(new FritzBoxConnection(host, new FritzBoxConnectionPool()),
+				valueOf(section, general, "fbUserName"), valueOf(section, general, "fbPassword"),
+				FritzBoxSession.DEFAULT_VALIDITY_MS, breaker);
+
+		String maxAge = valueOf(section, general, "inventoryMaxAge");
+		DeviceInventory inventory = new DeviceInventory(session, ip_camera,
+				maxAge != null ? Long.valueOf(maxAge) : DeviceInventory.DEFAULT_MAX_AGE_MS, ids);
+		String batchConcurrency = valueOf(section, general, "batchConcurrency");
+		String switchWindow = valueOf(section, general, "switchWindow");
+		SwitchQueue queue = new SwitchQueue(session,
+				batchConcurrency != null ? Integer.valueOf(batchConcurrency) : SwitchQueue.DEFAULT_WORKERS,
+				switchWindow != null ? Long.valueOf(switchWindow) : SwitchQueue.DEFAULT_WINDOW_MS);
+		return new Gateway(name, session, inventory, queue);
+	}
+
+	private static String valueOf(Section section, Section general, String key) {
+		String value = section.valueOf(key);
+		return value != null ? value : general.valueOf(key);
+	}
+
 	private void loop() {
-		mDevices = getDevices();
+		GATEWAYS.refresh();
 
 		boolean isAlright = true;
 		while (isAlright) {
@@ -109,6 +197,7 @@ public class RemoteController implements CycleListener {
 
 				startRSock();
 
+				GATEWAYS.logout();
 				endVPNC();
 				endPPP();
 			} catch (Exception e) {
@@ -168,7 +257,11 @@ public class RemoteController implements CycleListener {
 	private void startRSock() throws InterruptedException {
 		LOGGER.write(this, "RemoteSocket is started ...", LoggerMode.INFO);
 
+		GATEWAYS.startBackgroundRefresh();
+		PUBLISHER.start();
 		REM_SOCKET.start();
+		PUBLISHER.stop();
+		GATEWAYS.stopBackgroundRefresh();
 	}
 
 	/**
@@ -210,97 +303,38 @@ public class RemoteController implements CycleListener {
 		}
 	}
 
-	/**
-	 * Returns all devices that are available in the network (Fritz!Box).
-	 */
-	public static List<Device> getDevices() {
-		List<Device> listDevices = new ArrayList<Device>();
-
-		try {
-			String sessionId = "0000000000000000";
-			for (int i = 0; i < TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-				sessionId = FritzBoxConnection.getSessionId(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
-			}
-
-			listDevices = FritzBoxConnection.getDeviceListInfos(REMOTE_GATEWAY, sessionId);
-			FritzBoxConnection.logout(REMOTE_GATEWAY, sessionId);
-
-		} catch (KeyManagementException | NoSuchAlgorithmException | IOException | ParserConfigurationException
-				| SAXException e) {
-			e.printStackTrace();
-		}
-
-		int counter = listDevices.size();
-
-		Device device2 = new Device();
-		device2.setId(++counter);
-		device2.setType(Type.CAMERA);
-		device2.setName("IPCamera");
-
-		boolean reachable = false;
-		try {
-			reachable = InetAddress.getByName(IP_CAMERA).isReachable(10000);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		if (reachable) {
-			device2.setConnected(true);
-			device2.setStatus(1);
-		} else {
-			device2.setConnected(false);
-			device2.setStatus(0);
-		}
-
-		listDevices.add(device2);
-
-		return listDevices;
-	}
-
 	@Override
 	public void onCycleStart(Device device) {
-		try {
-			if (device.getType().equals(Type.SOCKET)) {
-				String sessionId = "0000000000000000";
-				for (int i = 0; i < TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-					sessionId = FritzBoxConnection.getSessionId(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
-				}
-
-				FritzBoxConnection.sendDeviceCommand(REMOTE_GATEWAY, device.getAid(), CMD_SWITCH_ON, sessionId);
-
-				FritzBoxConnection.logout(REMOTE_GATEWAY, sessionId);
-				device.setStatus(1);
-			}
-
-			LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
-					+ " could be switched on in the time interval!", LoggerMode.INFO);
-		} catch (Exception e) {
-			LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
-					+ " could not be switched on in the time interval!", LoggerMode.WARN);
-		}
+		switchByScheduler(device, CMD_SWITCH_ON);
 	}
 
 	@Override
 	public void onCycleStop(Device device) {
-		try {
-			if (device.getType().equals(Type.SOCKET)) {
-				String sessionId = "0000000000000000";
-				for (int i = 0; i < TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-					sessionId = FritzBoxConnection.getSessionId(REMOTE_GATEWAY, FB_USERNAME, FB_PASSWORD);
-				}
-
-				FritzBoxConnection.sendDeviceCommand(REMOTE_GATEWAY, device.getAid(), CMD_SWITCH_OFF, sessionId);
-
-				FritzBoxConnection.logout(REMOTE_GATEWAY, sessionId);
-				device.setStatus(0);
-			}
+		switchByScheduler(device, CMD_SWITCH_OFF);
+	}
 
-			LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
-					+ " could be switched off in the time interval!", LoggerMode.INFO);
-		} catch (Exception e) {
-			LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
-					+ " could not be switched off in the time interval!", LoggerMode.WARN);
+	/**
+	 * Queues the switch command of a cycle event. The scheduler thread does not
+	 * wait for the FRITZ!Box, the status is taken from its answer because a
+	 * manual command of the user may have won against the cycle.
+	 */
+	private void switchByScheduler(final Device device, String cmd) {
+		if (!device.getType().equals(Type.SOCKET)) {
+			return;
 		}
+		final String action = CMD_SWITCH_ON.equals(cmd) ? "on" : "off";
+		GATEWAYS.submit(device.getAid(), cmd, SwitchQueue.Priority.SCHEDULER).whenComplete((answer, error) -> {
+			Integer status = FritzBoxConnection.parseInteger(answer);
+			if (error == null && status != null) {
+				// subscribed clients see the switch right away
+				GATEWAYS.setStatus(device.getAid(), status);
+				LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
+						+ " could be switched " + action + " in the time interval!", LoggerMode.INFO);
+			} else {
+				LOGGER.write(this, "The device (" + device.getName() + ") with ID " + device.getId()
+						+ " could not be switched " + action + " in the time interval!", LoggerMode.WARN);
+			}
+		});
 	}
 
 	private final ProcessBuilder PROCESS_BUILDER_PPP = new ProcessBuilder("sudo", "pppd", "call", "gprs");
@@ -317,15 +351,16 @@ public class RemoteController implements CycleListener {
 
 	static final String CMD_SWITCH_OFF = "setswitchoff";
 	static final String CMD_SWITCH_ON = "setswitchon";
-	static final int TEST_COUNT = 5;
 	static final Scheduler SCHEDULER = Scheduler.getInstance();
 
+	private static final String GATEWAY_SECTION_PREFIX = "gateway.";
+	private static final String DEFAULT_GATEWAY_NAME = "main";
+
 	private static String HOME_IP;
 	private static String IP_CAMERA;
-	static String REMOTE_GATEWAY;
-	static String FB_USERNAME;
-	static String FB_PASSWORD;
-	static List<Device> mDevices = new ArrayList<Device>();
+	static GatewayRegister GATEWAYS;
+	static StatePublisher PUBLISHER;
+	static DeviceVersions VERSIONS;
 
 	/**
 	 * Exception thrown when errors occur in the {@link RemoteController}.
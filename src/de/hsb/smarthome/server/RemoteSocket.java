@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import de.hsb.smarthome.server.Scheduler.CycleListener;
 import de.hsb.smarthome.util.image.IPCamera;
@@ -12,6 +15,7 @@ import de.hsb.smarthome.util.json.Control;
 import de.hsb.smarthome.util.json.Control.Memory;
 import de.hsb.smarthome.util.json.Control.Processor;
 import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Type;
 import de.hsb.smarthome.util.json.Image;
 import de.hsb.smarthome.util.json.Transmission;
 import de.hsb.smarthome.util.json.Transmission.Action;
@@ -21,6 +25,9 @@ import de.hsb.smarthome.util.transmission.TCPConnection;
 import de.hsb.smarthome.util.transmission.TCPConnection.ConnectionState;
 import de.hsb.smarthome.util.transmission.TCPConnection.IConnectionCallback;
 import de.hsb.smarthome.util.transmission.TCPConnection.IDataOnTcpPortObserver;
+import de.hsb.smarthome.util.transmission.TCPServer;
+import de.hsb.smarthome.util.transmission.TCPServer.IClientListener;
+import de.hsb.smarthome.util.transmission.TCPThreadServer;
 
 /**
  * Provides a socket to the client program ({@link TCPConnection}). Command
@@ -29,7 +36,20 @@ import de.hsb.smarthome.util.transmission.TCPConnection.IDataOnTcpPortObserver;
  * @author Fabian Mangels
  *
  */
-public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver {
+public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver, IClientListener {
+
+	/**
+	 * How the clients are served.
+	 *
+	 */
+	public enum Mode {
+		/** One client at a time ({@link TCPConnection}) */
+		SINGLE,
+		/** Many clients at the same time on one selector thread ({@link TCPServer}) */
+		NIO,
+		/** Many clients at the same time, one (virtual) thread each ({@link TCPThreadServer}) */
+		THREAD;
+	}
 
 	/**
 	 * @param port
@@ -38,18 +58,45 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 	 *            Time in ms
 	 */
 	public RemoteSocket(CycleListener cycleListener, int port, int timeout) {
+		this(cycleListener, port, timeout, Mode.SINGLE);
+	}
+
+	/**
+	 * @param port
+	 *            Port
+	 * @param timeout
+	 *            Time in ms
+	 * @param mode
+	 *            How the clients are served
+	 */
+	public RemoteSocket(CycleListener cycleListener, int port, int timeout, Mode mode) {
 		mCycleListener = cycleListener;
 		PORT = port;
 		TIMEOUT = timeout;
+		MODE = mode;
 	}
 
 	/**
 	 * Starts a new server instance of TCPConnection. Waits until the socket
-	 * connection is over.
+	 * connection is over. In {@link Mode#NIO} and {@link Mode#THREAD} it waits
+	 * until no client has been connected for the timeout.
 	 */
 	public void start() {
-		mTcpConnection = TCPConnection.getServerInstance(PORT, TIMEOUT, this);
 		mWaiting = true;
+		if (MODE == Mode.NIO) {
+			TCPServer server = TCPServer.getInstance(PORT, TIMEOUT, this, this);
+			waiting();
+			server.close();
+			return;
+		}
+		if (MODE == Mode.THREAD) {
+			TCPThreadServer server = TCPThreadServer.getInstance(PORT, TIMEOUT, this, this);
+			waiting();
+			server.close();
+			return;
+		}
+
+		mTcpConnection = TCPConnection.getServerInstance(PORT, TIMEOUT, this);
 
 		waiting();
 		mTcpConnection.close();
@@ -83,6 +130,9 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 			break;
 		case CLOSED:
 		case TIMEOUT:
+			if (mTcpConnection != null) {
+				RemoteController.PUBLISHER.detach(mTcpConnection);
+			}
 			mWaiting = false;
 			waiting();
 			break;
@@ -92,27 +142,42 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 	}
 
 	/**
-	 * The remote command logic is stored here and the respective answer is created.
+	 * A client of the {@link TCPServer} or {@link TCPThreadServer} connected. Its transmissions are answered
+	 * on its own connection.
 	 */
 	@Override
-	public void receiveTransmission(Transmission transmissionIn) {
-		Transmission transmissionOut = new Transmission();
-		Control controlOut = new Control();
-		controlOut.setInfo(mSystemInfo.getOsInfo());
-
-		Processor cpu = controlOut.new Processor();
-		cpu.setCore(mSystemInfo.getAvailableProcessors());
-		cpu.setWork(mSystemInfo.getSystemCpuLoad());
-		ArrayList<Processor> listProcessor = new ArrayList<Processor>();
-		listProcessor.add(cpu);
-		controlOut.setCpu(listProcessor);
+	public IConnectionCallback clientAccepted(final TCPConnection connection) {
+		return state -> {
+			LOGGER.write(this, "Client " + state, LoggerMode.TRACE);
+			if (state == ConnectionState.CONNECTED) {
+				connection.register(transmissionIn -> handle(connection, transmissionIn));
+			} else if (state == ConnectionState.CLOSED || state == ConnectionState.ERROR) {
+				// the client may resume its session on a new connection
+				RemoteController.PUBLISHER.detach(connection);
+			}
+		};
+	}
 
-		Memory mem = controlOut.new Memory();
-		mem.setFree(mSystemInfo.getFreePhysicalMemorySize());
-		mem.setUsed(mSystemInfo.getTotalPhysicalMemorySize() - mSystemInfo.getFreePhysicalMemorySize());
-		controlOut.setMem(mem);
+	@Override
+	public void receiveTransmission(Transmission transmissionIn) {
+		handle(mTcpConnection, transmissionIn);
+	}
 
-		transmissionOut.setControl(controlOut);
+	/**
+	 * The remote command logic is stored here and the respective answer is created.
+	 * The answer carries the correlation ID of the request. Switching sockets and
+	 * taking camera pictures are answered asynchronously, so later requests of
+	 * the client may be answered first.
+	 *
+	 * @param connection
+	 *            Connection the transmission was received on and the answer is
+	 *            sent to
+	 * @param transmissionIn
+	 */
+	private void handle(TCPConnection connection, Transmission transmissionIn) {
+		Transmission transmissionOut = new Transmission();
+		transmissionOut.setId(transmissionIn.getId());
+		transmissionOut.setControl(createControl(mSystemInfo));
 
 		switch (transmissionIn.getAction()) {
 
@@ -123,33 +188,26 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 
 				if (transmissionIn.getDevices() != null) {
 					Device deviceIn = transmissionIn.getDevices().get(0);
-					List<Device> tmpDevices = RemoteController.getDevices();
-
-					Device refDevice = null;
-					for (Device device : tmpDevices) {
-						if (device.getId() == deviceIn.getId()) {
-							refDevice = device;
-							break;
-						}
-					}
-
-					for (Device device : RemoteController.mDevices) {
-						if (device.getId() == deviceIn.getId()) {
-							device.setConnected(refDevice.isConnected());
-							device.setEnergy(refDevice.getEnergy());
-							device.setPower(refDevice.getPower());
-							device.setStatus(refDevice.getStatus());
-							device.setTemperature(refDevice.getTemperature());
-
-							List<Device> deviceOut = new ArrayList<Device>();
-							deviceOut.add(device);
-							transmissionOut.setDevices(deviceOut);
-							break;
+					Device device = RemoteController.GATEWAYS.getDevice(deviceIn.getId());
+
+					if (device != null) {
+						List<Device> deviceOut = new ArrayList<Device>();
+						deviceOut.add(device);
+						transmissionOut.setDevices(deviceOut);
+						if (RemoteController.GATEWAYS.isStale(device)) {
+							// answered from memory, the background refresh asks the FRITZ!Box
+							transmissionOut
+									.setMessage("Report is submitted! (state may be outdated, it is being refreshed)");
 						}
+					} else {
+						transmissionOut.setAction(Action.ERROR);
+						transmissionOut.setMessage("Report is not submitted!");
 					}
 
 				} else {
-					transmissionOut.setDevices(RemoteController.mDevices);
+					// only the changes if the client sent the version it has seen last
+					RemoteController.VERSIONS.report(transmissionOut, transmissionIn.getVersion(),
+							RemoteController.GATEWAYS.getDevices());
 				}
 
 			} catch (Exception e) {
@@ -166,53 +224,32 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 
 			case SOCKET:
 				try {
-					String aid = "";
-
-					for (Device device : RemoteController.mDevices) {
-						if (device.getId() == deviceIn.getId()) {
-							aid = device.getAid();
-							break;
+					// all sockets of the transmission are switched as one batch
+					List<Device> socketsIn = new ArrayList<Device>();
+					List<SwitchQueue.Command> commands = new ArrayList<SwitchQueue.Command>();
+					for (Device device : transmissionIn.getDevices()) {
+						if (device.getType() == Type.SOCKET) {
+							socketsIn.add(device);
+							SwitchQueue.Command command = createSwitchCommand(device);
+							if (command != null) {
+								commands.add(command);
+							}
 						}
 					}
 
-					String sessionId = "0000000000000000";
-					for (int i = 0; i < RemoteController.TEST_COUNT && sessionId.equals("0000000000000000"); i++) {
-						sessionId = FritzBoxConnection.getSessionId(RemoteController.REMOTE_GATEWAY,
-								RemoteController.FB_USERNAME, RemoteController.FB_PASSWORD);
-					}
-
-					if (deviceIn.getStatus() == 0) {
-						FritzBoxConnection.sendDeviceCommand(RemoteController.REMOTE_GATEWAY, aid,
-								RemoteController.CMD_SWITCH_OFF, sessionId);
-					} else if (deviceIn.getStatus() == 1) {
-						FritzBoxConnection.sendDeviceCommand(RemoteController.REMOTE_GATEWAY, aid,
-								RemoteController.CMD_SWITCH_ON, sessionId);
+					long retryIn = RemoteController.GATEWAYS.getRetryIn(commands);
+					if (retryIn > 0) {
+						// do not let the client wait for requests which are rejected anyway
+						transmissionOut.setAction(Action.ERROR);
+						transmissionOut.setMessage("Process was not successful! (FRITZ!Box not reachable, retry in "
+								+ (retryIn + 999) / 1000 + " s)");
+						break;
 					}
 
-					FritzBoxConnection.logout(RemoteController.REMOTE_GATEWAY, sessionId);
-
-					if (deviceIn.getCycles() != null) {
-						for (Device device : RemoteController.mDevices) {
-							if (device.getId() == deviceIn.getId()) {
-								device.setCycles(deviceIn.getCycles());
-
-								// first remove all cycles
-								RemoteController.SCHEDULER.deregisterDeviceCycles(mCycleListener, device);
-								// then add all cycles
-								RemoteController.SCHEDULER.registerDeviceCycles(mCycleListener, device);
-								break;
-							}
-						}
-					} else {
-						for (Device device : RemoteController.mDevices) {
-							if (device.getId() == deviceIn.getId()) {
-								RemoteController.SCHEDULER.deregisterDeviceCycles(mCycleListener, device);
-							}
-						}
-					}
-
-					transmissionOut.setAction(Action.SUCCESS);
-					transmissionOut.setMessage("Process was successful!");
+					// answered when the queue has sent the commands, the reader thread
+					// goes on meanwhile so that quick clicks can be coalesced
+					commitSockets(connection, socketsIn, commands, transmissionOut);
+					return;
 
 				} catch (Exception e) {
 					transmissionOut.setAction(Action.ERROR);
@@ -225,29 +262,12 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 			case CAMERA:
 				transmissionOut.setDevices(transmissionIn.getDevices());
 
-				try {
-					String imageInBase64 = IPCamera.encodeImage();
-
-					transmissionOut.setAction(Action.SUCCESS);
-					transmissionOut.setMessage("Process was successful!");
-
-					Image imageOut = new Image();
-					imageOut.setData(imageInBase64);
-					imageOut.setFormat(Image.Format.JPG);
-					imageOut.setTimestamp(new Timestamp(System.currentTimeMillis()));
-					imageOut.setTitle("Image");
-					imageOut.setComment("Picture is Base64 encoded.");
-					ArrayList<Image> listImage = new ArrayList<Image>();
-					listImage.add(imageOut);
-
-					transmissionOut.setImages(listImage);
-
-				} catch (Exception e) {
-					transmissionOut.setAction(Action.ERROR);
-					transmissionOut.setMessage("Process was not successful!");
-				}
-
-				break;
+				// taking the picture takes a while, the reader thread goes on meanwhile
+				CAMERA_EXECUTOR.execute(() -> {
+					takePicture(transmissionOut);
+					send(connection, transmissionOut);
+				});
+				return;
 
 			default:
 				transmissionOut.setAction(Action.ERROR);
@@ -257,8 +277,26 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 
 			break;
 
+		case SUBSCRIBE:
+			// the answer is the full state or, if the client resumes its session,
+			// the changes it missed, later changes are pushed by the publisher
+			String session = RemoteController.PUBLISHER.subscribe(connection, transmissionIn.getSession());
+			transmissionOut.setAction(Action.SUCCESS);
+			transmissionOut.setMessage(session.equals(transmissionIn.getSession()) ? "Resumed!" : "Subscribed!");
+			transmissionOut.setSession(session);
+			RemoteController.VERSIONS.report(transmissionOut, transmissionIn.getVersion(),
+					RemoteController.GATEWAYS.getDevices());
+			break;
+
+		case UNSUBSCRIBE:
+			RemoteController.PUBLISHER.unsubscribe(connection);
+			transmissionOut.setAction(Action.SUCCESS);
+			transmissionOut.setMessage("Unsubscribed!");
+			break;
+
 		case CLOSE:
-			mTcpConnection.close();
+			RemoteController.PUBLISHER.unsubscribe(connection);
+			connection.close();
 			break;
 
 		default:
@@ -267,15 +305,186 @@ public class RemoteSocket implements IConnectionCallback, IDataOnTcpPortObserver
 			break;
 		}
 
+		send(connection, transmissionOut);
+	}
+
+	/**
+	 * Queues the switch commands as manual commands and sends the answer to the
+	 * client when all of them have been answered by the FRITZ!Box.
+	 */
+	private void commitSockets(final TCPConnection connection, final List<Device> socketsIn, final List<SwitchQueue.Command> commands,
+			final Transmission transmissionOut) {
+		RemoteController.GATEWAYS.submit(commands, SwitchQueue.Priority.MANUAL).whenComplete((result, error) -> {
+			if (error != null) {
+				transmissionOut.setAction(Action.ERROR);
+				transmissionOut.setMessage("Process was not successful!");
+				send(connection, transmissionOut);
+				return;
+			}
+
+			for (Device device : socketsIn) {
+				if (isSwitched(result, device)) {
+					updateCycles(device);
+				}
+			}
+			// the FRITZ!Box answers with the new state, subscribers learn about it right away
+			for (SwitchQueue.CommandResult commandResult : result.getResults()) {
+				Integer status = FritzBoxConnection.parseInteger(commandResult.getAnswer());
+				if (commandResult.isSuccessful() && status != null) {
+					RemoteController.GATEWAYS.setStatus(commandResult.getCommand().getAin(), status);
+				}
+			}
+
+			if (result.isSuccessful()) {
+				transmissionOut.setAction(Action.SUCCESS);
+				transmissionOut.setMessage("Process was successful!");
+			} else {
+				transmissionOut.setAction(Action.ERROR);
+				transmissionOut.setMessage("Process was not successful! (" + result.getFailed().size() + " of "
+						+ commands.size() + " devices failed)");
+			}
+			send(connection, transmissionOut);
+		});
+	}
+
+	/**
+	 * Creates the Control with the current state of the Raspberry Pi.
+	 *
+	 * @param systemInfo
+	 * @return the Control for a transmission
+	 */
+	static Control createControl(SystemInfo systemInfo) {
+		Control controlOut = new Control();
+		controlOut.setInfo(systemInfo.getOsInfo());
+
+		Processor cpu = controlOut.new Processor();
+		cpu.setCore(systemInfo.getAvailableProcessors());
+		cpu.setWork(systemInfo.getSystemCpuLoad());
+		ArrayList<Processor> listProcessor = new ArrayList<Processor>();
+		listProcessor.add(cpu);
+		controlOut.setCpu(listProcessor);
+
+		Memory mem = controlOut.new Memory();
+		mem.setFree(systemInfo.getFreePhysicalMemorySize());
+		mem.setUsed(systemInfo.getTotalPhysicalMemorySize() - systemInfo.getFreePhysicalMemorySize());
+		controlOut.setMem(mem);
+		return controlOut;
+	}
+
+	/**
+	 * Takes a picture with the IP camera and adds it to the answer.
+	 */
+	private void takePicture(Transmission transmissionOut) {
 		try {
-			mTcpConnection.sendTransmission(transmissionOut);
+			byte[] picture = IPCamera.readImage();
+
+			transmissionOut.setAction(Action.SUCCESS);
+			transmissionOut.setMessage("Process was successful!");
+
+			Image imageOut = new Image();
+			// sent as attachment, or Base64 encoded to clients which do not support it
+			imageOut.setBytes(picture);
+			imageOut.setFormat(Image.Format.JPG);
+			imageOut.setTimestamp(new Timestamp(System.currentTimeMillis()));
+			imageOut.setTitle("Image");
+			imageOut.setComment("Snapshot of the IP camera.");
+			ArrayList<Image> listImage = new ArrayList<Image>();
+			listImage.add(imageOut);
+
+			transmissionOut.setImages(listImage);
+
+		} catch (Exception e) {
+			transmissionOut.setAction(Action.ERROR);
+			transmissionOut.setMessage("Process was not successful!");
+		}
+	}
+
+	private void send(TCPConnection connection, Transmission transmissionOut) {
+		try {
+			connection.sendTransmission(transmissionOut);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Creates the switch command for the desired status of the given device.
+	 *
+	 * @param deviceIn
+	 *            device as sent by the client
+	 * @return command, or null if the status requires no switching
+	 */
+	private SwitchQueue.Command createSwitchCommand(Device deviceIn) {
+		String aid = "";
+		for (Device device : RemoteController.GATEWAYS.getDevices()) {
+			if (device.getId() == deviceIn.getId()) {
+				aid = device.getAid();
+				break;
+			}
+		}
+
+		if (deviceIn.getStatus() == 0) {
+			return new SwitchQueue.Command(aid, RemoteController.CMD_SWITCH_OFF);
+		} else if (deviceIn.getStatus() == 1) {
+			return new SwitchQueue.Command(aid, RemoteController.CMD_SWITCH_ON);
+		}
+		return null;
+	}
+
+	/**
+	 * Indicates whether the switch command of the device did not fail.
+	 */
+	private boolean isSwitched(SwitchQueue.Result result, Device deviceIn) {
+		SwitchQueue.Command command = createSwitchCommand(deviceIn);
+		if (command == null) {
+			return true;
+		}
+		for (SwitchQueue.CommandResult commandResult : result.getFailed()) {
+			if (commandResult.getCommand().getAin().equals(command.getAin())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes over the cycles sent by the client and registers them at the
+	 * scheduler.
+	 *
+	 * @param deviceIn
+	 *            device as sent by the client
+	 */
+	private void updateCycles(Device deviceIn) {
+		if (deviceIn.getCycles() != null) {
+			Device device = RemoteController.GATEWAYS.setCycles(deviceIn.getId(), deviceIn.getCycles());
+			if (device != null) {
+				// first remove all cycles
+				RemoteController.SCHEDULER.deregisterDeviceCycles(mCycleListener, device);
+				// then add all cycles
+				RemoteController.SCHEDULER.registerDeviceCycles(mCycleListener, device);
+			}
+		} else {
+			for (Device device : RemoteController.GATEWAYS.getDevices()) {
+				if (device.getId() == deviceIn.getId()) {
+					RemoteController.SCHEDULER.deregisterDeviceCycles(mCycleListener, device);
+				}
+			}
+		}
+	}
+
+	// one picture at a time, the camera is not asked in parallel
+	private static final ExecutorService CAMERA_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RemoteSocket-Camera");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private final int PORT;
 	private final int TIMEOUT;
+	private final Mode MODE;
 	private final Logger LOGGER = Logger.getLogger();
 
 	private TCPConnection mTcpConnection;
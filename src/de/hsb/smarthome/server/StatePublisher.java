@@ -0,0 +1,426 @@
+package de.hsb.smarthome.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.hsb.smarthome.server.DeviceInventory.InventoryListener;
+import de.hsb.smarthome.util.info.SystemInfo;
+import de.hsb.smarthome.util.json.Control;
+import de.hsb.smarthome.util.json.Device;
+import de.hsb.smarthome.util.json.Device.Field;
+import de.hsb.smarthome.util.json.Transmission;
+import de.hsb.smarthome.util.json.Transmission.Action;
+import de.hsb.smarthome.util.json.env.TempHumSensor;
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+import de.hsb.smarthome.util.transmission.TCPConnection;
+
+/**
+ * Pushes state changes to the clients which sent SUBSCRIBE, so they do not have
+ * to poll with REPORT. Changes of devices are reported by the
+ * {@link DeviceInventory}, including the switch commands of the
+ * {@link Scheduler} and of other clients. The {@link Control} of the Raspberry
+ * Pi and the values of the {@link EnvironmentMonitor} are sampled regularly and
+ * pushed when they have changed noticeably.
+ * <p>
+ * A push is a REPORT without correlation ID which contains only what has
+ * changed: the changed fields of the devices, the removed devices and the
+ * version of the {@link DeviceVersions}. Every client gets at most one push per
+ * interval. Changes within the interval are merged, a device which changed
+ * several times is sent once with its latest state.
+ * <p>
+ * Pushes are sent with {@link TCPConnection#sendPush(Transmission)}. With the
+ * output queue policy DROP_OLDEST a slow client may miss pushes, a full
+ * REPORT brings it up to date again.
+ * <p>
+ * Every subscription is a session with a random token. When the connection of
+ * a client is lost, its session is kept for a while. A client which reconnects
+ * sends SUBSCRIBE with the token and the version it has seen last, and only
+ * gets the changes since that version instead of the full state. At most
+ * {@link #MAX_SESSIONS} sessions are kept.
+ *
+ */
+public class StatePublisher implements InventoryListener {
+
+	/**
+	 * @param interval
+	 *            Minimum time in ms between two pushes to the same client
+	 * @param versions
+	 *            Versions of the devices, has to be notified after the publisher
+	 */
+	public StatePublisher(long interval, DeviceVersions versions) {
+		INTERVAL_MS = interval;
+		VERSIONS = versions;
+		TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "StatePublisher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts sampling the Control and the environment values. Subsequent calls to
+	 * this method have no effect.
+	 */
+	public synchronized void start() {
+		if (mSampler != null) {
+			return;
+		}
+		mSampler = TIMER.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sampling. Device changes are still pushed.
+	 */
+	public synchronized void stop() {
+		if (mSampler != null) {
+			mSampler.cancel(false);
+			mSampler = null;
+		}
+	}
+
+	/**
+	 * Pushes the changes from now on to the given connection. If the session is
+	 * known, it is resumed on the connection, otherwise a new session is
+	 * started. The device changes since the version of the client have to be
+	 * sent in the answer, they are not pushed.
+	 *
+	 * @param connection
+	 * @param session
+	 *            Token of the session the client had before, or null
+	 * @return the token of the session
+	 */
+	public String subscribe(TCPConnection connection, String session) {
+		synchronized (mSessions) {
+			expireSessions();
+			Subscriber subscriber = mSubscribers.get(connection);
+			if (subscriber != null) {
+				return subscriber.session;
+			}
+			subscriber = session != null ? mSessions.get(session) : null;
+			if (subscriber != null) {
+				synchronized (subscriber) {
+					if (subscriber.connection != null) {
+						// the old connection has not been noticed to be lost yet
+						mSubscribers.remove(subscriber.connection);
+					}
+					subscriber.connection = connection;
+					subscriber.detached = 0;
+					subscriber.devices.clear();
+					subscriber.removed.clear();
+					// the answer contains the Control, the environment may have
+					// changed while detached
+					subscriber.control = null;
+					subscriber.environment = mEnvironment;
+					if (mEnvironment != null) {
+						schedule(subscriber);
+					}
+				}
+				mSubscribers.put(connection, subscriber);
+				LOGGER.write(this, "Client resumed session, " + mSubscribers.size() + " subscribers", LoggerMode.INFO);
+				return subscriber.session;
+			}
+			subscriber = new Subscriber(connection, UUID.randomUUID().toString());
+			mSessions.put(subscriber.session, subscriber);
+			mSubscribers.put(connection, subscriber);
+			LOGGER.write(this, "Client subscribed, " + mSubscribers.size() + " subscribers", LoggerMode.INFO);
+			return subscriber.session;
+		}
+	}
+
+	/**
+	 * Stops pushing changes to the given connection and ends its session.
+	 *
+	 * @param connection
+	 */
+	public void unsubscribe(TCPConnection connection) {
+		synchronized (mSessions) {
+			Subscriber subscriber = mSubscribers.remove(connection);
+			if (subscriber != null) {
+				mSessions.remove(subscriber.session);
+				LOGGER.write(this, "Client unsubscribed, " + mSubscribers.size() + " subscribers", LoggerMode.INFO);
+			}
+		}
+	}
+
+	/**
+	 * Stops pushing changes to the given connection, which has been lost. Its
+	 * session is kept for {@link #SESSION_TIMEOUT_MS}, so the client can resume
+	 * it.
+	 *
+	 * @param connection
+	 */
+	public void detach(TCPConnection connection) {
+		synchronized (mSessions) {
+			Subscriber subscriber = mSubscribers.remove(connection);
+			if (subscriber == null) {
+				return;
+			}
+			synchronized (subscriber) {
+				subscriber.connection = null;
+				subscriber.detached = System.currentTimeMillis();
+			}
+			LOGGER.write(this, "Client lost, session kept, " + mSubscribers.size() + " subscribers", LoggerMode.INFO);
+			expireSessions();
+		}
+	}
+
+	/**
+	 * @return number of subscribed connections
+	 */
+	public int getSubscriberCount() {
+		return mSubscribers.size();
+	}
+
+	@Override
+	public void onDeviceChanged(Device device, EnumSet<Field> fields) {
+		for (Subscriber subscriber : mSubscribers.values()) {
+			synchronized (subscriber) {
+				Change change = subscriber.devices.get(device.getId());
+				if (change == null) {
+					subscriber.devices.put(device.getId(), new Change(device, fields));
+				} else {
+					change.fields.addAll(fields);
+				}
+				subscriber.removed.remove(device.getId());
+				schedule(subscriber);
+			}
+		}
+	}
+
+	@Override
+	public void onDeviceRemoved(Device device) {
+		for (Subscriber subscriber : mSubscribers.values()) {
+			synchronized (subscriber) {
+				subscriber.devices.remove(device.getId());
+				subscriber.removed.add(device.getId());
+				schedule(subscriber);
+			}
+		}
+	}
+
+	/**
+	 * Removes the sessions which have been detached for longer than
+	 * {@link #SESSION_TIMEOUT_MS} and, if there are too many, the detached
+	 * sessions started first. Has to be called while holding the lock of the sessions.
+	 */
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		int excess = mSessions.size() - MAX_SESSIONS;
+		Iterator<Subscriber> sessions = mSessions.values().iterator();
+		while (sessions.hasNext()) {
+			Subscriber subscriber = sessions.next();
+			// detached is only set while holding the lock of the sessions
+			if (subscriber.detached != 0 && (excess > 0 || now - subscriber.detached > SESSION_TIMEOUT_MS)) {
+				sessions.remove();
+				excess--;
+			}
+		}
+	}
+
+	/**
+	 * Takes a sample of the Control and the environment values and passes them
+	 * to the subscribers if they differ noticeably from the last sample passed.
+	 */
+	private void sample() {
+		if (mSubscribers.isEmpty()) {
+			return;
+		}
+		Control control = RemoteSocket.createControl(mSystemInfo);
+		boolean controlChanged = hasChanged(mControl, control);
+		if (controlChanged) {
+			mControl = control;
+		}
+
+		TempHumSensor environment = null;
+		EnvironmentMonitor monitor = EnvironmentMonitor.getInstance();
+		if (monitor.isEnabled() && monitor.canMonitorTemperature() && monitor.canMonitorHumidity()) {
+			environment = new TempHumSensor();
+			environment.setTemperature(monitor.getTemperature());
+			environment.setHumidity(monitor.getHumidity());
+		}
+		boolean environmentChanged = hasChanged(mEnvironment, environment);
+		if (environmentChanged) {
+			mEnvironment = environment;
+		}
+
+		if (!controlChanged && !environmentChanged) {
+			return;
+		}
+		for (Subscriber subscriber : mSubscribers.values()) {
+			synchronized (subscriber) {
+				if (controlChanged) {
+					subscriber.control = control;
+				}
+				if (environmentChanged) {
+					subscriber.environment = environment;
+				}
+				schedule(subscriber);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the push of the subscriber, if not scheduled yet. The push is
+	 * delayed until the interval since the last push has passed. Has to be
+	 * called while holding the lock of the subscriber.
+	 */
+	private void schedule(final Subscriber subscriber) {
+		if (subscriber.scheduled) {
+			return;
+		}
+		subscriber.scheduled = true;
+		long delay = Math.max(0, subscriber.lastPush + INTERVAL_MS - System.currentTimeMillis());
+		TIMER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				push(subscriber);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void push(Subscriber subscriber) {
+		Transmission transmission = new Transmission();
+		transmission.setAction(Action.REPORT);
+		transmission.setMessage("State has changed!");
+		TCPConnection connection;
+		synchronized (subscriber) {
+			connection = subscriber.connection;
+			if (connection == null) {
+				// detached, the environment is pushed on resume
+				subscriber.scheduled = false;
+				return;
+			}
+			if (!subscriber.devices.isEmpty() || !subscriber.removed.isEmpty()) {
+				// the publisher is notified first, the version may be older than a
+				// change, which is then sent again on a delta REPORT, but never lost
+				transmission.setVersion(VERSIONS.getVersion());
+				List<Device> changes = new ArrayList<Device>();
+				for (Change change : subscriber.devices.values()) {
+					changes.add(Device.createChange(change.device, change.fields));
+				}
+				transmission.setChanges(changes);
+				transmission.setRemoved(new ArrayList<Integer>(subscriber.removed));
+			}
+			transmission.setControl(subscriber.control);
+			transmission.setEnvironment(subscriber.environment);
+			subscriber.devices.clear();
+			subscriber.removed.clear();
+			subscriber.control = null;
+			subscriber.environment = null;
+			subscriber.scheduled = false;
+			subscriber.lastPush = System.currentTimeMillis();
+		}
+
+		try {
+			if (!connection.sendPush(transmission)) {
+				detach(connection);
+			}
+		} catch (IOException e) {
+			LOGGER.write(this, "Push failed: " + e.getMessage(), LoggerMode.TRACE);
+			detach(connection);
+		}
+	}
+
+	private static boolean hasChanged(Control last, Control current) {
+		if (last == null) {
+			return true;
+		}
+		float work = last.getCpu().isEmpty() ? 0 : last.getCpu().get(0).getWork();
+		float currentWork = current.getCpu().isEmpty() ? 0 : current.getCpu().get(0).getWork();
+		return Math.abs(currentWork - work) >= CPU_THRESHOLD
+				|| Math.abs(current.getMemory().getFree() - last.getMemory().getFree()) >= MEMORY_THRESHOLD;
+	}
+
+	private static boolean hasChanged(TempHumSensor last, TempHumSensor current) {
+		if (last == null || current == null) {
+			return last != current;
+		}
+		return last.getTemperature() != current.getTemperature() || last.getHumidity() != current.getHumidity();
+	}
+
+	public static final long DEFAULT_INTERVAL_MS = 1000;
+	private static final long SAMPLE_INTERVAL_MS = 10000;
+	// CPU load between 0 and 1
+	private static final float CPU_THRESHOLD = 0.05f;
+	private static final long MEMORY_THRESHOLD = 16 * 1024 * 1024;
+	/** Time in ms a session is kept after its connection has been lost */
+	public static final long SESSION_TIMEOUT_MS = 5 * 60 * 1000;
+	/** Maximum number of sessions, the oldest detached sessions are removed */
+	public static final int MAX_SESSIONS = 64;
+
+	private final long INTERVAL_MS;
+	private final DeviceVersions VERSIONS;
+	private final ScheduledExecutorService TIMER;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private final Map<TCPConnection, Subscriber> mSubscribers = new ConcurrentHashMap<TCPConnection, Subscriber>();
+	// by token, in the order the sessions were started
+	private final Map<String, Subscriber> mSessions = new LinkedHashMap<String, Subscriber>();
+	private final SystemInfo mSystemInfo = new SystemInfo();
+	private ScheduledFuture<?> mSampler;
+	private Control mControl;
+	private TempHumSensor mEnvironment;
+
+	/**
+	 * Session of one client and the changes which wait for the next push.
+	 *
+	 */
+	private static class Subscriber {
+
+		private Subscriber(TCPConnection connection, String session) {
+			this.connection = connection;
+			this.session = session;
+		}
+
+		private final String session;
+		// null while detached
+		private TCPConnection connection;
+		// time the connection was lost, 0 while attached
+		private long detached;
+		// by ID, Device has no hashCode()
+		private final Map<Integer, Change> devices = new LinkedHashMap<Integer, Change>();
+		private final Set<Integer> removed = new LinkedHashSet<Integer>();
+		private Control control;
+		private TempHumSensor environment;
+		private boolean scheduled;
+		private long lastPush;
+	}
+
+	/**
+	 * Changed fields of a device which wait for the next push.
+	 *
+	 */
+	private static class Change {
+
+		private Change(Device device, EnumSet<Field> fields) {
+			this.device = device;
+			this.fields = EnumSet.copyOf(fields);
+		}
+
+		private final Device device;
+		private final EnumSet<Field> fields;
+	}
+}
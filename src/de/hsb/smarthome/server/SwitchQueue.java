@@ -0,0 +1,511 @@
+package de.hsb.smarthome.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Ordered command queue per actor (AIN). A command is not sent right away but
+ * held for a short window. Commands for the same AIN which arrive within the
+ * window replace the waiting one, so a burst of toggle clicks or cycle events
+ * results in a single request with the last desired state. All callers of the
+ * replaced commands are answered with the result of the command which was
+ * actually sent.
+ * <p>
+ * Per AIN at most one command is in flight, commands arriving meanwhile are
+ * sent after it in order. Manual commands of a user have priority over
+ * commands of the {@link Scheduler}: a waiting manual command is never replaced
+ * by a scheduler command, and ready manual commands are sent first.
+ * <p>
+ * Scenes like "all off when leaving" pass all their commands at once. The
+ * commands share one {@link FritzBoxSession}, so they cost at most one login,
+ * and never more than the configured number of workers are in flight.
+ *
+ */
+public class SwitchQueue {
+
+	/**
+	 * Origin of a command, lower ordinal means higher priority.
+	 *
+	 */
+	public enum Priority {
+		MANUAL, SCHEDULER;
+	}
+
+	/**
+	 * @param session
+	 *            Session used to send the commands
+	 * @param workers
+	 *            Maximum number of commands in flight at the same time
+	 * @param window
+	 *            Time in ms a command waits for newer commands of the same AIN
+	 */
+	public SwitchQueue(FritzBoxSession session, int workers, long window) {
+		SESSION = session;
+		WINDOW_MS = Math.max(0, window);
+		TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SwitchQueue-Timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		WORKERS = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SwitchQueue-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < Math.max(1, workers); i++) {
+			WORKERS.execute(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a command for the given AIN.
+	 *
+	 * @param ain
+	 *            AIN of the actor
+	 * @param cmd
+	 *            setswitchon, setswitchoff or setswitchtoggle
+	 * @param priority
+	 *            Origin of the command
+	 * @return future with the answer of the FRITZ!Box to the command which was
+	 *         finally sent for this AIN, or null if the commands cancelled each
+	 *         other out (two toggles)
+	 */
+	public CompletableFuture<String> submit(String ain, String cmd, Priority priority) {
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		mSubmitted.incrementAndGet();
+		Pending scheduled = null;
+
+		synchronized (mSlots) {
+			Slot slot = mSlots.get(ain);
+			if (slot == null) {
+				slot = new Slot(ain);
+				mSlots.put(ain, slot);
+			}
+
+			if (slot.pending == null) {
+				slot.pending = new Pending(slot, cmd, priority, System.currentTimeMillis() + WINDOW_MS);
+				scheduled = slot.pending;
+			} else {
+				mCoalesced.incrementAndGet();
+				slot.pending.merge(cmd, priority);
+			}
+			slot.pending.futures.add(future);
+		}
+
+		if (scheduled != null) {
+			final Pending pending = scheduled;
+			TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					ready(pending);
+				}
+			}, WINDOW_MS, TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+
+	/**
+	 * Queues all commands.
+	 *
+	 * @param commands
+	 *            Commands to send
+	 * @param priority
+	 *            Origin of the commands
+	 * @return future with the result per command in the order of the given list,
+	 *         completed when every command has been answered
+	 */
+	public CompletableFuture<Result> submit(List<Command> commands, Priority priority) {
+		long start = System.currentTimeMillis();
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		for (Command command : commands) {
+			futures.add(submit(command.getAin(), command.getCmd(), priority));
+		}
+		return collect(commands, futures, start);
+	}
+
+	/**
+	 * Combines the answers of single commands into the result of all commands.
+	 *
+	 * @param commands
+	 *            Commands which were queued
+	 * @param futures
+	 *            Future per command in the same order
+	 * @param start
+	 *            Time in ms the first command was queued
+	 * @return future with the result per command
+	 */
+	static CompletableFuture<Result> collect(final List<Command> commands,
+			final List<CompletableFuture<String>> futures, final long start) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.handle((ignored, failure) -> {
+					List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+					for (int i = 0; i < commands.size(); i++) {
+						try {
+							results.add(new CommandResult(commands.get(i), futures.get(i).join(), null));
+						} catch (CompletionException e) {
+							results.add(new CommandResult(commands.get(i), null, e.getCause()));
+						}
+					}
+					return new Result(results, System.currentTimeMillis() - start);
+				});
+	}
+
+	/**
+	 * @return number of commands which wait in the window, wait for their AIN or
+	 *         are in flight
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		synchronized (mSlots) {
+			for (Slot slot : mSlots.values()) {
+				depth += (slot.pending != null ? 1 : 0) + (slot.next != null ? 1 : 0) + (slot.inFlight ? 1 : 0);
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * @return number of commands which were replaced by a newer command
+	 */
+	public long getCoalescedCount() {
+		return mCoalesced.get();
+	}
+
+	/**
+	 * @return number of commands passed to the queue
+	 */
+	public long getSubmittedCount() {
+		return mSubmitted.get();
+	}
+
+	/**
+	 * @return number of requests sent to the FRITZ!Box
+	 */
+	public long getSentCount() {
+		return mSent.get();
+	}
+
+	/**
+	 * Stops the worker threads, waiting commands are not sent anymore.
+	 */
+	public void shutdown() {
+		TIMER.shutdownNow();
+		WORKERS.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "depth=" + getQueueDepth() + ", submitted=" + getSubmittedCount() + ", coalesced="
+				+ getCoalescedCount() + ", sent=" + getSentCount();
+	}
+
+	/**
+	 * The window of a command has passed. It is sent as soon as the command
+	 * before it has been answered.
+	 */
+	private void ready(Pending pending) {
+		synchronized (mSlots) {
+			Slot slot = pending.slot;
+			if (slot.pending != pending) {
+				return;
+			}
+			slot.pending = null;
+			if (slot.inFlight) {
+				// keep the order per AIN, newer commands still coalesce into it
+				if (slot.next == null) {
+					slot.next = pending;
+				} else {
+					mCoalesced.incrementAndGet();
+					slot.next.absorb(pending);
+				}
+				return;
+			}
+			slot.inFlight = true;
+		}
+		mReady.add(pending);
+	}
+
+	private void work() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Pending pending;
+			try {
+				pending = mReady.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			send(pending);
+		}
+	}
+
+	private void send(Pending pending) {
+		String answer = null;
+		Throwable error = null;
+		if (pending.cmd != null) {
+			try {
+				mSent.incrementAndGet();
+				answer = SESSION.sendDeviceCommand(pending.slot.ain, pending.cmd);
+			} catch (Exception e) {
+				error = e;
+				LOGGER.write(this, pending.cmd + "(" + pending.slot.ain + ") failed: " + e.getMessage(),
+						LoggerMode.WARN);
+			}
+		}
+
+		LOGGER.write(this, pending.futures.size() + " command(s) for " + pending.slot.ain + " answered, " + this,
+				LoggerMode.TRACE);
+		for (CompletableFuture<String> future : pending.futures) {
+			if (error == null) {
+				future.complete(answer);
+			} else {
+				future.completeExceptionally(error);
+			}
+		}
+
+		Pending next = null;
+		synchronized (mSlots) {
+			Slot slot = pending.slot;
+			if (slot.next != null) {
+				next = slot.next;
+				slot.next = null;
+			} else {
+				slot.inFlight = false;
+				if (slot.pending == null) {
+					mSlots.remove(slot.ain);
+				}
+			}
+		}
+		if (next != null) {
+			mReady.add(next);
+		}
+	}
+
+	public static final int DEFAULT_WORKERS = 4;
+	public static final long DEFAULT_WINDOW_MS = 250;
+
+	private final FritzBoxSession SESSION;
+	private final long WINDOW_MS;
+	private final ScheduledExecutorService TIMER;
+	private final ExecutorService WORKERS;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private final Map<String, Slot> mSlots = new HashMap<String, Slot>();
+	private final PriorityBlockingQueue<Pending> mReady = new PriorityBlockingQueue<Pending>();
+	private final AtomicLong mSubmitted = new AtomicLong();
+	private final AtomicLong mCoalesced = new AtomicLong();
+	private final AtomicLong mSent = new AtomicLong();
+
+	/**
+	 * A command for a single actor, e.g. "setswitchon" for one AIN.
+	 *
+	 */
+	public static class Command {
+
+		public Command(String ain, String cmd) {
+			this.ain = ain;
+			this.cmd = cmd;
+		}
+
+		public String getAin() {
+			return ain;
+		}
+
+		public String getCmd() {
+			return cmd;
+		}
+
+		@Override
+		public String toString() {
+			return cmd + "(" + ain + ")";
+		}
+
+		private final String ain;
+		private final String cmd;
+	}
+
+	/**
+	 * Outcome of a single command: the answer of the FRITZ!Box or the error.
+	 *
+	 */
+	public static class CommandResult {
+
+		CommandResult(Command command, String answer, Throwable error) {
+			this.command = command;
+			this.answer = answer;
+			this.error = error;
+		}
+
+		public Command getCommand() {
+			return command;
+		}
+
+		public String getAnswer() {
+			return answer;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccessful() {
+			return error == null;
+		}
+
+		private final Command command;
+		private final String answer;
+		private final Throwable error;
+	}
+
+	/**
+	 * Results of all commands of a batch and the time the whole batch took.
+	 *
+	 */
+	public static class Result {
+
+		Result(List<CommandResult> results, long latency) {
+			this.results = Collections.unmodifiableList(results);
+			this.latency = latency;
+		}
+
+		public List<CommandResult> getResults() {
+			return results;
+		}
+
+		/**
+		 * @return time in ms from submitting the first command until the last one
+		 *         finished
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return true if every command succeeded
+		 */
+		public boolean isSuccessful() {
+			return getFailed().isEmpty();
+		}
+
+		/**
+		 * @return results of the commands which failed
+		 */
+		public List<CommandResult> getFailed() {
+			List<CommandResult> failed = new ArrayList<CommandResult>();
+			for (CommandResult result : results) {
+				if (!result.isSuccessful()) {
+					failed.add(result);
+				}
+			}
+			return failed;
+		}
+
+		@Override
+		public String toString() {
+			return results.size() + " commands, " + getFailed().size() + " failed, " + latency + " ms";
+		}
+
+		private final List<CommandResult> results;
+		private final long latency;
+	}
+
+	/**
+	 * Queue state of one AIN: the command in its window, the command waiting for
+	 * the one in flight, and whether a command is in flight.
+	 */
+	private static class Slot {
+
+		private Slot(String ain) {
+			this.ain = ain;
+		}
+
+		private final String ain;
+		private Pending pending;
+		private Pending next;
+		private boolean inFlight;
+	}
+
+	/**
+	 * The desired state of an AIN and everyone waiting for it.
+	 */
+	private static class Pending implements Comparable<Pending> {
+
+		private Pending(Slot slot, String cmd, Priority priority, long deadline) {
+			this.slot = slot;
+			this.cmd = cmd;
+			this.priority = priority;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Takes over a newer command. A scheduler command does not replace a
+		 * manual one, two toggles cancel each other out.
+		 */
+		private void merge(String newCmd, Priority newPriority) {
+			if (newPriority.compareTo(priority) > 0) {
+				return;
+			}
+			priority = newPriority;
+			if (!CMD_TOGGLE.equals(newCmd)) {
+				cmd = newCmd;
+			} else if (cmd == null) {
+				cmd = CMD_TOGGLE;
+			} else if (CMD_TOGGLE.equals(cmd)) {
+				cmd = null;
+			} else {
+				cmd = CMD_ON.equals(cmd) ? CMD_OFF : CMD_ON;
+			}
+		}
+
+		private void absorb(Pending newer) {
+			// two toggles which cancelled each other out change nothing
+			if (newer.cmd != null) {
+				merge(newer.cmd, newer.priority);
+			}
+			futures.addAll(newer.futures);
+		}
+
+		@Override
+		public int compareTo(Pending other) {
+			int result = priority.compareTo(other.priority);
+			return result != 0 ? result : Long.compare(deadline, other.deadline);
+		}
+
+		private static final String CMD_ON = "setswitchon";
+		private static final String CMD_OFF = "setswitchoff";
+		private static final String CMD_TOGGLE = "setswitchtoggle";
+
+		private final Slot slot;
+		private final long deadline;
+		private final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		private String cmd;
+		private Priority priority;
+	}
+}
@@ -25,6 +25,31 @@ import javax.net.ssl.X509TrustManager;
  */
 public class TrustCertificate {
 	
+	/**
+	 * Creates a TLS context which accepts the self-signed certificate of the
+	 * FRITZ!Box. The context is meant to be created once and reused, its client
+	 * session cache allows abbreviated (resumed) handshakes on reconnect.
+	 * 
+	 * @return initialized SSLContext
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static SSLContext createSSLContext() throws KeyManagementException, NoSuchAlgorithmException {
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(new KeyManager[0], new TrustManager[] { new DefaultTrustManager() }, new SecureRandom());
+		return ctx;
+	}
+
+	/**
+	 * Returns a host name verifier which accepts any host, the FRITZ!Box
+	 * certificate is issued for its internal names only.
+	 * 
+	 * @return HostnameVerifier
+	 */
+	public static HostnameVerifier getHostnameVerifier() {
+		return HOSTNAME_VERIFIER;
+	}
+
 	/**
 	 * 
 	 * 
@@ -33,23 +58,26 @@ public class TrustCertificate {
 	 * @throws KeyManagementException
 	 * @throws NoSuchAlgorithmException
 	 * @throws IOException
+	 * @deprecated Replaces the JVM wide default SSLContext on every call. Use
+	 *             {@link FritzBoxConnectionPool} instead.
 	 */
+	@Deprecated
 	public static HttpsURLConnection trustCertificate(URL url)
 			throws KeyManagementException, NoSuchAlgorithmException, IOException {
 
-		SSLContext ctx = SSLContext.getInstance("TLS");
-		ctx.init(new KeyManager[0], new TrustManager[] { new DefaultTrustManager() }, new SecureRandom());
-		SSLContext.setDefault(ctx);
+		SSLContext.setDefault(createSSLContext());
 		HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-		conn.setHostnameVerifier(new HostnameVerifier() {
-			@Override
-			public boolean verify(String arg0, SSLSession arg1) {
-				return true;
-			}
-		});
+		conn.setHostnameVerifier(HOSTNAME_VERIFIER);
 		return conn;
 	}
 
+	private static final HostnameVerifier HOSTNAME_VERIFIER = new HostnameVerifier() {
+		@Override
+		public boolean verify(String arg0, SSLSession arg1) {
+			return true;
+		}
+	};
+
 	/**
 	 * 
 	 * @author Coulibaly, Ben Inza
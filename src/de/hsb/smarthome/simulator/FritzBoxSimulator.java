@@ -0,0 +1,617 @@
+package de.hsb.smarthome.simulator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Local stand-in for the AVM Home Automation (AHA) HTTP interface of a
+ * FRITZ!Box. It answers the requests sent by
+ * {@link de.hsb.smarthome.server.FritzBoxConnection}:
+ * <ul>
+ * <li>/login_sid.lua - challenge/response login, the response is checked like
+ * the FRITZ!Box does (MD5 over UTF-16LE "challenge-password")</li>
+ * <li>/webservices/homeautoswitch.lua - switchcmd setswitchon, setswitchoff,
+ * setswitchtoggle, the per-AIN getswitchpresent, getswitchstate,
+ * getswitchpower, getswitchenergy, gettemperature and getdevicelistinfos, an
+ * unknown SID is answered with "403 Forbidden"</li>
+ * <li>/login.lua?logout=1 - ends the session</li>
+ * </ul>
+ * The number of FRITZ!DECT 200 sockets, the latency of every answer and the
+ * rate of failed requests can be configured before {@link #start()}. The AINs
+ * of the simulated sockets contain no blank, so they can be used in URLs
+ * unchanged.
+ * <p>
+ * Run with:
+ * <code>java de.hsb.smarthome.simulator.FritzBoxSimulator [port] [devices] [latencyMs] [failureRate]</code>
+ *
+ */
+public class FritzBoxSimulator {
+
+	/**
+	 * @param port
+	 *            Port to listen on, 0 for any free port
+	 * @param deviceCount
+	 *            Number of simulated sockets
+	 */
+	public FritzBoxSimulator(int port, int deviceCount) {
+		PORT = port;
+		for (int i = 0; i < deviceCount; i++) {
+			SimDevice device = new SimDevice(String.format("08761%07d", i), "Steckdose " + (i + 1));
+			mDevices.put(device.ain, device);
+			mDeviceOrder.add(device);
+		}
+	}
+
+	/**
+	 * Sets the account which is accepted by the login.
+	 *
+	 * @param username
+	 * @param password
+	 */
+	public void setCredentials(String username, String password) {
+		mUsername = username;
+		mPassword = password;
+	}
+
+	/**
+	 * Every request is answered after latency plus a random part of jitter.
+	 *
+	 * @param latency
+	 *            Minimum time in ms before an answer is sent
+	 * @param jitter
+	 *            Maximum additional time in ms
+	 */
+	public void setLatency(long latency, long jitter) {
+		mLatencyMs = Math.max(0, latency);
+		mJitterMs = Math.max(0, jitter);
+	}
+
+	/**
+	 * @param failureRate
+	 *            Share of requests (0.0 - 1.0) which are answered with "500
+	 *            Internal Server Error"
+	 */
+	public void setFailureRate(double failureRate) {
+		mFailureRate = Math.max(0, Math.min(1, failureRate));
+	}
+
+	/**
+	 * @param timeout
+	 *            Time in ms after which an unused SID expires, the FRITZ!Box uses
+	 *            10 minutes
+	 */
+	public void setSessionTimeout(long timeout) {
+		mSessionTimeoutMs = timeout;
+	}
+
+	/**
+	 * @param workers
+	 *            Number of requests which are processed at the same time
+	 */
+	public void setWorkers(int workers) {
+		mWorkers = Math.max(1, workers);
+	}
+
+	/**
+	 * Serves HTTPS instead of HTTP, with the first key of the given keystore.
+	 *
+	 * @param keystore
+	 *            Path of a JKS keystore
+	 * @param password
+	 *            Password of the keystore and the key
+	 */
+	public void setKeyStore(String keystore, String password) {
+		mKeyStore = keystore;
+		mKeyStorePassword = password;
+	}
+
+	/**
+	 * Starts listening. The simulator runs until {@link #stop()} is called.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (mServer != null) {
+			return;
+		}
+		// without TCP_NODELAY the answers are held back by delayed ACKs (~40 ms),
+		// which would hide the configured latency; read once by the JDK server
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		InetSocketAddress address = new InetSocketAddress(PORT);
+		if (mKeyStore != null) {
+			HttpsServer https = HttpsServer.create(address, BACKLOG);
+			https.setHttpsConfigurator(new HttpsConfigurator(createSSLContext()));
+			mServer = https;
+		} else {
+			mServer = HttpServer.create(address, BACKLOG);
+		}
+
+		mServer.createContext("/login_sid.lua", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				process(exchange, new Handler() {
+					@Override
+					public Answer answer(Map<String, String> query) {
+						return handleLogin(query);
+					}
+				});
+			}
+		});
+		mServer.createContext("/webservices/homeautoswitch.lua", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				process(exchange, new Handler() {
+					@Override
+					public Answer answer(Map<String, String> query) {
+						return handleSwitch(query);
+					}
+				});
+			}
+		});
+		mServer.createContext("/login.lua", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				process(exchange, new Handler() {
+					@Override
+					public Answer answer(Map<String, String> query) {
+						return handleLogout(query);
+					}
+				});
+			}
+		});
+
+		mExecutor = Executors.newFixedThreadPool(mWorkers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FritzBoxSimulator-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mServer.setExecutor(mExecutor);
+		mServer.start();
+		LOGGER.write(this, "Simulator listening on " + getProtocol() + "://localhost:" + getPort() + " with "
+				+ mDeviceOrder.size() + " devices", LoggerMode.INFO);
+	}
+
+	/**
+	 * Stops the simulator and drops all sessions.
+	 */
+	public synchronized void stop() {
+		if (mServer != null) {
+			mServer.stop(0);
+			mExecutor.shutdownNow();
+			mServer = null;
+			mExecutor = null;
+		}
+		mSessions.clear();
+	}
+
+	/**
+	 * @return port the simulator listens on
+	 */
+	public int getPort() {
+		return mServer != null ? mServer.getAddress().getPort() : PORT;
+	}
+
+	/**
+	 * @return "https" if a keystore is set, "http" otherwise
+	 */
+	public String getProtocol() {
+		return mKeyStore != null ? "https" : "http";
+	}
+
+	/**
+	 * @return AINs of the simulated sockets in the order of the device list
+	 */
+	public List<String> getAins() {
+		List<String> ains = new ArrayList<String>();
+		for (SimDevice device : mDeviceOrder) {
+			ains.add(device.ain);
+		}
+		return ains;
+	}
+
+	/**
+	 * @param ain
+	 * @return switch state of the socket (0 or 1), or -1 if the AIN is unknown
+	 */
+	public int getState(String ain) {
+		SimDevice device = mDevices.get(ain);
+		return device != null ? device.state : -1;
+	}
+
+	/**
+	 * Connects or disconnects a simulated socket, e.g. to test how clients handle
+	 * sockets which are out of DECT range.
+	 *
+	 * @param ain
+	 * @param present
+	 */
+	public void setPresent(String ain, boolean present) {
+		SimDevice device = mDevices.get(ain);
+		if (device != null) {
+			synchronized (device) {
+				device.present = present;
+			}
+		}
+	}
+
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	public long getLoginCount() {
+		return mLogins.get();
+	}
+
+	public long getCommandCount() {
+		return mCommands.get();
+	}
+
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	public long getFailureCount() {
+		return mFailures.get();
+	}
+
+	/**
+	 * Resets all counters.
+	 */
+	public void resetCounters() {
+		mRequests.set(0);
+		mLogins.set(0);
+		mCommands.set(0);
+		mRejected.set(0);
+		mFailures.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + getRequestCount() + ", logins=" + getLoginCount() + ", commands=" + getCommandCount()
+				+ ", rejected=" + getRejectedCount() + ", failures=" + getFailureCount();
+	}
+
+	/**
+	 * Applies latency and failure injection and sends the answer of the handler.
+	 */
+	private void process(HttpExchange exchange, Handler handler) throws IOException {
+		mRequests.incrementAndGet();
+		try {
+			long delay = mLatencyMs + (mJitterMs > 0 ? ThreadLocalRandom.current().nextLong(mJitterMs + 1) : 0);
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+
+			Answer answer;
+			if (mFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < mFailureRate) {
+				mFailures.incrementAndGet();
+				answer = new Answer(500, "text/plain", "Internal Server Error\n");
+			} else {
+				answer = handler.answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+			}
+
+			byte[] body = answer.body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", answer.contentType + "; charset=utf-8");
+			exchange.sendResponseHeaders(answer.code, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Answer handleLogin(Map<String, String> query) {
+		String sid = INVALID_SESSION_ID;
+		String response = query.get("response");
+		if (response != null) {
+			int separator = response.indexOf('-');
+			String challenge = separator > 0 ? response.substring(0, separator) : "";
+			// a challenge is only valid once and only for a while
+			Long created = mChallenges.remove(challenge);
+			if (created != null && System.currentTimeMillis() - created <= CHALLENGE_TIMEOUT_MS
+					&& mUsername.equals(query.get("username"))
+					&& response.equals(challenge + "-" + md5(challenge + "-" + mPassword))) {
+				sid = createSessionId();
+				mSessions.put(sid, System.currentTimeMillis());
+				mLogins.incrementAndGet();
+			}
+		} else if (query.get("sid") != null && isValid(query.get("sid"))) {
+			sid = query.get("sid");
+		}
+
+		String challenge = createChallenge();
+		return new Answer(200, "text/xml",
+				"<?xml version=\"1.0\" encoding=\"utf-8\"?><SessionInfo><SID>" + sid + "</SID><Challenge>" + challenge
+						+ "</Challenge><BlockTime>0</BlockTime><Rights></Rights></SessionInfo>");
+	}
+
+	private Answer handleSwitch(Map<String, String> query) {
+		if (!isValid(query.get("sid"))) {
+			mRejected.incrementAndGet();
+			return new Answer(403, "text/plain", "Forbidden\n");
+		}
+		String cmd = query.get("switchcmd");
+		if ("getdevicelistinfos".equals(cmd)) {
+			return new Answer(200, "text/xml", createDeviceList());
+		}
+
+		SimDevice device = query.get("ain") != null ? mDevices.get(query.get("ain")) : null;
+		if (device == null) {
+			return new Answer(400, "text/plain", "Bad Request\n");
+		}
+		mCommands.incrementAndGet();
+		synchronized (device) {
+			if ("getswitchpresent".equals(cmd)) {
+				return new Answer(200, "text/plain", (device.present ? 1 : 0) + "\n");
+			}
+			if (!device.present) {
+				// a disconnected socket only answers the presence
+				return new Answer(200, "text/plain", "inval\n");
+			}
+			if ("setswitchon".equals(cmd)) {
+				device.state = 1;
+			} else if ("setswitchoff".equals(cmd)) {
+				device.state = 0;
+			} else if ("setswitchtoggle".equals(cmd)) {
+				device.state = 1 - device.state;
+			} else if ("getswitchpower".equals(cmd)) {
+				return new Answer(200, "text/plain", device.getPower() + "\n");
+			} else if ("getswitchenergy".equals(cmd)) {
+				return new Answer(200, "text/plain", device.energy + "\n");
+			} else if ("gettemperature".equals(cmd)) {
+				return new Answer(200, "text/plain", device.celsius + "\n");
+			} else if (!"getswitchstate".equals(cmd)) {
+				return new Answer(400, "text/plain", "Bad Request\n");
+			}
+			return new Answer(200, "text/plain", device.state + "\n");
+		}
+	}
+
+	private Answer handleLogout(Map<String, String> query) {
+		if ("1".equals(query.get("logout")) && query.get("sid") != null) {
+			mSessions.remove(query.get("sid"));
+		}
+		return new Answer(200, "text/html", "<html><body>FRITZ!Box</body></html>");
+	}
+
+	/**
+	 * Checks the SID and extends its lifetime like the FRITZ!Box does on every
+	 * request.
+	 */
+	private boolean isValid(String sid) {
+		if (sid == null) {
+			return false;
+		}
+		Long lastUse = mSessions.get(sid);
+		long now = System.currentTimeMillis();
+		if (lastUse == null || now - lastUse > mSessionTimeoutMs) {
+			mSessions.remove(sid);
+			return false;
+		}
+		mSessions.put(sid, now);
+		return true;
+	}
+
+	private String createDeviceList() {
+		StringBuilder sb = new StringBuilder("<devicelist version=\"1\">");
+		int id = 16;
+		for (SimDevice device : mDeviceOrder) {
+			synchronized (device) {
+				sb.append("<device identifier=\"").append(device.ain).append("\" id=\"").append(id++)
+						.append("\" functionbitmask=\"2944\" fwversion=\"03.87\" manufacturer=\"AVM\" productname=\"FRITZ!DECT 200\">")
+						.append("<present>").append(device.present ? 1 : 0).append("</present><name>")
+						.append(device.name).append("</name>")
+						.append("<switch><state>").append(device.state)
+						.append("</state><mode>manuell</mode><lock>0</lock><devicelock>0</devicelock></switch>")
+						.append("<powermeter><power>").append(device.getPower())
+						.append("</power><energy>").append(device.energy).append("</energy></powermeter>")
+						.append("<temperature><celsius>").append(device.celsius)
+						.append("</celsius><offset>0</offset></temperature></device>");
+			}
+		}
+		return sb.append("</devicelist>\n").toString();
+	}
+
+	/**
+	 * Creates a challenge for the next login and forgets the challenges which
+	 * have expired without being answered.
+	 */
+	private String createChallenge() {
+		long now = System.currentTimeMillis();
+		Iterator<Long> created = mChallenges.values().iterator();
+		while (created.hasNext()) {
+			if (now - created.next() > CHALLENGE_TIMEOUT_MS) {
+				created.remove();
+			}
+		}
+		String challenge = String.format("%08x", RANDOM.nextInt());
+		mChallenges.put(challenge, now);
+		return challenge;
+	}
+
+	private static String createSessionId() {
+		return String.format("%016x", RANDOM.nextLong());
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> values = new HashMap<String, String>();
+		if (query == null) {
+			return values;
+		}
+		try {
+			for (String pair : query.split("&")) {
+				int separator = pair.indexOf('=');
+				if (separator > 0) {
+					values.put(pair.substring(0, separator),
+							URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+		}
+		return values;
+	}
+
+	private static String md5(String input) {
+		try {
+			byte[] data = MessageDigest.getInstance("MD5").digest(input.getBytes("UTF-16LE"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : data) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return sb.toString();
+		} catch (GeneralSecurityException | UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private SSLContext createSSLContext() throws IOException {
+		try (InputStream in = new FileInputStream(mKeyStore)) {
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			keyStore.load(in, mKeyStorePassword.toCharArray());
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, mKeyStorePassword.toCharArray());
+			SSLContext ctx = SSLContext.getInstance("TLS");
+			ctx.init(kmf.getKeyManagers(), null, null);
+			return ctx;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Keystore could not be loaded: " + e.getMessage(), e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		FritzBoxSimulator simulator = new FritzBoxSimulator(args.length > 0 ? Integer.parseInt(args[0]) : 8080,
+				args.length > 1 ? Integer.parseInt(args[1]) : 10);
+		simulator.setLatency(args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_LATENCY_MS, 0);
+		simulator.setFailureRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+		simulator.start();
+		System.out.println("User \"" + DEFAULT_USERNAME + "\", password \"" + DEFAULT_PASSWORD + "\", AINs "
+				+ simulator.getAins());
+	}
+
+	public static final String DEFAULT_USERNAME = "smarthome";
+	public static final String DEFAULT_PASSWORD = "smarthome";
+	public static final long DEFAULT_LATENCY_MS = 50;
+	public static final long DEFAULT_SESSION_TIMEOUT_MS = 10 * 60 * 1000;
+
+	private static final String INVALID_SESSION_ID = "0000000000000000";
+	private static final long CHALLENGE_TIMEOUT_MS = 60 * 1000;
+	private static final int DEFAULT_WORKERS = 8;
+	private static final int BACKLOG = 64;
+	private static final Random RANDOM = new SecureRandom();
+
+	private final int PORT;
+	private final Logger LOGGER = Logger.getLogger();
+
+	private final Map<String, SimDevice> mDevices = new ConcurrentHashMap<String, SimDevice>();
+	private final List<SimDevice> mDeviceOrder = Collections.synchronizedList(new ArrayList<SimDevice>());
+	private final Map<String, Long> mSessions = new ConcurrentHashMap<String, Long>();
+	// time each challenge was created
+	private final Map<String, Long> mChallenges = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mLogins = new AtomicLong();
+	private final AtomicLong mCommands = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+
+	private String mUsername = DEFAULT_USERNAME;
+	private String mPassword = DEFAULT_PASSWORD;
+	private volatile long mLatencyMs;
+	private volatile long mJitterMs;
+	private volatile double mFailureRate;
+	private volatile long mSessionTimeoutMs = DEFAULT_SESSION_TIMEOUT_MS;
+	private int mWorkers = DEFAULT_WORKERS;
+	private String mKeyStore;
+	private String mKeyStorePassword;
+	private HttpServer mServer;
+	private ExecutorService mExecutor;
+
+	private interface Handler {
+		Answer answer(Map<String, String> query);
+	}
+
+	private static class Answer {
+
+		private Answer(int code, String contentType, String body) {
+			this.code = code;
+			this.contentType = contentType;
+			this.body = body;
+		}
+
+		private final int code;
+		private final String contentType;
+		private final String body;
+	}
+
+	/**
+	 * State of a simulated FRITZ!DECT 200 socket.
+	 */
+	private static class SimDevice {
+
+		private SimDevice(String ain, String name) {
+			this.ain = ain;
+			this.name = name;
+		}
+
+		/**
+		 * @return current power in mW, only consumed while switched on
+		 */
+		private int getPower() {
+			return state == 1 ? power : 0;
+		}
+
+		private final String ain;
+		private final String name;
+		private boolean present = true;
+		private int state;
+		private int power = 23500;
+		private int energy = 1200;
+		private int celsius = 215;
+	}
+}
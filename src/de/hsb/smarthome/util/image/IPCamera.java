@@ -14,6 +14,7 @@ public class IPCamera {
 	private final static String NOW = new SimpleDateFormat("yyyy.MM.dd_HH-mm-ss").format(new Date());
 	private final static String NAME = "snapshot_" + NOW + ".jpg";
 	private final static String FOLDER = "snapshots/";
+	private final static int BUFFER_SIZE = 8192;
 
 	/**
 	 * This method make a snapshot from ip_camera and save this local
@@ -44,31 +45,41 @@ public class IPCamera {
 	}
 
 	/**
-	 * Encodes the byte array into base64 string
+	 * Reads a snapshot from the ip camera
 	 *
-	 * @return String a {@link java.lang.String}
+	 * @return the JPEG file as sent by the camera
 	 * @throws IOException
 	 * @throws MalformedURLException
 	 */
-	public static String encodeImage() throws MalformedURLException, IOException {
+	public static byte[] readImage() throws MalformedURLException, IOException {
 		// Open URL connection
-
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		URLConnection connection;
 		connection = new URL(LINK).openConnection();
 		connection.connect();
+		// the camera sends the length, so the buffer does not have to grow
+		int length = connection.getContentLength();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length > 0 ? length : BUFFER_SIZE);
 		// Reading a Image from URL
-		InputStream imageInFile = new BufferedInputStream(connection.getInputStream());
-		int read = imageInFile.read();
-
-		while (read != -1) {
-			baos.write(read);
-			read = imageInFile.read();
+		InputStream imageInFile = connection.getInputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = imageInFile.read(buffer)) != -1) {
+			baos.write(buffer, 0, read);
 		}
 
 		imageInFile.close();
-		baos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Encodes the byte array into base64 string
+	 *
+	 * @return String a {@link java.lang.String}
+	 * @throws IOException
+	 * @throws MalformedURLException
+	 */
+	public static String encodeImage() throws MalformedURLException, IOException {
+		return Base64.getEncoder().encodeToString(readImage());
 	}
 
 	/**
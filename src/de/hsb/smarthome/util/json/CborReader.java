@@ -0,0 +1,422 @@
+package de.hsb.smarthome.util.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads CBOR (RFC 7049) as written by the {@link CborWriter}. It is a
+ * {@link JsonReader}, so the streaming adapters of the {@link JsonCodec} read
+ * the binary encoding without any change. Maps and arrays may have definite or
+ * indefinite length; map keys have to be text strings. Tags, byte strings and
+ * simple values other than false, true, null and undefined are not supported.
+ *
+ */
+class CborReader extends JsonReader {
+
+	/**
+	 * @param data The encoded bytes, not copied
+	 */
+	CborReader(final byte[] data) {
+		super(UNREADABLE_READER);
+		mData = data;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if(mPeeked != null) {
+			return mPeeked;
+		}
+		if(mDepth > 0) {
+			final long remaining = mRemaining[mDepth - 1];
+			final boolean end = remaining == INDEFINITE ? mData[require(1)] == (byte) CborWriter.BREAK : remaining == 0;
+			if(mIsMap[mDepth - 1]) {
+				if(end) {
+					return mPeeked = JsonToken.END_OBJECT;
+				}
+				if(mExpectName[mDepth - 1]) {
+					return mPeeked = JsonToken.NAME;
+				}
+			} else if(end) {
+				return mPeeked = JsonToken.END_ARRAY;
+			}
+		} else if(mPos >= mData.length) {
+			return mPeeked = JsonToken.END_DOCUMENT;
+		}
+
+		final int initial = mData[require(1)] & 0xff;
+		switch(initial >> 5) {
+		case 0:
+		case 1:
+			return mPeeked = JsonToken.NUMBER;
+		case 3:
+			return mPeeked = JsonToken.STRING;
+		case 4:
+			return mPeeked = JsonToken.BEGIN_ARRAY;
+		case 5:
+			return mPeeked = JsonToken.BEGIN_OBJECT;
+		case 7:
+			switch(initial & 0x1f) {
+			case 20:
+			case 21:
+				return mPeeked = JsonToken.BOOLEAN;
+			case 22:
+			case 23:
+				return mPeeked = JsonToken.NULL;
+			case 25:
+			case 26:
+			case 27:
+				return mPeeked = JsonToken.NUMBER;
+			default:
+				break;
+			}
+			break;
+		default:
+			break;
+		}
+		throw syntaxError("Unsupported CBOR data item 0x" + Integer.toHexString(initial));
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		expect(JsonToken.BEGIN_ARRAY);
+		push(false, readArgument(mData[mPos] & 0xff));
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		expect(JsonToken.END_ARRAY);
+		pop();
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT);
+		final long pairs = readArgument(mData[mPos] & 0xff);
+		push(true, pairs == INDEFINITE ? INDEFINITE : pairs * 2);
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		expect(JsonToken.END_OBJECT);
+		pop();
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		final JsonToken token = peek();
+		return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		expect(JsonToken.NAME);
+		final String name = readText();
+		mExpectName[mDepth - 1] = false;
+		consumed();
+		return name;
+	}
+
+	@Override
+	public String nextString() throws IOException {
+		final JsonToken token = peek();
+		if(token == JsonToken.STRING) {
+			mPeeked = null;
+			final String text = readText();
+			valueRead();
+			return text;
+		}
+		if(token == JsonToken.NUMBER) {
+			final int initial = mData[mPos] & 0xff;
+			return initial >> 5 == 7 ? Double.toString(nextDouble()) : Long.toString(nextLong());
+		}
+		throw syntaxError("Expected a string but was " + token);
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		expect(JsonToken.BOOLEAN);
+		final boolean value = mData[mPos++] == (byte) 0xf5;
+		valueRead();
+		return value;
+	}
+
+	@Override
+	public void nextNull() throws IOException {
+		expect(JsonToken.NULL);
+		mPos++;
+		valueRead();
+	}
+
+	@Override
+	public double nextDouble() throws IOException {
+		final JsonToken token = peek();
+		if(token == JsonToken.STRING) {
+			return Double.parseDouble(nextString());
+		}
+		if(token != JsonToken.NUMBER) {
+			throw syntaxError("Expected a number but was " + token);
+		}
+		mPeeked = null;
+		final int initial = mData[mPos] & 0xff;
+		final double value;
+		if(initial >> 5 == 7) {
+			mPos++;
+			switch(initial & 0x1f) {
+			case 25:
+				value = halfToFloat(readBytes(2));
+				break;
+			case 26:
+				value = Float.intBitsToFloat((int) readBytes(4));
+				break;
+			default:
+				value = Double.longBitsToDouble(readBytes(8));
+				break;
+			}
+		} else {
+			value = readInteger();
+		}
+		valueRead();
+		return value;
+	}
+
+	@Override
+	public long nextLong() throws IOException {
+		final JsonToken token = peek();
+		if(token == JsonToken.NUMBER && (mData[mPos] & 0xff) >> 5 != 7) {
+			mPeeked = null;
+			final long value = readInteger();
+			valueRead();
+			return value;
+		}
+		final double value = nextDouble();
+		if((long) value != value) {
+			throw new NumberFormatException("Expected a long but was " + value);
+		}
+		return (long) value;
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		final long value = nextLong();
+		if((int) value != value) {
+			throw new NumberFormatException("Expected an int but was " + value);
+		}
+		return (int) value;
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch(peek()) {
+			case BEGIN_ARRAY:
+				beginArray();
+				depth++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				depth++;
+				break;
+			case END_ARRAY:
+				endArray();
+				depth--;
+				break;
+			case END_OBJECT:
+				endObject();
+				depth--;
+				break;
+			case NAME:
+				nextName();
+				break;
+			case STRING:
+				nextString();
+				break;
+			case NUMBER:
+				nextDouble();
+				break;
+			case BOOLEAN:
+				nextBoolean();
+				break;
+			case NULL:
+				nextNull();
+				break;
+			default:
+				throw syntaxError("Unexpected end of data");
+			}
+		} while(depth > 0);
+	}
+
+	@Override
+	public void close() {
+		mPeeked = JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public String getPath() {
+		return "$ (byte " + mPos + ")";
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " at byte " + mPos;
+	}
+
+	private void expect(final JsonToken token) throws IOException {
+		final JsonToken peeked = peek();
+		if(peeked != token) {
+			throw syntaxError("Expected " + token + " but was " + peeked);
+		}
+		mPeeked = null;
+	}
+
+	private void push(final boolean map, final long remaining) {
+		if(mDepth == mRemaining.length) {
+			throw syntaxError("Nesting too deep");
+		}
+		mIsMap[mDepth] = map;
+		mRemaining[mDepth] = remaining;
+		mExpectName[mDepth] = map;
+		mDepth++;
+	}
+
+	private void pop() {
+		if(mRemaining[mDepth - 1] == INDEFINITE) {
+			mPos++;
+		}
+		mDepth--;
+		valueRead();
+	}
+
+	/**
+	 * A complete value (scalar, array or map) has been read.
+	 */
+	private void valueRead() {
+		if(mDepth > 0) {
+			if(mIsMap[mDepth - 1]) {
+				mExpectName[mDepth - 1] = true;
+			}
+			consumed();
+		}
+	}
+
+	private void consumed() {
+		if(mRemaining[mDepth - 1] != INDEFINITE) {
+			mRemaining[mDepth - 1]--;
+		}
+	}
+
+	private String readText() throws IOException {
+		final int initial = mData[mPos] & 0xff;
+		if(initial >> 5 != 3) {
+			throw syntaxError("Expected a text string");
+		}
+		final long length = readArgument(initial);
+		if(length == INDEFINITE || length > mData.length - mPos) {
+			throw syntaxError("Invalid text string length");
+		}
+		final String text = new String(mData, mPos, (int) length, StandardCharsets.UTF_8);
+		mPos += (int) length;
+		return text;
+	}
+
+	private long readInteger() {
+		final int initial = mData[mPos] & 0xff;
+		final long argument = readArgument(initial);
+		if(argument < 0) {
+			throw new NumberFormatException("Integer does not fit into a long");
+		}
+		return initial >> 5 == 0 ? argument : -1 - argument;
+	}
+
+	/**
+	 * Reads the initial byte and the argument which follows it.
+	 *
+	 * @return the argument, or {@link #INDEFINITE} for indefinite length
+	 */
+	private long readArgument(final int initial) {
+		mPos++;
+		final int info = initial & 0x1f;
+		if(info < 24) {
+			return info;
+		}
+		switch(info) {
+		case 24:
+			return readBytes(1);
+		case 25:
+			return readBytes(2);
+		case 26:
+			return readBytes(4);
+		case 27:
+			return readBytes(8);
+		case 31:
+			return INDEFINITE;
+		default:
+			throw syntaxError("Invalid additional information " + info);
+		}
+	}
+
+	private long readBytes(final int count) {
+		require(count);
+		long value = 0;
+		for(int i = 0; i < count; i++) {
+			value = (value << 8) | (mData[mPos++] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the current position, after checking that the given number of bytes is available
+	 */
+	private int require(final int count) {
+		if(mPos + count > mData.length) {
+			throw syntaxError("Unexpected end of data");
+		}
+		return mPos;
+	}
+
+	private static float halfToFloat(final long bits) {
+		final int exponent = (int) (bits >> 10) & 0x1f;
+		final int mantissa = (int) bits & 0x3ff;
+		final float value;
+		if(exponent == 0) {
+			value = mantissa * (float) Math.pow(2, -24);
+		} else if(exponent == 31) {
+			value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+		} else {
+			value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+		}
+		return (bits & 0x8000) != 0 ? -value : value;
+	}
+
+	private JsonSyntaxException syntaxError(final String message) {
+		return new JsonSyntaxException(message + " at byte " + mPos);
+	}
+
+	private static final long INDEFINITE = -1;
+	private static final int MAX_DEPTH = 32;
+
+	private static final Reader UNREADABLE_READER = new Reader() {
+		@Override
+		public int read(final char[] buffer, final int offset, final int count) {
+			throw new AssertionError();
+		}
+
+		@Override
+		public void close() {
+			throw new AssertionError();
+		}
+	};
+
+	private final byte[] mData;
+	private final boolean[] mIsMap = new boolean[MAX_DEPTH];
+	private final boolean[] mExpectName = new boolean[MAX_DEPTH];
+	private final long[] mRemaining = new long[MAX_DEPTH];
+	private int mDepth;
+	private int mPos;
+	private JsonToken mPeeked;
+}
@@ -0,0 +1,273 @@
+package de.hsb.smarthome.util.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes CBOR (RFC 7049) instead of JSON text. It is a {@link JsonWriter}, so
+ * the streaming adapters of the {@link JsonCodec} produce the binary encoding
+ * without any change. Objects and arrays are written with indefinite length,
+ * integers and floats in binary form, names and strings as UTF-8 text strings.
+ * Like the JSON output, names with a null value are left out unless
+ * {@link #setSerializeNulls(boolean)} is set.
+ * <p>
+ * Large binary values, i.e. images, may be collected as attachments instead of
+ * being written, the output only holds their index.
+ *
+ */
+class CborWriter extends JsonWriter {
+
+	CborWriter() {
+		this(null);
+	}
+
+	/**
+	 * @param attachments Receives the attachments, null to write all values
+	 */
+	CborWriter(final List<byte[]> attachments) {
+		super(UNWRITABLE_WRITER);
+		setSerializeNulls(false);
+		mAttachments = attachments;
+	}
+
+	/**
+	 * Adds the given bytes to the attachments.
+	 *
+	 * @param bytes The bytes to send as attachment
+	 * @return the index of the attachment, or null if this writer collects no
+	 *         attachments and the bytes have to be written
+	 */
+	Integer attach(final byte[] bytes) {
+		if(mAttachments == null) {
+			return null;
+		}
+		mAttachments.add(bytes);
+		return mAttachments.size() - 1;
+	}
+
+	/**
+	 * @return the encoded bytes
+	 */
+	byte[] toByteArray() {
+		return mOut.toByteArray();
+	}
+
+	@Override
+	public JsonWriter beginArray() throws IOException {
+		writeDeferredName();
+		mOut.write(0x9f);
+		return this;
+	}
+
+	@Override
+	public JsonWriter endArray() throws IOException {
+		mOut.write(BREAK);
+		return this;
+	}
+
+	@Override
+	public JsonWriter beginObject() throws IOException {
+		writeDeferredName();
+		mOut.write(0xbf);
+		return this;
+	}
+
+	@Override
+	public JsonWriter endObject() throws IOException {
+		if(mDeferredName != null) {
+			throw new IllegalStateException("Name without value: " + mDeferredName);
+		}
+		mOut.write(BREAK);
+		return this;
+	}
+
+	@Override
+	public JsonWriter name(final String name) throws IOException {
+		if(name == null) {
+			throw new NullPointerException("name == null");
+		}
+		if(mDeferredName != null) {
+			throw new IllegalStateException("Name without value: " + mDeferredName);
+		}
+		mDeferredName = name;
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final String value) throws IOException {
+		if(value == null) {
+			return nullValue();
+		}
+		writeDeferredName();
+		writeText(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter jsonValue(final String value) throws IOException {
+		throw new UnsupportedOperationException("Raw JSON can not be written as CBOR");
+	}
+
+	@Override
+	public JsonWriter nullValue() throws IOException {
+		if(mDeferredName != null) {
+			if(!getSerializeNulls()) {
+				mDeferredName = null;
+				return this;
+			}
+			writeDeferredName();
+		}
+		mOut.write(0xf6);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final boolean value) throws IOException {
+		writeDeferredName();
+		mOut.write(value ? 0xf5 : 0xf4);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final Boolean value) throws IOException {
+		if(value == null) {
+			return nullValue();
+		}
+		return value(value.booleanValue());
+	}
+
+	@Override
+	public JsonWriter value(final double value) throws IOException {
+		writeDeferredName();
+		if((float) value == value) {
+			writeFloat((float) value);
+		} else {
+			mOut.write(0xfb);
+			writeLong(Double.doubleToLongBits(value));
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final long value) throws IOException {
+		writeDeferredName();
+		if(value >= 0) {
+			writeHead(0x00, value);
+		} else {
+			writeHead(0x20, -1 - value);
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final Number value) throws IOException {
+		if(value == null) {
+			return nullValue();
+		}
+		if(value instanceof Float) {
+			writeDeferredName();
+			writeFloat(value.floatValue());
+			return this;
+		}
+		if(value instanceof Double || value instanceof BigDecimal) {
+			return value(value.doubleValue());
+		}
+		if(value instanceof BigInteger && ((BigInteger) value).bitLength() > 63) {
+			return value(value.doubleValue());
+		}
+		return value(value.longValue());
+	}
+
+	@Override
+	public void flush() {
+		//nothing buffered
+	}
+
+	@Override
+	public void close() {
+		//nothing to close
+	}
+
+	private void writeDeferredName() throws IOException {
+		if(mDeferredName != null) {
+			final String name = mDeferredName;
+			mDeferredName = null;
+			writeText(name);
+		}
+	}
+
+	private void writeText(final String text) throws IOException {
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		writeHead(0x60, bytes.length);
+		mOut.write(bytes);
+	}
+
+	private void writeFloat(final float value) {
+		mOut.write(0xfa);
+		writeInt(Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Writes the initial byte of a data item with its argument in the shortest form.
+	 */
+	private void writeHead(final int majorType, final long argument) {
+		if(argument < 24) {
+			mOut.write(majorType | (int) argument);
+		} else if(argument <= 0xff) {
+			mOut.write(majorType | 24);
+			mOut.write((int) argument);
+		} else if(argument <= 0xffff) {
+			mOut.write(majorType | 25);
+			mOut.write((int) (argument >> 8));
+			mOut.write((int) argument);
+		} else if(argument <= 0xffffffffL) {
+			mOut.write(majorType | 26);
+			writeInt((int) argument);
+		} else {
+			mOut.write(majorType | 27);
+			writeLong(argument);
+		}
+	}
+
+	private void writeInt(final int value) {
+		mOut.write(value >>> 24);
+		mOut.write(value >>> 16);
+		mOut.write(value >>> 8);
+		mOut.write(value);
+	}
+
+	private void writeLong(final long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	static final int BREAK = 0xff;
+
+	private static final Writer UNWRITABLE_WRITER = new Writer() {
+		@Override
+		public void write(final char[] buffer, final int offset, final int counter) {
+			throw new AssertionError();
+		}
+
+		@Override
+		public void flush() {
+			throw new AssertionError();
+		}
+
+		@Override
+		public void close() {
+			throw new AssertionError();
+		}
+	};
+
+	private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(1024);
+	private final List<byte[]> mAttachments;
+	private String mDeferredName;
+}
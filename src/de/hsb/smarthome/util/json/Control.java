@@ -1,8 +1,14 @@
 package de.hsb.smarthome.util.json;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Models a smarthome control unit. Used to hold and retrieve information about such.
@@ -43,6 +49,141 @@ public class Control {
 	@SerializedName("mem")
 	private Memory memory;
 
+	/**
+	 * Streaming adapter of a control unit with its processors and memory, used by
+	 * the {@link JsonCodec}.
+	 *
+	 */
+	static final class Adapter extends TypeAdapter<Control> {
+
+		@Override
+		public void write(final JsonWriter out, final Control control) throws IOException {
+			if(control == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("info").value(control.info);
+			out.name("cpu");
+			if(control.cpu == null) {
+				out.nullValue();
+			} else {
+				out.beginArray();
+				for(Processor processor : control.cpu) {
+					if(processor == null) {
+						out.nullValue();
+						continue;
+					}
+					out.beginObject();
+					out.name("core").value(processor.core);
+					out.name("work").value(Float.valueOf(processor.work));
+					out.name("temp").value(Float.valueOf(processor.temperature));
+					out.endObject();
+				}
+				out.endArray();
+			}
+			out.name("mem");
+			if(control.memory == null) {
+				out.nullValue();
+			} else {
+				out.beginObject();
+				out.name("used").value(control.memory.used);
+				out.name("free").value(control.memory.free);
+				out.endObject();
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Control read(final JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Control control = new Control();
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+				case "info":
+					control.info = JsonCodec.nextString(in);
+					break;
+				case "cpu":
+					control.cpu = readProcessors(in, control);
+					break;
+				case "mem":
+					control.memory = readMemory(in, control);
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return control;
+		}
+
+		private static List<Processor> readProcessors(final JsonReader in, final Control control) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final List<Processor> cpu = new ArrayList<Processor>();
+			in.beginArray();
+			while(in.hasNext()) {
+				if(in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					cpu.add(null);
+					continue;
+				}
+				final Processor processor = control.new Processor();
+				in.beginObject();
+				while(in.hasNext()) {
+					switch(in.nextName()) {
+					case "core":
+						processor.core = JsonCodec.nextInt(in, processor.core);
+						break;
+					case "work":
+						final Float work = JsonCodec.nextFloat(in);
+						processor.work = work != null ? work : processor.work;
+						break;
+					case "temp":
+						final Float temperature = JsonCodec.nextFloat(in);
+						processor.temperature = temperature != null ? temperature : processor.temperature;
+						break;
+					default:
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				cpu.add(processor);
+			}
+			in.endArray();
+			return cpu;
+		}
+
+		private static Memory readMemory(final JsonReader in, final Control control) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Memory memory = control.new Memory();
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+				case "used":
+					memory.used = JsonCodec.nextLong(in, memory.used);
+					break;
+				case "free":
+					memory.free = JsonCodec.nextLong(in, memory.free);
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return memory;
+		}
+	}
+
 	/**
 	 * Models a single Processor of the smarthome control unit CPU. 
 	 *
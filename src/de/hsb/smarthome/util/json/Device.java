@@ -1,9 +1,15 @@
 package de.hsb.smarthome.util.json;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Models a smarthome controllable device. Each device should be of
@@ -22,6 +28,22 @@ public class Device {
 		CAMERA;
 	}
 
+	/**
+	 * Declares the fields of a device which can change. A change of a device
+	 * names the fields it contains, the ID is always part of it.
+	 *
+	 */
+	public enum Field{
+		TYPE,
+		NAME,
+		CONNECTED,
+		STATUS,
+		POWER,
+		ENERGY,
+		TEMPERATURE,
+		CYCLES;
+	}
+
 	public Device() {
 		//no-arg constructor
 	}
@@ -106,6 +128,73 @@ public class Device {
 		this.cycles = cycles;
 	}
 	
+	/**
+	 * Gets the fields contained in this device if it is a change of another
+	 * device, see {@link #createChange(Device, EnumSet)}
+	 * 
+	 * @return the contained fields, or null if this device is complete
+	 */
+	public EnumSet<Field> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Creates a change of the given device which contains its ID and the given
+	 * fields only. The values are taken as they are, the cycles are not copied.
+	 * 
+	 * @param device The device whose fields have changed
+	 * @param fields The fields to take over
+	 * @return a device which is written with the given fields only
+	 */
+	public static Device createChange(final Device device, final EnumSet<Field> fields) {
+		final Device change = new Device();
+		change.id = device.id;
+		change.fields = EnumSet.copyOf(fields);
+		change.type = device.type;
+		change.name = device.name;
+		change.isConnected = device.isConnected;
+		change.status = device.status;
+		change.power = device.power;
+		change.energy = device.energy;
+		change.temperature = device.temperature;
+		change.cycles = device.cycles;
+		return change;
+	}
+
+	/**
+	 * Takes over the fields contained in the given change. A complete device
+	 * is taken over with all fields.
+	 * 
+	 * @param change A change of this device
+	 */
+	public void update(final Device change) {
+		final EnumSet<Field> changed = change.fields != null ? change.fields : EnumSet.allOf(Field.class);
+		if(changed.contains(Field.TYPE)) {
+			this.type = change.type;
+		}
+		if(changed.contains(Field.NAME)) {
+			this.name = change.name;
+		}
+		if(changed.contains(Field.CONNECTED)) {
+			this.isConnected = change.isConnected;
+		}
+		if(changed.contains(Field.STATUS)) {
+			this.status = change.status;
+		}
+		if(changed.contains(Field.POWER)) {
+			this.power = change.power;
+		}
+		if(changed.contains(Field.ENERGY)) {
+			this.energy = change.energy;
+		}
+		if(changed.contains(Field.TEMPERATURE)) {
+			this.temperature = change.temperature;
+		}
+		if(changed.contains(Field.CYCLES)) {
+			this.cycles = change.cycles;
+		}
+	}
+
 	/**
 	 * Validates whether the given string matches the required time format.
 	 * The accepted format is 'HH:mm:ss', e.g. 13:05:00
@@ -146,6 +235,247 @@ public class Device {
 	private Float power;
 	private Float energy;
 	private List<Cycle> cycles;
+	private transient EnumSet<Field> fields;
+
+	/**
+	 * Streaming adapter of a device and its cycles, used by the {@link JsonCodec}.
+	 * The AID is transient and therefore neither written nor read.
+	 * <p>
+	 * The adapter for changes writes only the fields contained in a change,
+	 * including those which have become null, and records the fields it reads.
+	 *
+	 */
+	static final class Adapter extends TypeAdapter<Device> {
+
+		Adapter() {
+			this(false);
+		}
+
+		/**
+		 * @param changes true to write and read changes of devices
+		 */
+		Adapter(final boolean changes) {
+			this.changes = changes;
+		}
+
+		@Override
+		public void write(final JsonWriter out, final Device device) throws IOException {
+			if(device == null) {
+				out.nullValue();
+				return;
+			}
+			if(changes && device.fields != null) {
+				final boolean serializeNulls = out.getSerializeNulls();
+				out.setSerializeNulls(true);
+				try {
+					writeFields(out, device, device.fields);
+				} finally {
+					out.setSerializeNulls(serializeNulls);
+				}
+				return;
+			}
+			writeFields(out, device, EnumSet.allOf(Field.class));
+		}
+
+		private static void writeFields(final JsonWriter out, final Device device, final EnumSet<Field> fields)
+				throws IOException {
+			out.beginObject();
+			out.name("id").value(device.id);
+			if(fields.contains(Field.TYPE)) {
+				out.name("type");
+				JsonCodec.writeEnum(out, device.type);
+			}
+			if(fields.contains(Field.NAME)) {
+				out.name("name").value(device.name);
+			}
+			if(fields.contains(Field.CONNECTED)) {
+				out.name("connected").value(device.isConnected);
+			}
+			if(fields.contains(Field.STATUS)) {
+				out.name("status").value(device.status);
+			}
+			if(fields.contains(Field.TEMPERATURE)) {
+				out.name("temp").value(device.temperature);
+			}
+			if(fields.contains(Field.POWER)) {
+				out.name("power").value(device.power);
+			}
+			if(fields.contains(Field.ENERGY)) {
+				out.name("energy").value(device.energy);
+			}
+			if(fields.contains(Field.CYCLES)) {
+				out.name("cycles");
+				if(device.cycles == null) {
+					out.nullValue();
+				} else {
+					out.beginArray();
+					for(Cycle cycle : device.cycles) {
+						writeCycle(out, cycle);
+					}
+					out.endArray();
+				}
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Device read(final JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Device device = new Device();
+			final EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+				case "id":
+					device.id = JsonCodec.nextInt(in, device.id);
+					break;
+				case "type":
+					device.type = JsonCodec.nextEnum(in, Type.class);
+					fields.add(Field.TYPE);
+					break;
+				case "name":
+					device.name = JsonCodec.nextString(in);
+					fields.add(Field.NAME);
+					break;
+				case "connected":
+					device.isConnected = JsonCodec.nextBoolean(in, device.isConnected);
+					fields.add(Field.CONNECTED);
+					break;
+				case "status":
+					device.status = JsonCodec.nextInt(in, device.status);
+					fields.add(Field.STATUS);
+					break;
+				case "temp":
+					device.temperature = JsonCodec.nextFloat(in);
+					fields.add(Field.TEMPERATURE);
+					break;
+				case "power":
+					device.power = JsonCodec.nextFloat(in);
+					fields.add(Field.POWER);
+					break;
+				case "energy":
+					device.energy = JsonCodec.nextFloat(in);
+					fields.add(Field.ENERGY);
+					break;
+				case "cycles":
+					fields.add(Field.CYCLES);
+					if(in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						device.cycles = null;
+						break;
+					}
+					device.cycles = new ArrayList<Cycle>();
+					in.beginArray();
+					while(in.hasNext()) {
+						device.cycles.add(readCycle(in, device));
+					}
+					in.endArray();
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			if(changes) {
+				device.fields = fields;
+			}
+			return device;
+		}
+
+		private final boolean changes;
+	}
+
+	/**
+	 * Streaming adapter of a single cycle, used by the {@link JsonCodec}.
+	 *
+	 */
+	static final class CycleAdapter extends TypeAdapter<Cycle> {
+
+		@Override
+		public void write(final JsonWriter out, final Cycle cycle) throws IOException {
+			writeCycle(out, cycle);
+		}
+
+		@Override
+		public Cycle read(final JsonReader in) throws IOException {
+			return readCycle(in, new Device());
+		}
+	}
+
+	private static void writeCycle(final JsonWriter out, final Cycle cycle) throws IOException {
+		if(cycle == null) {
+			out.nullValue();
+			return;
+		}
+		out.beginObject();
+		out.name("start").value(cycle.start);
+		out.name("stop").value(cycle.stop);
+		out.name("type").value(cycle.cycletype);
+		out.name("days");
+		if(cycle.days == null) {
+			out.nullValue();
+		} else {
+			out.beginArray();
+			for(Weekday day : cycle.days) {
+				out.value(day.name());
+			}
+			out.endArray();
+		}
+		out.name("name").value(cycle.name);
+		out.endObject();
+	}
+
+	/**
+	 * Reads a cycle which belongs to the given device. Values are taken as they are,
+	 * like the reflective adapter does, without the checks of the setters.
+	 */
+	private static Cycle readCycle(final JsonReader in, final Device device) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		final Cycle cycle = device.new Cycle();
+		in.beginObject();
+		while(in.hasNext()) {
+			switch(in.nextName()) {
+			case "start":
+				cycle.start = JsonCodec.nextString(in);
+				break;
+			case "stop":
+				cycle.stop = JsonCodec.nextString(in);
+				break;
+			case "type":
+				cycle.cycletype = JsonCodec.nextString(in);
+				break;
+			case "days":
+				if(in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					cycle.days = null;
+					break;
+				}
+				cycle.days = EnumSet.noneOf(Weekday.class);
+				in.beginArray();
+				while(in.hasNext()) {
+					final Weekday day = JsonCodec.nextEnum(in, Weekday.class);
+					if(day != null) {
+						cycle.days.add(day);
+					}
+				}
+				in.endArray();
+				break;
+			case "name":
+				cycle.name = JsonCodec.nextString(in);
+				break;
+			default:
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return cycle;
+	}
 
 	/**
 	 * Models an operation cycle of a smarthome device. A cycle is defined by
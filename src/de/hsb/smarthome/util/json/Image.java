@@ -8,10 +8,16 @@ import java.sql.Timestamp;
 import java.util.Base64;
 
 import javax.imageio.ImageIO;
-import javax.xml.bind.DatatypeConverter;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 /**
- * Models an image sent by a smarthome to the client application.
+ * Models an image sent by a smarthome to the client application. The image is
+ * either embedded Base64 encoded, or, on connections which support it, sent as
+ * a binary attachment after the transmission and referenced by its index.
  *
  */
 public class Image {
@@ -41,8 +47,9 @@ public class Image {
 		if(image != null) {
 			return image;
 		}
-		if(data != null) {
-			this.image = ImageIO.read(new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(this.data)));
+		final byte[] raw = getBytes();
+		if(raw != null) {
+			this.image = ImageIO.read(new ByteArrayInputStream(raw));
 			return image;
 		}
 		return null;
@@ -87,6 +94,38 @@ public class Image {
 	public void setData(final String data) {
 		this.data = data;
 	}
+
+	/**
+	 * Returns the encoded image, e.g. the JPEG file
+	 * 
+	 * @return the received attachment or the decoded data, null if this image
+	 * 		   has none of them
+	 */
+	public byte[] getBytes() {
+		if(bytes == null && data != null) {
+			this.bytes = Base64.getDecoder().decode(data);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Sets the encoded image, e.g. the JPEG file. It is sent as attachment if
+	 * the connection supports it, otherwise Base64 encoded. The array is not
+	 * copied.
+	 * 
+	 * @param bytes The encoded image
+	 */
+	public void setBytes(final byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return the index of the attachment of the transmission which holds this
+	 * 		   image, null if the image is not sent as attachment
+	 */
+	public Integer getAttachment() {
+		return attachment;
+	}
 	
 	/**
 	 * Serializes a provided BufferedImage to a base64 encoded string
@@ -110,5 +149,83 @@ public class Image {
 	private Format format;
 	private Timestamp timestamp;
 	private String data;
+	private Integer attachment;
+	private transient byte[] bytes;
 	private transient BufferedImage image;
+
+	/**
+	 * Streaming adapter of an image, used by the {@link JsonCodec}. The timestamp
+	 * is written in the {@link Transmission#TIMESTAMP_FORMAT}.
+	 *
+	 */
+	static final class Adapter extends TypeAdapter<Image> {
+
+		Adapter(final TypeAdapter<Timestamp> timestamps) {
+			this.timestamps = timestamps;
+		}
+
+		@Override
+		public void write(final JsonWriter out, final Image image) throws IOException {
+			if(image == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("title").value(image.title);
+			out.name("comment").value(image.comment);
+			out.name("format");
+			JsonCodec.writeEnum(out, image.format);
+			out.name("timestamp");
+			timestamps.write(out, image.timestamp);
+			if(image.data == null && image.bytes != null) {
+				final Integer index = out instanceof CborWriter ? ((CborWriter) out).attach(image.bytes) : null;
+				if(index != null) {
+					out.name("attachment").value(index);
+				} else {
+					out.name("data").value(Base64.getEncoder().encodeToString(image.bytes));
+				}
+			} else {
+				out.name("data").value(image.data);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Image read(final JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Image image = new Image();
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+				case "title":
+					image.title = JsonCodec.nextString(in);
+					break;
+				case "comment":
+					image.comment = JsonCodec.nextString(in);
+					break;
+				case "format":
+					image.format = JsonCodec.nextEnum(in, Format.class);
+					break;
+				case "timestamp":
+					image.timestamp = timestamps.read(in);
+					break;
+				case "data":
+					image.data = JsonCodec.nextString(in);
+					break;
+				case "attachment":
+					image.attachment = JsonCodec.nextInteger(in);
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return image;
+		}
+
+		private final TypeAdapter<Timestamp> timestamps;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,258 @@
+package de.hsb.smarthome.util.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Timestamp;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import de.hsb.smarthome.util.json.env.TempHumSensor;
+
+/**
+ * Shared JSON codec for all messages of the smarthome. Building a Gson instance
+ * creates the reflective adapters of every class involved, which costs far more
+ * than encoding a single message. The instance is therefore built only once;
+ * Gson is thread-safe and may be used by any number of threads at the same time.
+ * <p>
+ * The classes of the protocol ({@link Transmission}, {@link Device},
+ * {@link Device.Cycle}, {@link Control} and {@link Image}) are encoded by
+ * hand-written streaming adapters, which read and write the fields directly
+ * without reflection. The produced JSON is the same as with the reflective
+ * adapters.
+ * <p>
+ * The same adapters encode the messages as CBOR, a binary form of the JSON data
+ * model with the same names and values, which is smaller and cheaper to parse.
+ *
+ */
+public final class JsonCodec {
+
+	private JsonCodec() {
+		//no instances
+	}
+
+	/**
+	 * Returns the shared Gson instance. Other classes than the protocol classes
+	 * are handled by the reflective adapters of Gson, which are cached as well.
+	 *
+	 * @return the shared, thread-safe Gson instance
+	 */
+	public static Gson getGson() {
+		return GSON;
+	}
+
+	/**
+	 * Serializes the given object to a JSON string
+	 *
+	 * @param obj The object to serialize
+	 * @return the JSON representation of the object
+	 */
+	public static String toJson(final Object obj) {
+		return GSON.toJson(obj);
+	}
+
+	/**
+	 * Deserializes a JSON representation to an instance of the given type
+	 *
+	 * @param json The JSON string to deserialize
+	 * @param type The class of the instance
+	 * @return an instance represented by the given JSON string, or null if the string was empty
+	 * @throws JsonSyntaxException If the given string was invalid JSON
+	 */
+	public static <T> T fromJson(final String json, final Class<T> type) throws JsonSyntaxException {
+		return GSON.fromJson(json, type);
+	}
+
+	/**
+	 * Deserializes the next JSON document of the reader to an instance of the given type.
+	 * The document is parsed while it is read, it is not buffered as a string.
+	 *
+	 * @param reader The reader to deserialize, read up to the end of the document
+	 * @param type The class of the instance
+	 * @return an instance represented by the JSON document, or null if the reader was empty
+	 * @throws JsonSyntaxException If the document was invalid JSON or the reader could not be read
+	 */
+	public static <T> T fromJson(final Reader reader, final Class<T> type) throws JsonSyntaxException {
+		return GSON.fromJson(reader, type);
+	}
+
+	/**
+	 * Serializes the given object to CBOR (RFC 7049)
+	 *
+	 * @param obj The object to serialize
+	 * @return the CBOR representation of the object
+	 */
+	public static byte[] toCbor(final Object obj) {
+		return toCbor(obj, null);
+	}
+
+	/**
+	 * Serializes the given object to CBOR (RFC 7049). The bytes of images are
+	 * not written but added to the given list, the output references them by
+	 * their index.
+	 *
+	 * @param obj The object to serialize
+	 * @param attachments Receives the bytes of the images, null to embed them
+	 * @return the CBOR representation of the object
+	 */
+	public static byte[] toCbor(final Object obj, final List<byte[]> attachments) {
+		final CborWriter writer = new CborWriter(attachments);
+		try {
+			@SuppressWarnings("unchecked")
+			final TypeAdapter<Object> adapter = (TypeAdapter<Object>) GSON.getAdapter(obj.getClass());
+			adapter.write(writer, obj);
+		} catch(IOException ex) {
+			throw new JsonIOException(ex);
+		}
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Deserializes a CBOR representation to an instance of the given type
+	 *
+	 * @param data The CBOR data to deserialize
+	 * @param type The class of the instance
+	 * @return an instance represented by the given data
+	 * @throws JsonSyntaxException If the given data was invalid CBOR or did not match the type
+	 */
+	public static <T> T fromCbor(final byte[] data, final Class<T> type) throws JsonSyntaxException {
+		try {
+			return GSON.getAdapter(type).read(new CborReader(data));
+		} catch(IOException | IllegalStateException | NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static String nextString(final JsonReader in) throws IOException {
+		final JsonToken token = in.peek();
+		if(token == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		if(token == JsonToken.BOOLEAN) {
+			return Boolean.toString(in.nextBoolean());
+		}
+		return in.nextString();
+	}
+
+	static int nextInt(final JsonReader in, final int defaultValue) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return defaultValue;
+		}
+		try {
+			return in.nextInt();
+		} catch(NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static Integer nextInteger(final JsonReader in) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		try {
+			return in.nextInt();
+		} catch(NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static long nextLong(final JsonReader in, final long defaultValue) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return defaultValue;
+		}
+		try {
+			return in.nextLong();
+		} catch(NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static Long nextLong(final JsonReader in) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		try {
+			return in.nextLong();
+		} catch(NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static Float nextFloat(final JsonReader in) throws IOException {
+		if(in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		try {
+			return (float) in.nextDouble();
+		} catch(NumberFormatException ex) {
+			throw new JsonSyntaxException(ex);
+		}
+	}
+
+	static boolean nextBoolean(final JsonReader in, final boolean defaultValue) throws IOException {
+		final JsonToken token = in.peek();
+		if(token == JsonToken.NULL) {
+			in.nextNull();
+			return defaultValue;
+		}
+		if(token == JsonToken.STRING) {
+			return Boolean.parseBoolean(in.nextString());
+		}
+		return in.nextBoolean();
+	}
+
+	/**
+	 * Reads an enum constant by its name. Unknown names are read as null, like
+	 * the enum adapter of Gson does.
+	 */
+	static <E extends Enum<E>> E nextEnum(final JsonReader in, final Class<E> type) throws IOException {
+		final String name = nextString(in);
+		if(name == null) {
+			return null;
+		}
+		try {
+			return Enum.valueOf(type, name);
+		} catch(IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	static void writeEnum(final JsonWriter out, final Enum<?> value) throws IOException {
+		out.value(value != null ? value.name() : null);
+	}
+
+	private static final Gson GSON;
+
+	static {
+		final Gson reflective = new GsonBuilder()
+				.setDateFormat(Transmission.TIMESTAMP_FORMAT)
+				.create();
+		final TypeAdapter<Timestamp> timestamps = reflective.getAdapter(Timestamp.class);
+		final Device.Adapter devices = new Device.Adapter();
+		final Control.Adapter controls = new Control.Adapter();
+		final Image.Adapter images = new Image.Adapter(timestamps);
+
+		GSON = new GsonBuilder()
+				.setDateFormat(Transmission.TIMESTAMP_FORMAT)
+				.registerTypeAdapter(Transmission.class, new Transmission.Adapter(controls,
+						reflective.getAdapter(TempHumSensor.class), devices, new Device.Adapter(true), images))
+				.registerTypeAdapter(Device.class, devices)
+				.registerTypeAdapter(Device.Cycle.class, new Device.CycleAdapter())
+				.registerTypeAdapter(Control.class, controls)
+				.registerTypeAdapter(Image.class, images)
+				.create();
+	}
+}
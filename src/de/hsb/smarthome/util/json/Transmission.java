@@ -1,10 +1,18 @@
 package de.hsb.smarthome.util.json;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import de.hsb.smarthome.util.json.env.TempHumSensor;
 
 /**
  * Models a transmission between the control unit of a smarthome and the client application.
@@ -21,7 +29,12 @@ public class Transmission {
 		COMMIT,
 		SUCCESS,
 		ERROR,
-		CLOSE;
+		CLOSE,
+		HELLO,
+		SUBSCRIBE,
+		UNSUBSCRIBE,
+		PING,
+		PONG;
 	}
 	
 	public static final transient String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
@@ -30,6 +43,18 @@ public class Transmission {
 		//no-arg constructor
 	}
 
+	/**
+	 * @return the correlation ID of a request and its answer, null for
+	 *         transmissions which are no request or answer
+	 */
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(final Integer id) {
+		this.id = id;
+	}
+
 	public Action getAction() {
 		return action;
 	}
@@ -46,6 +71,17 @@ public class Transmission {
 		this.control = control;
 	}
 
+	/**
+	 * @return the room temperature and humidity, null if not measured
+	 */
+	public TempHumSensor getEnvironment() {
+		return environment;
+	}
+
+	public void setEnvironment(final TempHumSensor environment) {
+		this.environment = environment;
+	}
+
 	public List<Device> getDevices() {
 		return devices;
 	}
@@ -61,6 +97,70 @@ public class Transmission {
 		this.devices.add(device);
 	}
 
+	/**
+	 * In a REPORT request the version of the devices the client has seen last,
+	 * in the answer the version of the devices it contains.
+	 * 
+	 * @return the version, null if the devices are not versioned
+	 */
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(final Long version) {
+		this.version = version;
+	}
+
+	/**
+	 * In a SUBSCRIBE request the session the client had before it lost the
+	 * connection, in the answer the session of the subscription.
+	 * 
+	 * @return the session token, null if there is none
+	 */
+	public String getSession() {
+		return session;
+	}
+
+	public void setSession(final String session) {
+		this.session = session;
+	}
+
+	/**
+	 * Gets the changes of the devices since the version of the request. Each
+	 * change contains the changed fields only, see {@link Device#getFields()}.
+	 * 
+	 * @return the changed devices, null if the answer is no delta
+	 */
+	public List<Device> getChanges() {
+		return changes;
+	}
+
+	public void setChanges(final List<Device> changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * @return the IDs of the devices removed since the version of the request,
+	 *         null if the answer is no delta
+	 */
+	public List<Integer> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(final List<Integer> removed) {
+		this.removed = removed;
+	}
+
+	/**
+	 * Indicates whether the devices of this transmission are a delta to the
+	 * version of the request, i.e. only changes and removed devices
+	 * 
+	 * @return true if changes or removed devices are set
+	 */
+	public boolean isDelta() {
+		return changes != null || removed != null;
+	}
+
 	public List<Image> getImages() {
 		return images;
 	}
@@ -84,10 +184,7 @@ public class Transmission {
 	 * @return the JSON representation of the transmission
 	 */
 	public static String serializeToJson(final Transmission transmission) {
-		return new GsonBuilder()
-				.setDateFormat(TIMESTAMP_FORMAT)
-				.create()
-				.toJson(transmission);
+		return JsonCodec.toJson(transmission);
 	}
 
 	/**
@@ -98,15 +195,245 @@ public class Transmission {
 	 * @throws JsonSyntaxException If the given string was invalid JSON
 	 */
 	public static Transmission deserializeJson(final String json) throws JsonSyntaxException {
-		return new GsonBuilder()
-				.setDateFormat(TIMESTAMP_FORMAT)
-				.create()
-				.fromJson(json, Transmission.class);
+		return JsonCodec.fromJson(json, Transmission.class);
 	}
 
+	/**
+	 * Deserializes the JSON representation read from the reader to a Transmission instance
+	 * 
+	 * @param reader The reader which gives the JSON representation
+	 * @return a Transmission instance represented by the read JSON, or null if the reader was empty
+	 * @throws JsonSyntaxException If the read JSON was invalid or the reader could not be read
+	 */
+	public static Transmission deserializeJson(final Reader reader) throws JsonSyntaxException {
+		return JsonCodec.fromJson(reader, Transmission.class);
+	}
+
+	/**
+	 * Serializes a given Transmission instance to CBOR
+	 * 
+	 * @param transmission The transmission to serialize
+	 * @return the CBOR representation of the transmission
+	 */
+	public static byte[] serializeToCbor(final Transmission transmission) {
+		return JsonCodec.toCbor(transmission);
+	}
+
+	/**
+	 * Serializes a given Transmission instance to CBOR, the images which are
+	 * set as bytes are not embedded but returned as attachments
+	 * 
+	 * @param transmission The transmission to serialize
+	 * @param attachments Receives the attachments in the order of their index
+	 * @return the CBOR representation of the transmission
+	 */
+	public static byte[] serializeToCbor(final Transmission transmission, final List<byte[]> attachments) {
+		return JsonCodec.toCbor(transmission, attachments);
+	}
+
+	/**
+	 * Returns the number of attachments which have to be received after this
+	 * transmission
+	 * 
+	 * @return the highest attachment index of the images plus one
+	 */
+	public int getAttachmentCount() {
+		int count = 0;
+		if(this.images != null) {
+			for(Image image : this.images) {
+				if(image != null && image.getAttachment() != null) {
+					count = Math.max(count, image.getAttachment() + 1);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Passes the received attachments to the images which reference them
+	 * 
+	 * @param attachments The attachments in the order of their index
+	 */
+	public void attach(final List<byte[]> attachments) {
+		if(this.images != null) {
+			for(Image image : this.images) {
+				final Integer index = image != null ? image.getAttachment() : null;
+				if(index != null && index >= 0 && index < attachments.size()) {
+					image.setBytes(attachments.get(index));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deserializes a CBOR representation to a Transmission instance
+	 * 
+	 * @param data The CBOR data to deserialize
+	 * @return a Transmission instance represented by the given data
+	 * @throws JsonSyntaxException If the given data was invalid CBOR
+	 */
+	public static Transmission deserializeCbor(final byte[] data) throws JsonSyntaxException {
+		return JsonCodec.fromCbor(data, Transmission.class);
+	}
+
+	private Integer id;
 	private Action action;
 	private String message;
 	private Control control;
+	private TempHumSensor environment;
+	private Long version;
+	private String session;
 	private List<Device> devices;
+	private List<Device> changes;
+	private List<Integer> removed;
 	private List<Image> images;
+
+	/**
+	 * Streaming adapter of a transmission, used by the {@link JsonCodec}.
+	 *
+	 */
+	static final class Adapter extends TypeAdapter<Transmission> {
+
+		Adapter(final Control.Adapter controls, final TypeAdapter<TempHumSensor> environments,
+				final Device.Adapter devices, final Device.Adapter changes, final Image.Adapter images) {
+			this.controls = controls;
+			this.environments = environments;
+			this.devices = devices;
+			this.changes = changes;
+			this.images = images;
+		}
+
+		@Override
+		public void write(final JsonWriter out, final Transmission transmission) throws IOException {
+			if(transmission == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("id").value(transmission.id);
+			out.name("action");
+			JsonCodec.writeEnum(out, transmission.action);
+			out.name("message").value(transmission.message);
+			out.name("control");
+			controls.write(out, transmission.control);
+			out.name("environment");
+			environments.write(out, transmission.environment);
+			out.name("version").value(transmission.version);
+			out.name("session").value(transmission.session);
+			out.name("devices");
+			writeList(out, transmission.devices, devices);
+			out.name("changes");
+			writeList(out, transmission.changes, changes);
+			out.name("removed");
+			if(transmission.removed == null) {
+				out.nullValue();
+			} else {
+				out.beginArray();
+				for(Integer id : transmission.removed) {
+					out.value(id);
+				}
+				out.endArray();
+			}
+			out.name("images");
+			writeList(out, transmission.images, images);
+			out.endObject();
+		}
+
+		@Override
+		public Transmission read(final JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Transmission transmission = new Transmission();
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+				case "id":
+					transmission.id = JsonCodec.nextInteger(in);
+					break;
+				case "action":
+					transmission.action = JsonCodec.nextEnum(in, Action.class);
+					break;
+				case "message":
+					transmission.message = JsonCodec.nextString(in);
+					break;
+				case "control":
+					transmission.control = controls.read(in);
+					break;
+				case "environment":
+					transmission.environment = environments.read(in);
+					break;
+				case "version":
+					transmission.version = JsonCodec.nextLong(in);
+					break;
+				case "session":
+					transmission.session = JsonCodec.nextString(in);
+					break;
+				case "devices":
+					transmission.devices = readList(in, devices);
+					break;
+				case "changes":
+					transmission.changes = readList(in, changes);
+					break;
+				case "removed":
+					if(in.peek() == JsonToken.NULL) {
+						in.nextNull();
+						transmission.removed = null;
+						break;
+					}
+					transmission.removed = new ArrayList<Integer>();
+					in.beginArray();
+					while(in.hasNext()) {
+						final Integer id = JsonCodec.nextInteger(in);
+						if(id != null) {
+							transmission.removed.add(id);
+						}
+					}
+					in.endArray();
+					break;
+				case "images":
+					transmission.images = readList(in, images);
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return transmission;
+		}
+
+		private static <T> void writeList(final JsonWriter out, final List<T> list, final TypeAdapter<T> adapter)
+				throws IOException {
+			if(list == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginArray();
+			for(T element : list) {
+				adapter.write(out, element);
+			}
+			out.endArray();
+		}
+
+		private static <T> List<T> readList(final JsonReader in, final TypeAdapter<T> adapter) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final List<T> list = new ArrayList<T>();
+			in.beginArray();
+			while(in.hasNext()) {
+				list.add(adapter.read(in));
+			}
+			in.endArray();
+			return list;
+		}
+
+		private final Control.Adapter controls;
+		private final TypeAdapter<TempHumSensor> environments;
+		private final Device.Adapter devices;
+		private final Device.Adapter changes;
+		private final Image.Adapter images;
+	}
 }
\ No newline at end of file
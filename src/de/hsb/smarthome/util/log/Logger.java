@@ -120,12 +120,24 @@ public class Logger {
 		return FILENAME;
 	}
 
+	/**
+	 * Selects where the log is written to, e.g. {@link #OUTPUT_NONE} for
+	 * benchmarks.
+	 * 
+	 * @param output
+	 *            Combination of OUTPUT_CONSOLE and OUTPUT_FILE, or OUTPUT_NONE
+	 */
+	public static void setOutput(int output) {
+		OUTPUT = output;
+	}
+
+	public static final int OUTPUT_NONE = 0;
 	public static final int OUTPUT_CONSOLE = 1;
 	public static final int OUTPUT_FILE = 2;
 	private static final String FILENAME = "safer_smart_home.log";
 
 	private static Logger LOGGER = null;
-	private static int OUTPUT = 3;
+	private static volatile int OUTPUT = 3;
 
 	private BufferedWriter mBufferedWriter;
 }
\ No newline at end of file
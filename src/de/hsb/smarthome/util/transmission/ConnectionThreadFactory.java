@@ -0,0 +1,70 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+
+/**
+ * Creates the threads of client connections. If the JVM supports virtual
+ * threads (Java 21 and later), virtual threads are created, which cost only a
+ * few hundred bytes until they block. The program itself is built for Java 8,
+ * so the virtual thread builder is looked up by reflection. On older JVMs
+ * platform daemon threads with a reduced stack size are created instead.
+ *
+ */
+public class ConnectionThreadFactory implements ThreadFactory {
+
+	/**
+	 * @param prefix
+	 *            - Prefix of the thread names, followed by a counter
+	 */
+	public ConnectionThreadFactory(String prefix) {
+		mPrefix = prefix;
+		mVirtualFactory = createVirtualFactory(prefix);
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		if (mVirtualFactory != null) {
+			return mVirtualFactory.newThread(r);
+		}
+		Thread thread = new Thread(null, r, mPrefix + mCount.incrementAndGet(), PLATFORM_STACK_SIZE);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * @return true if the created threads are virtual threads
+	 */
+	public boolean isVirtual() {
+		return mVirtualFactory != null;
+	}
+
+	/**
+	 * @return the factory of Thread.ofVirtual().name(prefix, 1), or null if the JVM
+	 *         has no virtual threads
+	 */
+	private ThreadFactory createVirtualFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			mLogger.write(this, "No virtual threads, using platform threads: " + e, LoggerMode.TRACE);
+			return null;
+		}
+	}
+
+	// enough for the JSON codec and the FRITZ!Box requests, the default is 1 MB
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+	private final String mPrefix;
+	private final ThreadFactory mVirtualFactory;
+	private final AtomicInteger mCount = new AtomicInteger();
+	private final Logger mLogger = Logger.getLogger();
+}
@@ -0,0 +1,196 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of the frames of one {@link TCPConnection}. Every frame
+ * is compressed on its own, so a frame can be decoded without the ones before.
+ * The Deflater and the Inflater are kept for the lifetime of the connection
+ * and reset for every frame. Frames below the threshold, and frames which do
+ * not get smaller, are sent uncompressed.
+ * <p>
+ * Counts the compressed bytes and the CPU time spent, see
+ * {@link #toString()}.
+ *
+ */
+public class FrameCompression {
+
+	/**
+	 * @param threshold
+	 *            - Frames with fewer bytes are not compressed
+	 */
+	FrameCompression(int threshold) {
+		mThreshold = threshold;
+	}
+
+	/**
+	 * Compresses the payload of a frame. Called while holding the write lock of
+	 * the connection.
+	 *
+	 * @param payload
+	 *            - The encoded transmission
+	 * @return the compressed payload, or null if it is sent uncompressed
+	 */
+	byte[] compress(byte[] payload) {
+		if (payload.length < mThreshold) {
+			return null;
+		}
+		long start = cpuTime();
+		mDeflater.reset();
+		mDeflater.setInput(payload);
+		mDeflater.finish();
+		mBuffer.reset();
+		while (!mDeflater.finished()) {
+			int count = mDeflater.deflate(mChunk);
+			mBuffer.write(mChunk, 0, count);
+			if (mBuffer.size() >= payload.length) {
+				// does not get smaller, e.g. a JPEG
+				break;
+			}
+		}
+		byte[] compressed = mDeflater.finished() && mBuffer.size() < payload.length ? mBuffer.toByteArray() : null;
+
+		synchronized (this) {
+			mDeflateNanos += cpuTime() - start;
+			if (compressed != null) {
+				mFramesOut++;
+				mBytesOut += payload.length;
+				mCompressedOut += compressed.length;
+			} else {
+				mSkippedOut++;
+			}
+		}
+		return compressed;
+	}
+
+	/**
+	 * Decompresses the payload of a frame. Called on the input thread only.
+	 *
+	 * @param compressed
+	 *            - The compressed payload
+	 * @param maxSize
+	 *            - Maximum size of the decompressed payload
+	 * @return the decompressed payload
+	 * @throws IOException
+	 *             - If the payload is not valid or too large
+	 */
+	byte[] decompress(byte[] compressed, int maxSize) throws IOException {
+		long start = cpuTime();
+		mInflater.reset();
+		mInflater.setInput(compressed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		try {
+			while (!mInflater.finished()) {
+				int count = mInflater.inflate(chunk);
+				if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					throw new IOException("Truncated compressed frame");
+				}
+				out.write(chunk, 0, count);
+				if (out.size() > maxSize) {
+					throw new IOException("Decompressed frame is larger than " + maxSize + " bytes");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed frame: " + e.getMessage());
+		}
+
+		synchronized (this) {
+			mInflateNanos += cpuTime() - start;
+			mFramesIn++;
+			mBytesIn += out.size();
+			mCompressedIn += compressed.length;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Frees the native memory of the Deflater and the Inflater.
+	 */
+	synchronized void end() {
+		mDeflater.end();
+		mInflater.end();
+	}
+
+	/**
+	 * @return compressed size of the sent frames in relation to their original
+	 *         size, 1 if no frame has been compressed
+	 */
+	public synchronized double getRatioOut() {
+		return mBytesOut > 0 ? (double) mCompressedOut / mBytesOut : 1;
+	}
+
+	/**
+	 * @return compressed size of the received frames in relation to their
+	 *         original size, 1 if no frame has been decompressed
+	 */
+	public synchronized double getRatioIn() {
+		return mBytesIn > 0 ? (double) mCompressedIn / mBytesIn : 1;
+	}
+
+	/**
+	 * @return bytes saved on the wire by the sent frames
+	 */
+	public synchronized long getSavedOut() {
+		return mBytesOut - mCompressedOut;
+	}
+
+	/**
+	 * @return (ns) CPU time spent compressing, including frames which did not
+	 *         get smaller
+	 */
+	public synchronized long getDeflateTime() {
+		return mDeflateNanos;
+	}
+
+	/**
+	 * @return (ns) CPU time spent decompressing
+	 */
+	public synchronized long getInflateTime() {
+		return mInflateNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"out: %d frames %d -> %d bytes (%.0f %%), %d skipped, %.1f ms; in: %d frames %d -> %d bytes (%.0f %%), %.1f ms",
+				mFramesOut, mBytesOut, mCompressedOut, getRatioOut() * 100, mSkippedOut, mDeflateNanos / 1e6,
+				mFramesIn, mCompressedIn, mBytesIn, getRatioIn() * 100, mInflateNanos / 1e6);
+	}
+
+	/**
+	 * @return (ns) CPU time of the current thread, the wall clock if it can not
+	 *         be measured, e.g. on a virtual thread
+	 */
+	private static long cpuTime() {
+		long time = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+		return time >= 0 ? time : System.nanoTime();
+	}
+
+	/** Frames with fewer bytes are not compressed by default */
+	public static final int DEFAULT_THRESHOLD = 512;
+	private static final int CHUNK_SIZE = 4096;
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final int mThreshold;
+	// raw DEFLATE without zlib header, the frame length is known anyway
+	private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final Inflater mInflater = new Inflater(true);
+	private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(CHUNK_SIZE);
+	private final byte[] mChunk = new byte[CHUNK_SIZE];
+	private long mFramesOut;
+	private long mSkippedOut;
+	private long mBytesOut;
+	private long mCompressedOut;
+	private long mDeflateNanos;
+	private long mFramesIn;
+	private long mBytesIn;
+	private long mCompressedIn;
+	private long mInflateNanos;
+}
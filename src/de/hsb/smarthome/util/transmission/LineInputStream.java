@@ -0,0 +1,130 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Gives the bytes of one line of the underlying stream, without the line break,
+ * and then reports the end of the stream. Nothing behind the line break is
+ * read, so the next line or a frame can be read from the underlying stream
+ * afterwards. Lines longer than the maximum size are cut off; the rest of such
+ * a line is skipped by {@link #skipLine()} without being buffered.
+ *
+ */
+class LineInputStream extends InputStream {
+
+	/**
+	 * @param in
+	 *            - The underlying stream, positioned at the start of a line
+	 * @param maxSize
+	 *            - Maximum number of bytes of the line
+	 */
+	LineInputStream(InputStream in, int maxSize) {
+		mIn = in;
+		mMaxSize = maxSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mEnd) {
+			return -1;
+		}
+		int b = readUnderlying();
+		if (b < 0 || b == '\n') {
+			mEnd = true;
+			return -1;
+		}
+		if (++mCount > mMaxSize) {
+			mTooLarge = true;
+			mEnd = true;
+			return -1;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		// byte by byte, the underlying stream is buffered
+		int count = 0;
+		while (count < length) {
+			int b = read();
+			if (b < 0) {
+				break;
+			}
+			buffer[offset + count++] = (byte) b;
+			if (mIn.available() <= 0) {
+				// do not block for more than the parser needs
+				break;
+			}
+		}
+		return count > 0 ? count : -1;
+	}
+
+	/**
+	 * Skips what is left of the line, including the line break.
+	 *
+	 * @throws IOException
+	 *             - If the underlying stream could not be read
+	 */
+	void skipLine() throws IOException {
+		if (mEnd && !mTooLarge) {
+			return;
+		}
+		mEnd = true;
+		int b;
+		do {
+			b = readUnderlying();
+		} while (b >= 0 && b != '\n');
+	}
+
+	/**
+	 * @return true if the line was longer than the maximum size
+	 */
+	boolean isTooLarge() {
+		return mTooLarge;
+	}
+
+	/**
+	 * @return number of bytes of the line read so far
+	 */
+	int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return the error of the underlying stream, which the parser may have
+	 *         wrapped, or null
+	 */
+	IOException getError() {
+		return mError;
+	}
+
+	private int readUnderlying() throws IOException {
+		try {
+			int b = mIn.read();
+			mEof = b < 0;
+			return b;
+		} catch (IOException e) {
+			mError = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if the underlying stream has ended
+	 */
+	boolean isEof() {
+		return mEof;
+	}
+
+	private final InputStream mIn;
+	private final int mMaxSize;
+	private int mCount;
+	private boolean mEnd;
+	private boolean mEof;
+	private boolean mTooLarge;
+	private IOException mError;
+}
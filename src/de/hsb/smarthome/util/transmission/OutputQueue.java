@@ -0,0 +1,313 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of the encoded transmissions of one {@link TCPConnection}
+ * which have not been written yet. The senders only encode and queue, a
+ * writer takes the queued transmissions and writes them together, so a slow
+ * link does not stall the thread which reads the input. A full queue is
+ * handled according to the {@link Policy}.
+ * <p>
+ * Counts the queued, written and dropped transmissions, see
+ * {@link #toString()}.
+ *
+ */
+public class OutputQueue {
+
+	/**
+	 * What happens to a transmission which is sent while the queue is full.
+	 */
+	public enum Policy {
+		/** The sender waits until there is space */
+		BLOCK,
+		/**
+		 * The oldest queued push is dropped. If no push is queued, a new push is
+		 * dropped and any other transmission waits like with BLOCK
+		 */
+		DROP_OLDEST,
+		/** The transmission is not queued, the sender gets an IOException */
+		FAIL
+	}
+
+	/**
+	 * @param capacity
+	 *            - Maximum number of queued transmissions
+	 * @param policy
+	 *            - Handling of a full queue
+	 */
+	OutputQueue(int capacity, Policy policy) {
+		mCapacity = capacity;
+		mPolicy = policy;
+		mQueue = new ArrayDeque<Message>(capacity);
+	}
+
+	/**
+	 * Queues an encoded transmission.
+	 *
+	 * @param chunks
+	 *            - The bytes to write, e.g. the frame and its attachments
+	 * @param push
+	 *            - true if the transmission may be dropped, see
+	 *            {@link Policy#DROP_OLDEST}
+	 * @throws IOException
+	 *             - If the queue is closed, or full with the policy FAIL
+	 */
+	synchronized void put(byte[][] chunks, boolean push) throws IOException {
+		long blockedSince = 0;
+		try {
+			while (mQueue.size() >= mCapacity && !mClosed) {
+				if (mPolicy == Policy.FAIL) {
+					mRejected++;
+					throw new IOException("Output queue is full");
+				}
+				if (mPolicy == Policy.DROP_OLDEST && dropPush()) {
+					continue;
+				}
+				if (mPolicy == Policy.DROP_OLDEST && push) {
+					// the queue holds answers only, they are not dropped
+					mDropped++;
+					return;
+				}
+				if (blockedSince == 0) {
+					blockedSince = System.nanoTime();
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the output queue");
+		} finally {
+			if (blockedSince != 0) {
+				mBlockedNanos += System.nanoTime() - blockedSince;
+			}
+		}
+		if (mClosed) {
+			throw new IOException("Connection is closed");
+		}
+		mQueue.add(new Message(chunks, push));
+		mQueued++;
+		mMaxSize = Math.max(mMaxSize, mQueue.size());
+		notifyAll();
+	}
+
+	/**
+	 * Queues an encoded transmission if there is space, regardless of the
+	 * policy. Never waits.
+	 *
+	 * @param chunks
+	 *            - The bytes to write
+	 * @return false if the queue is full or closed
+	 */
+	synchronized boolean offer(byte[][] chunks) {
+		if (mClosed || mQueue.size() >= mCapacity) {
+			return false;
+		}
+		mQueue.add(new Message(chunks, true));
+		mQueued++;
+		mMaxSize = Math.max(mMaxSize, mQueue.size());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Takes the next transmission, waits if the queue is empty. Called by the
+	 * writer thread.
+	 *
+	 * @return the bytes to write, or null if the queue has been closed and is
+	 *         empty
+	 * @throws InterruptedException
+	 */
+	synchronized byte[][] take() throws InterruptedException {
+		mWriter = Thread.currentThread();
+		while (mQueue.isEmpty() && !mClosed) {
+			wait();
+		}
+		byte[][] chunks = poll();
+		mWriting = chunks != null;
+		return chunks;
+	}
+
+	/**
+	 * Takes the next transmission without waiting.
+	 *
+	 * @return the bytes to write, or null if the queue is empty
+	 */
+	synchronized byte[][] poll() {
+		Message message = mQueue.poll();
+		if (message == null) {
+			return null;
+		}
+		notifyAll();
+		return message.chunks;
+	}
+
+	/**
+	 * Called by the writer when the taken transmissions have been written.
+	 *
+	 * @param count
+	 *            - Number of transmissions written together
+	 * @param bytes
+	 *            - Number of bytes written
+	 */
+	synchronized void written(int count, long bytes) {
+		mWritten += count;
+		mBytes += bytes;
+		mBatches++;
+		mWriting = false;
+		notifyAll();
+	}
+
+	/**
+	 * Rejects further transmissions and wakes up the waiting senders. The
+	 * queued transmissions are still taken by the writer.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the writer thread when it ends, the queued transmissions will
+	 * not be written anymore.
+	 */
+	synchronized void finish() {
+		mClosed = true;
+		mFinished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the writer has written the queued transmissions. Returns at
+	 * once if called by the writer itself.
+	 *
+	 * @param timeout
+	 *            (ms) - Maximum time to wait
+	 * @return true if nothing is left to write
+	 */
+	synchronized boolean awaitWritten(long timeout) {
+		if (Thread.currentThread() == mWriter) {
+			return mQueue.isEmpty();
+		}
+		long end = System.currentTimeMillis() + timeout;
+		try {
+			long left;
+			while (!mFinished && (!mQueue.isEmpty() || mWriting) && (left = end - System.currentTimeMillis()) > 0) {
+				wait(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return mQueue.isEmpty() && !mWriting;
+	}
+
+	/**
+	 * @return number of transmissions waiting to be written
+	 */
+	public synchronized int getSize() {
+		return mQueue.size();
+	}
+
+	/**
+	 * @return maximum number of transmissions waiting at the same time so far
+	 */
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public Policy getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * @return number of transmissions written
+	 */
+	public synchronized long getWritten() {
+		return mWritten;
+	}
+
+	/**
+	 * @return number of pushes dropped because the queue was full
+	 */
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * @return number of transmissions rejected because the queue was full
+	 */
+	public synchronized long getRejected() {
+		return mRejected;
+	}
+
+	/**
+	 * @return (ns) time the senders waited for space in the queue
+	 */
+	public synchronized long getBlockedTime() {
+		return mBlockedNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s, %d of %d queued (max %d), %d queued, %d written in %d writes, %d bytes, %d dropped, %d rejected, blocked %.1f ms",
+				mPolicy, mQueue.size(), mCapacity, mMaxSize, mQueued, mWritten, mBatches, mBytes, mDropped, mRejected,
+				mBlockedNanos / 1e6);
+	}
+
+	/**
+	 * Removes the oldest queued push.
+	 *
+	 * @return false if no push is queued
+	 */
+	private boolean dropPush() {
+		Iterator<Message> messages = mQueue.iterator();
+		while (messages.hasNext()) {
+			if (messages.next().push) {
+				messages.remove();
+				mDropped++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Transmissions queued per connection by default */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final int mCapacity;
+	private final Policy mPolicy;
+	private final ArrayDeque<Message> mQueue;
+	private Thread mWriter;
+	private boolean mWriting;
+	private boolean mClosed;
+	private boolean mFinished;
+	private int mMaxSize;
+	private long mQueued;
+	private long mWritten;
+	private long mBatches;
+	private long mBytes;
+	private long mDropped;
+	private long mRejected;
+	private long mBlockedNanos;
+
+	/**
+	 * One encoded transmission.
+	 */
+	private static class Message {
+
+		private Message(byte[][] chunks, boolean push) {
+			this.chunks = chunks;
+			this.push = push;
+		}
+
+		private final byte[][] chunks;
+		private final boolean push;
+	}
+}
@@ -1,11 +1,35 @@
 package de.hsb.smarthome.util.transmission;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.hsb.smarthome.util.json.Transmission;
 import de.hsb.smarthome.util.json.Transmission.Action;
@@ -15,6 +39,47 @@ import de.hsb.smarthome.util.log.Logger.LoggerMode;
 /**
  * This class gives the ability to build up a socket connection and to send and
  * receive string data between {Socket}s.
+ * <p>
+ * Transmissions are sent as JSON, one per line. A received line is parsed
+ * while it is read from the socket, it is not collected as a string first.
+ * Lines longer than the maximum message size are skipped and reported to the
+ * observers as an ERROR; the connection stays open. A client may offer a compact
+ * encoding with a HELLO transmission right after connecting. If the server
+ * supports it, both sides switch to frames: a 4 byte length (big endian)
+ * followed by the transmission encoded as CBOR. Servers which do not know the
+ * handshake answer with an ERROR, then the client stays with JSON lines.
+ * <p>
+ * With the frames the client also offers DEFLATE compression. If the server
+ * agrees, every frame starts with a flag byte which tells whether the rest is
+ * compressed, see {@link FrameCompression}.
+ * <p>
+ * Images set as bytes are sent as attachments if both sides agreed on it in
+ * the handshake: the transmission references them by index and is followed by
+ * one frame per attachment which holds the raw bytes, without flag byte. Other
+ * connections get the images Base64 encoded. The frame and its attachments
+ * together must not exceed the maximum message size.
+ * <p>
+ * Clients which offer it in the HELLO get a heartbeat: each side sends a PING
+ * when it has received nothing for an interval, the other side answers with a
+ * PONG. Any input counts as a sign of life, so a busy connection sends no
+ * PINGs, and a PING received resets the interval of the receiver, so an idle
+ * connection carries one PING and one PONG per two intervals. After the
+ * configured number of intervals without input the connection fails, see
+ * {@link #setHeartbeat(long, int)}. PING and PONG are not passed to the
+ * observers.
+ * <p>
+ * Requests sent with {@link #request(Transmission)} carry a correlation ID,
+ * which the remote side copies into its answer. Several requests may be in
+ * flight at the same time and may be answered in any order.
+ * <p>
+ * Frames longer than the maximum message size, see
+ * {@link #setMaxMessageSize(int)}, close the connection, since the remote
+ * side does not speak the protocol.
+ * <p>
+ * Sent transmissions are encoded on the calling thread and queued in an
+ * {@link OutputQueue}. A writer thread, or the selector thread of a
+ * {@link TCPServer}, writes everything queued at once, so the caller does not
+ * wait for a slow link unless the queue is full.
  * 
  * @author Jules
  * 
@@ -55,6 +120,48 @@ public class TCPConnection extends Thread {
 		void receiveTransmission(Transmission obj);
 	}
 
+	/**
+	 * Constructor for a client connection accepted by a {@link TCPServer}. No
+	 * thread is started, the server reads and writes the channel and passes every
+	 * received line to {@link #receive(String)}.
+	 * 
+	 * @param server
+	 *            - The server which accepted the connection
+	 * @param channel
+	 *            - The channel of the client
+	 */
+	TCPConnection(TCPServer server, SocketChannel channel) {
+		mServer = server;
+		mChannel = channel;
+		mTimeout = 0;
+		mMode = NIO_MODE;
+		mConnectionState = ConnectionState.UNCONNECTED;
+		mTcpInput = new TCPInput(null);
+		mRunning = true;
+	}
+
+	/**
+	 * Constructor for a client connection accepted by a {@link TCPThreadServer}.
+	 * No thread is started, the server reads the socket on the thread of the
+	 * connection by calling {@link #serve()}.
+	 * 
+	 * @param socket
+	 *            - The accepted socket
+	 * @param threads
+	 *            - Creates the writer thread of the connection
+	 * @throws IOException
+	 *             - If the input stream of the socket could not be opened
+	 */
+	TCPConnection(Socket socket, ThreadFactory threads) throws IOException {
+		mSocket = socket;
+		mTimeout = 0;
+		mMode = SERVER_MODE;
+		mConnectionState = ConnectionState.UNCONNECTED;
+		mTcpInput = new TCPInput(socket.getInputStream());
+		startOutput(threads);
+		mRunning = true;
+	}
+
 	/**
 	 * Constructor for a client socket. Creates a new thread for input and a new
 	 * thread for output. Both will start implicit. Use the Interface
@@ -74,9 +181,13 @@ public class TCPConnection extends Thread {
 	 * @param delegate
 	 *            - The object which get the information when the connection is
 	 *            ready
+	 * @param binary
+	 *            - Offer the binary encoding to the server
 	 */
-	private TCPConnection(String ipAdress, int portNumber, int timeout, final IConnectionCallback delegate) {
+	private TCPConnection(String ipAdress, int portNumber, int timeout, final IConnectionCallback delegate,
+			boolean binary) {
 		mIpAdress = ipAdress;
+		mOfferBinary = binary;
 		mPortNumber = portNumber;
 		mTimeout = timeout;
 		mDelegate = delegate;
@@ -130,7 +241,33 @@ public class TCPConnection extends Thread {
 	 */
 	public static TCPConnection getClientInstance(String ipAdress, int portNumber, int timeout,
 			final IConnectionCallback delegate) {
-		mInstance = new TCPConnection(ipAdress, portNumber, timeout, delegate);
+		return getClientInstance(ipAdress, portNumber, timeout, delegate, false);
+	}
+
+	/**
+	 * Constructor for a client socket, see
+	 * {@link #getClientInstance(String, int, int, IConnectionCallback)}. If binary
+	 * is true, the client offers the binary encoding to the server before the
+	 * state CONNECTED is reported. The handshake waits at most
+	 * {@link #HANDSHAKE_TIMEOUT} ms for the answer, without an answer JSON lines
+	 * are used.
+	 * 
+	 * @param ipAdress
+	 *            - The IP-address of an other socket.
+	 * @param portNumber
+	 *            - The TCP port for the communication
+	 * @param timeout
+	 *            (ms) - If no connection is possible to the given IP-address the
+	 *            process will end after this timeout.
+	 * @param delegate
+	 *            - The object which get the information when the connection is
+	 *            ready
+	 * @param binary
+	 *            - Offer the binary encoding to the server
+	 */
+	public static TCPConnection getClientInstance(String ipAdress, int portNumber, int timeout,
+			final IConnectionCallback delegate, boolean binary) {
+		mInstance = new TCPConnection(ipAdress, portNumber, timeout, delegate, binary);
 		mInstance.start();
 		return mInstance;
 	}
@@ -157,6 +294,65 @@ public class TCPConnection extends Thread {
 		return mInstance;
 	}
 
+	/**
+	 * Sets the maximum size of a received line or frame for all connections.
+	 * Longer lines are skipped, longer frames close the connection, so a remote
+	 * side can not make the application run out of memory.
+	 * 
+	 * @param bytes
+	 *            - The maximum size in bytes, at least 1
+	 */
+	public static void setMaxMessageSize(int bytes) {
+		if (bytes < 1) {
+			throw new IllegalArgumentException("Invalid maximum message size " + bytes);
+		}
+		mMaxMessageSize = bytes;
+	}
+
+	/**
+	 * @return the maximum size of a received line or frame in bytes
+	 */
+	public static int getMaxMessageSize() {
+		return mMaxMessageSize;
+	}
+
+	/**
+	 * Sets the heartbeat of the connections which agree on it afterwards.
+	 * 
+	 * @param interval
+	 *            (ms) - Time without input after which a PING is sent, 0 to send
+	 *            no PINGs and only answer them
+	 * @param misses
+	 *            - Number of intervals without input after which the remote side
+	 *            is considered dead, at least 2, since the PING is only sent
+	 *            after the first one
+	 */
+	public static void setHeartbeat(long interval, int misses) {
+		if (interval < 0 || misses < 2) {
+			throw new IllegalArgumentException("Invalid heartbeat " + interval + " ms, " + misses + " misses");
+		}
+		mHeartbeatInterval = interval;
+		mHeartbeatMisses = misses;
+	}
+
+	/**
+	 * Sets the size of the {@link OutputQueue} and what happens when it is full,
+	 * for the connections created afterwards.
+	 * 
+	 * @param capacity
+	 *            - Maximum number of transmissions waiting to be written, at
+	 *            least 1
+	 * @param policy
+	 *            - Handling of a full queue
+	 */
+	public static void setOutputQueue(int capacity, OutputQueue.Policy policy) {
+		if (capacity < 1 || policy == null) {
+			throw new IllegalArgumentException("Invalid output queue " + capacity + ", " + policy);
+		}
+		mOutputCapacity = capacity;
+		mOutputPolicy = policy;
+	}
+
 	/**
 	 * During creation of an Instance of this object you will take a choice if you
 	 * want to get a server or a client socket.
@@ -190,9 +386,12 @@ public class TCPConnection extends Thread {
 
 				mSocket = new Socket(mIpAdress, mPortNumber);
 
-				BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-				mTcpInput = new TCPInput(bufferedReader);
+				mTcpInput = new TCPInput(mSocket.getInputStream());
 				mTcpInput.start();
+				startOutput(null);
+				if (mOfferBinary) {
+					sendHello();
+				}
 
 				mConnectionState = ConnectionState.CONNECTED;
 				tcpConnectionCallback(mConnectionState);
@@ -236,9 +435,9 @@ public class TCPConnection extends Thread {
 				mSocket = mServerSocket.accept();
 				mSocket.setSoTimeout(mTimeout);
 
-				BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-				mTcpInput = new TCPInput(bufferedReader);
+				mTcpInput = new TCPInput(mSocket.getInputStream());
 				mTcpInput.start();
+				startOutput(null);
 
 				mConnectionState = ConnectionState.CONNECTED;
 				tcpConnectionCallback(mConnectionState);
@@ -264,19 +463,109 @@ public class TCPConnection extends Thread {
 	 * @return true if the TCP connection was ready and the transmission could
 	 *         start.
 	 * @throws IOException
-	 *             - If something goes wrong during the transmission
+	 *             - If something goes wrong during the transmission or the
+	 *             output queue is full, see {@link OutputQueue.Policy}
 	 */
 	public synchronized boolean sendTransmission(Transmission obj) throws IOException {
 		if (mConnectionState == ConnectionState.CONNECTED) {
-			String str = Transmission.serializeToJson(obj);
-			mLogger.write(this, "Output: " + str, LoggerMode.INFO);
-			str = str + "\n";
-			mSocket.getOutputStream().write(str.getBytes());
+			write(obj, false);
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Sends a transmission the remote side did not ask for, like a state change.
+	 * Unlike answers, pushes may be dropped if the output queue is full, see
+	 * {@link OutputQueue.Policy#DROP_OLDEST}.
+	 * 
+	 * @param obj
+	 * @return true if the TCP connection was ready and the transmission could
+	 *         start.
+	 * @throws IOException
+	 *             - If something goes wrong during the transmission or the
+	 *             output queue is full
+	 */
+	public synchronized boolean sendPush(Transmission obj) throws IOException {
+		if (mConnectionState == ConnectionState.CONNECTED) {
+			write(obj, true);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the given transmission as a request with a new correlation ID. The
+	 * answer with the same ID completes the returned future instead of being
+	 * passed to the observers. The future is completed on the input thread, so
+	 * dependent actions which take long should be moved to another thread.
+	 * <p>
+	 * Servers which do not know the HELLO handshake do not return the ID. Their
+	 * answers come in the order of the requests and complete the oldest
+	 * request.
+	 * 
+	 * @param obj
+	 *            - The request, its ID is set by this method
+	 * @return the future of the answer, completed exceptionally with an
+	 *         IOException if the request could not be sent or the connection
+	 *         closed before the answer arrived
+	 */
+	public CompletableFuture<Transmission> request(Transmission obj) {
+		CompletableFuture<Transmission> answer = new CompletableFuture<Transmission>();
+		int id = mRequestIds.incrementAndGet();
+		obj.setId(id);
+		mPendingRequests.put(id, answer);
+		try {
+			if (!sendTransmission(obj)) {
+				throw new IOException("Connection is not ready");
+			}
+		} catch (IOException e) {
+			mPendingRequests.remove(id);
+			answer.completeExceptionally(e);
+		}
+		return answer;
+	}
+
+	/**
+	 * @return true if the transmissions are sent as binary frames, false for JSON
+	 *         lines
+	 */
+	public boolean isBinary() {
+		return mFramesOut;
+	}
+
+	/**
+	 * @return the compression of the frames with its statistics, null if the
+	 *         frames are not compressed
+	 */
+	public FrameCompression getCompression() {
+		return mCompression;
+	}
+
+	/**
+	 * @return true while the connection is established
+	 */
+	public boolean isConnected() {
+		return mConnectionState == ConnectionState.CONNECTED;
+	}
+
+	/**
+	 * @return true if this side sends PINGs, i.e. a dead remote side is
+	 *         detected by the connection itself
+	 */
+	public boolean hasHeartbeat() {
+		ScheduledFuture<?> heartbeat = mHeartbeat;
+		return heartbeat != null && !heartbeat.isDone();
+	}
+
+	/**
+	 * @return the queue of the transmissions which have not been written yet,
+	 *         with its statistics
+	 */
+	public OutputQueue getOutputQueue() {
+		return mOutput;
+	}
+
 	/**
 	 * With this function you can register a observer to the input stream in case
 	 * that the TCP connection is ready. You know that the TCP connection is ready
@@ -316,15 +605,33 @@ public class TCPConnection extends Thread {
 	}
 
 	/**
-	 * Close the current TCP connection. Server or client.
+	 * Close the current TCP connection. Server or client. Transmissions which
+	 * are still queued are written first, if the link allows it within a
+	 * second.
 	 */
-	public synchronized void close() {
+	public void close() {
+		// a sender waiting for space holds the lock
+		mOutput.close();
+		synchronized (this) {
+			closeConnection();
+		}
+	}
+
+	private void closeConnection() {
 		mRunning = false;
 
 		if (mTcpInput != null) {
 			mTcpInput.close();
 		}
 
+		if (mHeartbeat != null) {
+			mHeartbeat.cancel(false);
+		}
+
+		if (mMode != NIO_MODE && !mOutput.awaitWritten(CLOSE_TIMEOUT)) {
+			mLogger.write(this, "Output not written: " + mOutput.getSize() + " transmissions", LoggerMode.TRACE);
+		}
+
 		if (mSocket != null) {
 			try {
 				mSocket.close();
@@ -341,6 +648,21 @@ public class TCPConnection extends Thread {
 			}
 		}
 
+		if (mServer != null) {
+			mServer.close(this);
+		}
+
+		failRequests();
+
+		if (mCompression != null) {
+			mLogger.write(this, "Compression " + mCompression, LoggerMode.INFO);
+			mCompression.end();
+		}
+
+		if (mConnectionState != ConnectionState.CLOSED) {
+			mLogger.write(this, "Output queue " + mOutput, LoggerMode.INFO);
+		}
+
 		if (mConnectionState != ConnectionState.CLOSED) {
 			mConnectionState = ConnectionState.CLOSED;
 			tcpConnectionCallback(mConnectionState);
@@ -349,6 +671,419 @@ public class TCPConnection extends Thread {
 		mLogger.write(this, "Streams and sockets closed.", LoggerMode.TRACE);
 	}
 
+	/**
+	 * Reads the input stream on the calling thread until the connection is closed.
+	 * Used by the {@link TCPThreadServer} instead of starting an input thread.
+	 */
+	void serve() {
+		mTcpInput.run();
+	}
+
+	/**
+	 * Called by the {@link TCPServer} or {@link TCPThreadServer} when the client
+	 * has been accepted.
+	 * 
+	 * @param delegate
+	 *            - The object which gets the information about the connection
+	 */
+	void accepted(IConnectionCallback delegate) {
+		mDelegate = delegate;
+		mConnectionState = ConnectionState.CONNECTED;
+		tcpConnectionCallback(mConnectionState);
+	}
+
+	/**
+	 * Called by the {@link TCPServer} whenever bytes have been read from the
+	 * client, also in the middle of a message.
+	 */
+	void received() {
+		mLastReceived = System.currentTimeMillis();
+	}
+
+	/**
+	 * Called by the {@link TCPServer} for every line received from the client.
+	 * 
+	 * @param str
+	 *            - The line without the line break
+	 */
+	void receive(String str) {
+		mTcpInput.dispatch(str);
+	}
+
+	/**
+	 * Called by the {@link TCPServer} for every line which was longer than the
+	 * maximum message size and has been skipped.
+	 * 
+	 * @param length
+	 *            - Number of bytes read before the line has been skipped
+	 */
+	void receiveTooLarge(int length) {
+		mTcpInput.reject(length);
+	}
+
+	/**
+	 * Called by the {@link TCPServer} for every frame received from the client.
+	 * 
+	 * @param frame
+	 *            - The payload of the frame without the length
+	 */
+	void receive(byte[] frame) {
+		mTcpInput.dispatch(frame);
+	}
+
+	/**
+	 * @return true if the next input is a frame, false if it is a line
+	 */
+	boolean isReadingFrames() {
+		return mFramesIn;
+	}
+
+	/**
+	 * Called by the {@link TCPServer} if the connection broke or timed out.
+	 * 
+	 * @param msg
+	 */
+	void fail(String msg) {
+		if (mConnectionState == ConnectionState.CONNECTED) {
+			mLogger.write(this, msg, LoggerMode.TRACE);
+			mConnectionState = ConnectionState.ERROR;
+			tcpConnectionCallback(mConnectionState);
+		}
+		close();
+	}
+
+	/**
+	 * Called by the {@link TCPServer} when the channel can take more data.
+	 * 
+	 * @return the next queued transmission, or null if nothing is queued
+	 */
+	byte[][] pollOutput() {
+		return mOutput.poll();
+	}
+
+	/**
+	 * Encodes the transmission as line or frame and queues it for the writer.
+	 * 
+	 * @param obj
+	 * @param push
+	 *            - true if the transmission may be dropped when the queue is full
+	 * @throws IOException
+	 *             - If something goes wrong during the transmission
+	 */
+	private synchronized void write(Transmission obj, boolean push) throws IOException {
+		mOutput.put(encode(obj), push);
+		if (mMode == NIO_MODE) {
+			mServer.flush(this);
+		}
+	}
+
+	/**
+	 * Encodes the transmission as line or frame.
+	 * 
+	 * @param obj
+	 * @return the bytes to write: the line or frame, followed by the headers and
+	 *         bytes of the attachments
+	 */
+	private byte[][] encode(Transmission obj) {
+		byte[] data;
+		List<byte[]> attachments = null;
+		if (mFramesOut) {
+			attachments = mAttachments ? new ArrayList<byte[]>() : null;
+			byte[] payload = Transmission.serializeToCbor(obj, attachments);
+			if (mCompression != null) {
+				byte[] compressed = mCompression.compress(payload);
+				mLogger.write(this, "Output: " + obj.getAction() + " frame, " + payload.length + " bytes"
+						+ (compressed != null ? ", " + compressed.length + " compressed" : ""), LoggerMode.INFO);
+				byte flag = compressed != null ? FLAG_DEFLATE : FLAG_PLAIN;
+				payload = compressed != null ? compressed : payload;
+				data = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1 + payload.length).putInt(1 + payload.length).put(flag)
+						.put(payload).array();
+			} else {
+				mLogger.write(this, "Output: " + obj.getAction() + " frame, " + payload.length + " bytes",
+						LoggerMode.INFO);
+				data = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length).putInt(payload.length).put(payload)
+						.array();
+			}
+		} else {
+			String str = Transmission.serializeToJson(obj);
+			mLogger.write(this, "Output: " + str, LoggerMode.INFO);
+			// the same on both sides, whatever the default of the platform is
+			data = (str + "\n").getBytes(StandardCharsets.UTF_8);
+		}
+
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		chunks.add(data);
+		if (attachments != null) {
+			for (byte[] attachment : attachments) {
+				// the bytes are written as they are, without copying them into the frame
+				chunks.add(ByteBuffer.allocate(FRAME_HEADER_SIZE).putInt(attachment.length).array());
+				chunks.add(attachment);
+				mLogger.write(this, "Output: attachment, " + attachment.length + " bytes", LoggerMode.INFO);
+			}
+		}
+		return chunks.toArray(new byte[chunks.size()][]);
+	}
+
+	/**
+	 * Starts sending PINGs, if configured. Called when both sides agreed on the
+	 * heartbeat in the handshake.
+	 */
+	private synchronized void startHeartbeat() {
+		final long interval = mHeartbeatInterval;
+		final int misses = mHeartbeatMisses;
+		if (interval <= 0 || mHeartbeat != null || !mRunning) {
+			return;
+		}
+		mLastReceived = System.currentTimeMillis();
+		mLastBeat = mLastReceived;
+		mHeartbeat = HEARTBEAT.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat(interval, misses);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		mLogger.write(this, "Heartbeat every " + interval + " ms, " + misses + " misses", LoggerMode.TRACE);
+	}
+
+	/**
+	 * Sends a PING if nothing has been received since the last beat, or fails
+	 * the connection if nothing has been received for too many beats. Called on
+	 * the heartbeat thread, the connection is failed on the closer thread,
+	 * because closing waits for the output and calls the delegate.
+	 */
+	private void heartbeat(long interval, int misses) {
+		long now = System.currentTimeMillis();
+		if (mLastReceived >= mLastBeat) {
+			mMissed = 0;
+		} else if (++mMissed >= misses) {
+			mLogger.write(this, "Error - no input for " + (now - mLastReceived) + " ms.", LoggerMode.ERROR);
+			mHeartbeat.cancel(false);
+			final String msg = "Error - heartbeat missed " + mMissed + " times.";
+			CLOSER.execute(new Runnable() {
+				@Override
+				public void run() {
+					fail(msg);
+				}
+			});
+			return;
+		} else {
+			sendHeartbeat(Action.PING);
+		}
+		mLastBeat = now;
+	}
+
+	/**
+	 * Queues a PING or PONG without waiting for the lock of the connection or
+	 * for space in the queue. If the queue is full, the link is busy anyway.
+	 * 
+	 * @param action
+	 *            - PING or PONG
+	 */
+	private void sendHeartbeat(Action action) {
+		Transmission beat = new Transmission();
+		beat.setAction(action);
+		// far below the compression threshold, so the compression is not used
+		if (mOutput.offer(encode(beat)) && mMode == NIO_MODE) {
+			try {
+				mServer.flush(this);
+			} catch (IOException e) {
+				mLogger.write(this, "While sending " + action + " - " + e.getMessage(), LoggerMode.TRACE);
+			}
+		}
+	}
+
+	/**
+	 * Starts the thread which writes the output queue to the socket.
+	 * 
+	 * @param threads
+	 *            - Creates the thread, null for a platform daemon thread
+	 */
+	private void startOutput(ThreadFactory threads) {
+		Thread thread;
+		if (threads != null) {
+			thread = threads.newThread(new TCPOutput());
+		} else {
+			thread = new Thread(new TCPOutput(), "TCPOutput");
+			thread.setDaemon(true);
+		}
+		thread.start();
+	}
+
+	/**
+	 * Offers the binary encoding to the server and waits for the answer, which
+	 * is handled by {@link #handshake(Transmission)} on the input thread.
+	 * 
+	 * @throws IOException
+	 *             - If the HELLO could not be sent
+	 */
+	private void sendHello() throws IOException {
+		Transmission hello = new Transmission();
+		hello.setAction(Action.HELLO);
+		hello.setMessage(ENCODING_CBOR + "," + ENCODING_DEFLATE + "," + ENCODING_ATTACHMENTS + "," + ENCODING_HEARTBEAT
+				+ "," + ENCODING_JSON);
+		mHandshake = new CountDownLatch(1);
+		mHelloSent = true;
+		write(hello, false);
+		try {
+			mHandshake.await(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			// the next line is no answer anymore, a late one is handled by handshake()
+			if (mHelloSent) {
+				mHelloSent = false;
+				mHelloTimedOut = true;
+				mLogger.write(this, "No answer to HELLO, using JSON lines.", LoggerMode.INFO);
+			}
+		}
+		mLogger.write(this, "Encoding: " + (mFramesOut ? "CBOR frames" : "JSON lines"), LoggerMode.TRACE);
+	}
+
+	/**
+	 * Handles a HELLO of the client on the server side, or the answer to the
+	 * HELLO on the client side.
+	 * 
+	 * @param transmission
+	 *            - The received line, null if it could not be parsed
+	 * @return true if the transmission belonged to the handshake and must not
+	 *         be passed to the observers
+	 */
+	private boolean handshake(Transmission transmission) {
+		if (!mHelloSent && !mHelloTimedOut) {
+			// without the lock, a sender waiting for space in the queue holds it
+			return answerHello(transmission);
+		}
+		List<String> accepted = transmission != null && transmission.getMessage() != null
+				? Arrays.asList(transmission.getMessage().split(","))
+				: Collections.<String>emptyList();
+		boolean late = false;
+		synchronized (this) {
+			if (mHelloSent) {
+				answered(transmission, accepted);
+				return true;
+			}
+			// the server answers the HELLO before anything else, only the first line can be late
+			mHelloTimedOut = false;
+			if (transmission != null && transmission.getAction() == Action.HELLO) {
+				late = accepted.contains(ENCODING_CBOR);
+				if (!late) {
+					// the server stays with JSON lines as well
+					return true;
+				}
+			}
+		}
+		if (late) {
+			// the server already sends frames, the client JSON lines
+			mLogger.write(this, "HELLO answered after the timeout.", LoggerMode.ERROR);
+			fail("Error - HELLO answered too late.");
+			return true;
+		}
+		return answerHello(transmission);
+	}
+
+	/**
+	 * Takes over the answer to the HELLO on the client side. Has to be called
+	 * while holding the lock of the connection.
+	 * 
+	 * @param transmission
+	 *            - The first line after the HELLO, whatever the server sent
+	 * @param accepted
+	 *            - The encodings the server accepted
+	 */
+	private void answered(Transmission transmission, List<String> accepted) {
+		mHelloSent = false;
+		if (transmission != null && transmission.getAction() == Action.HELLO && accepted.contains(ENCODING_CBOR)) {
+			if (accepted.contains(ENCODING_DEFLATE)) {
+				mCompression = new FrameCompression(FrameCompression.DEFAULT_THRESHOLD);
+			}
+			mAttachments = accepted.contains(ENCODING_ATTACHMENTS);
+			mFramesIn = true;
+			mFramesOut = true;
+		} else if (transmission != null && transmission.getAction() == Action.HELLO) {
+			mLogger.write(this, "Server does not support the binary encoding.", LoggerMode.INFO);
+		} else {
+			mLogger.write(this, "Server does not know the handshake, answers are matched in order.",
+					LoggerMode.INFO);
+			mInOrderAnswers = true;
+		}
+		if (transmission != null && transmission.getAction() == Action.HELLO
+				&& accepted.contains(ENCODING_HEARTBEAT)) {
+			startHeartbeat();
+		}
+		mHandshake.countDown();
+	}
+
+	/**
+	 * Answers the HELLO of a client on the server side.
+	 * 
+	 * @param transmission
+	 *            - The received line, null if it could not be parsed
+	 * @return true if the transmission was a HELLO
+	 */
+	private boolean answerHello(Transmission transmission) {
+		if (transmission == null || transmission.getAction() != Action.HELLO) {
+			return false;
+		}
+
+		List<String> offered = transmission.getMessage() != null ? Arrays.asList(transmission.getMessage().split(","))
+				: Collections.<String>emptyList();
+		boolean binary = offered.contains(ENCODING_CBOR);
+		// only clients which offered them know the extensions, older ones expect "cbor" alone
+		boolean deflate = binary && offered.contains(ENCODING_DEFLATE);
+		boolean attachments = binary && offered.contains(ENCODING_ATTACHMENTS);
+		boolean heartbeat = offered.contains(ENCODING_HEARTBEAT);
+		Transmission answer = new Transmission();
+		answer.setAction(Action.HELLO);
+		answer.setMessage((binary ? ENCODING_CBOR + (deflate ? "," + ENCODING_DEFLATE : "")
+				+ (attachments ? "," + ENCODING_ATTACHMENTS : "") : ENCODING_JSON)
+				+ (heartbeat ? "," + ENCODING_HEARTBEAT : ""));
+		synchronized (this) {
+			// the client sends frames as soon as it got the answer
+			if (deflate) {
+				mCompression = new FrameCompression(FrameCompression.DEFAULT_THRESHOLD);
+			}
+			mAttachments = attachments;
+			mFramesIn = binary;
+			try {
+				write(answer, false);
+				mFramesOut = binary;
+				if (heartbeat) {
+					startHeartbeat();
+				}
+			} catch (IOException e) {
+				mLogger.write(this, "While answering HELLO - " + e.getMessage(), LoggerMode.TRACE);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param transmission
+	 *            - A received transmission
+	 * @return the pending request the transmission answers, or null
+	 */
+	private CompletableFuture<Transmission> takeRequest(Transmission transmission) {
+		if (transmission.getId() != null) {
+			return mPendingRequests.remove(transmission.getId());
+		}
+		if (mInOrderAnswers) {
+			Map.Entry<Integer, CompletableFuture<Transmission>> oldest = mPendingRequests.pollFirstEntry();
+			return oldest != null ? oldest.getValue() : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Completes all pending requests exceptionally, they will not be answered.
+	 */
+	private void failRequests() {
+		Map.Entry<Integer, CompletableFuture<Transmission>> request;
+		while ((request = mPendingRequests.pollFirstEntry()) != null) {
+			request.getValue().completeExceptionally(new IOException("Connection closed"));
+		}
+	}
+
 	private void tcpConnectionCallback(ConnectionState state) {
 		if (mDelegate != null) {
 			mDelegate.tcpConnectionCallback(state);
@@ -361,24 +1096,108 @@ public class TCPConnection extends Thread {
 
 	private static int CLIENT_MODE = 0;
 	private static int SERVER_MODE = 1;
+	private static int NIO_MODE = 2;
+
+	/** (ms) Time the client waits for the answer to its HELLO */
+	public static final int HANDSHAKE_TIMEOUT = 5000;
+	static final int FRAME_HEADER_SIZE = 4;
+	/** (ms) Time close() waits for the queued transmissions to be written */
+	private static final long CLOSE_TIMEOUT = 1000;
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+	/** Default of the maximum size of a received line or frame in bytes */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+	private static final String ENCODING_CBOR = "cbor";
+	private static final String ENCODING_JSON = "json";
+	private static final String ENCODING_DEFLATE = "deflate";
+	private static final String ENCODING_ATTACHMENTS = "attachments";
+	private static final String ENCODING_HEARTBEAT = "heartbeat";
+	/** (ms) Default time without input after which a PING is sent */
+	public static final long DEFAULT_HEARTBEAT_INTERVAL = 10000;
+	/** Default number of intervals without input after which the connection fails */
+	public static final int DEFAULT_HEARTBEAT_MISSES = 3;
+	// one thread for the heartbeats of all connections, it never blocks
+	private static final ScheduledExecutorService HEARTBEAT = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TCPHeartbeat");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	// closes the connections whose heartbeat failed, closing may block
+	private static final ExecutorService CLOSER = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "TCPClose");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final int MAX_ATTACHMENTS = 16;
+	private static final byte FLAG_PLAIN = 0;
+	private static final byte FLAG_DEFLATE = 1;
 
 	private static TCPConnection mInstance = null;
+	private static volatile int mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	private static volatile int mOutputCapacity = OutputQueue.DEFAULT_CAPACITY;
+	private static volatile OutputQueue.Policy mOutputPolicy = OutputQueue.Policy.BLOCK;
+	private static volatile long mHeartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+	private static volatile int mHeartbeatMisses = DEFAULT_HEARTBEAT_MISSES;
 	private int mMode;
 	private String mIpAdress;
 	private int mPortNumber;
 	private Socket mSocket;
 	private ServerSocket mServerSocket = null;
+	private TCPServer mServer;
+	private SocketChannel mChannel;
 	private IConnectionCallback mDelegate = null;
 	private TCPInput mTcpInput;
+	private final OutputQueue mOutput = new OutputQueue(mOutputCapacity, mOutputPolicy);
 	private ConnectionState mConnectionState = ConnectionState.UNCONNECTED;
 	private final int mTimeout;
 	private Logger mLogger = Logger.getLogger();
 	private volatile boolean mRunning = false;
+	private boolean mOfferBinary;
+	private CountDownLatch mHandshake;
+	private volatile boolean mHelloSent = false;
+	// no line received since the HELLO timed out, a late answer fails the connection
+	private volatile boolean mHelloTimedOut = false;
+	private volatile boolean mFramesIn = false;
+	private volatile boolean mFramesOut = false;
+	private volatile boolean mInOrderAnswers = false;
+	private volatile FrameCompression mCompression;
+	private volatile boolean mAttachments = false;
+	private volatile long mLastReceived = System.currentTimeMillis();
+	private volatile ScheduledFuture<?> mHeartbeat;
+	// used on the heartbeat thread only
+	private long mLastBeat;
+	private int mMissed;
+	private final AtomicInteger mRequestIds = new AtomicInteger();
+	// sorted by ID, i.e. by the order of the requests
+	private final ConcurrentSkipListMap<Integer, CompletableFuture<Transmission>> mPendingRequests =
+			new ConcurrentSkipListMap<Integer, CompletableFuture<Transmission>>();
 
 	class TCPInput extends Thread {
 
-		private TCPInput(BufferedReader bufferedReader) {
-			mBufferedReader = bufferedReader;
+		/**
+		 * @param inputStream
+		 *            - The input stream of the socket, null if a {@link TCPServer}
+		 *            reads the channel
+		 */
+		private TCPInput(InputStream inputStream) {
+			// lines and frames are read from the same buffer, so nothing is lost when switching
+			mInput = inputStream != null ? new DataInputStream(new BufferedInputStream(new FilterInputStream(inputStream) {
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int count = super.read(buffer, offset, length);
+					if (count > 0) {
+						// a sign of life, also in the middle of a large message
+						mLastReceived = System.currentTimeMillis();
+					}
+					return count;
+				}
+			})) : null;
 			mInputObservers = new Vector<IDataOnTcpPortObserver>();
 		}
 
@@ -389,35 +1208,33 @@ public class TCPConnection extends Thread {
 		@Override
 		public void run() {
 			mRunning = true;
-			String str = null;
 			try {
-				while (mRunning && (str = mBufferedReader.readLine()) != null) {
-					mLogger.write(this, "Input: " + str, LoggerMode.INFO);
-
-					if (!mInputObservers.isEmpty()) {
-						mLogger.write(this, "Counted observers: " + mInputObservers.size(), LoggerMode.TRACE);
-						for (int i = 0; i < mInputObservers.size(); ++i) {
-							try {
-								Transmission transmission = Transmission.deserializeJson(str);
-								mInputObservers.get(i).receiveTransmission(transmission);
-							} catch (Exception e) {
-								mLogger.write(this, "Not a deserializeable json String.", LoggerMode.ERROR);
-								Transmission transmissionError = new Transmission();
-								transmissionError.setAction(Action.ERROR);
-								mInputObservers.get(i).receiveTransmission(transmissionError);
-							}
+				while (mRunning) {
+					if (mFramesIn) {
+						byte[] frame = readFrame();
+						if (frame == null) {
+							break;
 						}
+						dispatch(frame);
+					} else if (!readLine()) {
+						break;
 					}
 				}
 			} catch (IOException e) {
-				mConnectionState = ConnectionState.ERROR;
-				tcpConnectionCallback(mConnectionState);
+				// not if the socket has been closed on purpose, e.g. by a missed heartbeat
+				if (mRunning) {
+					mConnectionState = ConnectionState.ERROR;
+					tcpConnectionCallback(mConnectionState);
+				}
 
 				mLogger.write(this, e.getMessage(), LoggerMode.TRACE);
 				mLogger.write(this, "Error while reading the input stream.", LoggerMode.ERROR);
 			} finally {
+				failRequests();
+				// the writer ends when it has written what is queued
+				mOutput.close();
 				try {
-					mBufferedReader.close();
+					mInput.close();
 					if (mConnectionState != ConnectionState.CLOSED) {
 						mConnectionState = ConnectionState.CLOSED;
 						tcpConnectionCallback(mConnectionState);
@@ -429,6 +1246,208 @@ public class TCPConnection extends Thread {
 			}
 		}
 
+		/**
+		 * Parses the next line while reading it from the stream and passes it to
+		 * the observers. A line longer than the maximum message size is skipped.
+		 * 
+		 * @return false at the end of the stream
+		 * @throws IOException
+		 *             - If the stream could not be read
+		 */
+		private boolean readLine() throws IOException {
+			mInput.mark(1);
+			if (mInput.read() < 0) {
+				return false;
+			}
+			mInput.reset();
+
+			LineInputStream line = new LineInputStream(mInput, mMaxMessageSize);
+			Transmission transmission = null;
+			try {
+				transmission = Transmission.deserializeJson(new InputStreamReader(line, StandardCharsets.UTF_8));
+			} catch (Exception e) {
+				if (line.getError() != null) {
+					throw line.getError();
+				}
+				if (!line.isTooLarge()) {
+					mLogger.write(this, "Not a deserializeable json String.", LoggerMode.ERROR);
+				}
+			}
+			line.skipLine();
+			if (line.isTooLarge()) {
+				reject(line.getCount());
+				return true;
+			}
+			mLogger.write(this, "Input: line, " + line.getCount() + " bytes", LoggerMode.INFO);
+			dispatchLine(transmission);
+			return true;
+		}
+
+		/**
+		 * @return the payload of the next frame, or null at the end of the stream
+		 * @throws IOException
+		 *             - If the stream ends within a frame or the length is invalid
+		 */
+		private byte[] readFrame() throws IOException {
+			int length;
+			try {
+				length = mInput.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			// an attachment may only take what is left of the maximum message size
+			int max = mWaiting != null ? mMaxMessageSize - mWaitingBytes : mMaxMessageSize;
+			if (length < 0 || length > max) {
+				throw new IOException("Invalid frame length " + length);
+			}
+			byte[] frame = new byte[length];
+			mInput.readFully(frame);
+			return frame;
+		}
+
+		/**
+		 * Passes a received line to all observers.
+		 * 
+		 * @param str
+		 *            - The line without the line break
+		 */
+		void dispatch(String str) {
+			mLogger.write(this, "Input: line, " + str.length() + " chars", LoggerMode.INFO);
+
+			Transmission transmission = null;
+			try {
+				transmission = Transmission.deserializeJson(str);
+			} catch (Exception e) {
+				mLogger.write(this, "Not a deserializeable json String.", LoggerMode.ERROR);
+			}
+			dispatchLine(transmission);
+		}
+
+		/**
+		 * Reports a skipped line to the observers as an ERROR.
+		 * 
+		 * @param length
+		 *            - Number of bytes read before the line has been skipped
+		 */
+		void reject(int length) {
+			mLogger.write(this, "Input: line skipped after " + length + " bytes, the maximum message size is "
+					+ mMaxMessageSize + " bytes", LoggerMode.WARN);
+			dispatch((Transmission) null);
+		}
+
+		/**
+		 * Handles a HELLO, or passes the parsed line to all observers.
+		 * 
+		 * @param transmission
+		 *            - The parsed line, null if it could not be parsed
+		 */
+		private void dispatchLine(Transmission transmission) {
+			if (!handshake(transmission)) {
+				dispatch(transmission);
+			}
+		}
+
+		/**
+		 * Passes a received frame to all observers.
+		 * 
+		 * @param frame
+		 *            - The payload of the frame without the length
+		 */
+		void dispatch(byte[] frame) {
+			if (mWaiting != null) {
+				// an attachment, kept as received for the observers
+				mLogger.write(this, "Input: attachment, " + frame.length + " bytes", LoggerMode.INFO);
+				mWaitingBytes += frame.length;
+				if (mWaitingBytes > mMaxMessageSize) {
+					// the TCPServer does not know the attachments while reading
+					mLogger.write(this, "Attachments exceed " + mMaxMessageSize + " bytes", LoggerMode.ERROR);
+					mWaiting = null;
+					mWaitingAttachments = null;
+					fail("Error - transmission too large.");
+					return;
+				}
+				mWaitingAttachments.add(frame);
+				if (mWaitingAttachments.size() == mWaiting.getAttachmentCount()) {
+					Transmission transmission = mWaiting;
+					transmission.attach(mWaitingAttachments);
+					mWaiting = null;
+					mWaitingAttachments = null;
+					dispatch(transmission);
+				}
+				return;
+			}
+			mLogger.write(this, "Input: frame, " + frame.length + " bytes", LoggerMode.INFO);
+
+			Transmission transmission = null;
+			try {
+				FrameCompression compression = mCompression;
+				if (compression != null) {
+					byte[] payload = Arrays.copyOfRange(frame, 1, frame.length);
+					frame = frame.length > 0 && frame[0] == FLAG_DEFLATE
+							? compression.decompress(payload, mMaxMessageSize)
+							: payload;
+				}
+				transmission = Transmission.deserializeCbor(frame);
+			} catch (Exception e) {
+				mLogger.write(this, "Not a deserializeable CBOR frame.", LoggerMode.ERROR);
+			}
+			int count = transmission != null && mAttachments ? transmission.getAttachmentCount() : 0;
+			if (count > MAX_ATTACHMENTS) {
+				mLogger.write(this, "Too many attachments: " + count, LoggerMode.ERROR);
+				fail("Error - too many attachments.");
+				return;
+			}
+			if (count > 0) {
+				// passed to the observers when all attachments have been received
+				mWaiting = transmission;
+				mWaitingAttachments = new ArrayList<byte[]>(count);
+				mWaitingBytes = frame.length;
+				return;
+			}
+			dispatch(transmission);
+		}
+
+		/**
+		 * Completes the request the transmission answers, or passes it to all
+		 * observers.
+		 * 
+		 * @param transmission
+		 *            - The received transmission, null if it could not be parsed
+		 */
+		private void dispatch(Transmission transmission) {
+			if (transmission != null && transmission.getAction() == Action.PING) {
+				sendHeartbeat(Action.PONG);
+				return;
+			}
+			if (transmission != null && transmission.getAction() == Action.PONG) {
+				return;
+			}
+			if (transmission != null) {
+				CompletableFuture<Transmission> request = takeRequest(transmission);
+				if (request != null) {
+					request.complete(transmission);
+					return;
+				}
+			}
+			if (!mInputObservers.isEmpty()) {
+				mLogger.write(this, "Counted observers: " + mInputObservers.size(), LoggerMode.TRACE);
+				// parsed once, all observers get the same instance
+				for (int i = 0; i < mInputObservers.size(); ++i) {
+					try {
+						if (transmission != null) {
+							mInputObservers.get(i).receiveTransmission(transmission);
+							continue;
+						}
+					} catch (Exception e) {
+						mLogger.write(this, "Observer failed: " + e.getMessage(), LoggerMode.ERROR);
+					}
+					Transmission transmissionError = new Transmission();
+					transmissionError.setAction(Action.ERROR);
+					mInputObservers.get(i).receiveTransmission(transmissionError);
+				}
+			}
+		}
+
 		public synchronized void register(IDataOnTcpPortObserver observer) {
 			mInputObservers.addElement(observer);
 		}
@@ -441,8 +1460,47 @@ public class TCPConnection extends Thread {
 			mRunning = false;
 		}
 
-		private BufferedReader mBufferedReader;
+		private DataInputStream mInput;
+		// transmission which waits for its attachments
+		private Transmission mWaiting;
+		private List<byte[]> mWaitingAttachments;
+		// bytes of the transmission and its attachments received so far
+		private int mWaitingBytes;
 		private Vector<IDataOnTcpPortObserver> mInputObservers;
 		private volatile boolean mRunning = false;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Writes the output queue to the socket. Everything queued while a
+	 * transmission is written goes out with the next flush.
+	 */
+	class TCPOutput implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				OutputStream out = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+				byte[][] chunks;
+				while ((chunks = mOutput.take()) != null) {
+					int count = 0;
+					long bytes = 0;
+					do {
+						for (byte[] chunk : chunks) {
+							out.write(chunk);
+							bytes += chunk.length;
+						}
+						count++;
+					} while ((chunks = mOutput.poll()) != null);
+					out.flush();
+					mOutput.written(count, bytes);
+				}
+			} catch (IOException e) {
+				fail("Error while writing the output stream: " + e.getMessage());
+			} catch (InterruptedException e) {
+				mLogger.write(this, "Writer interrupted.", LoggerMode.TRACE);
+			} finally {
+				mOutput.finish();
+			}
+		}
+	}
+}
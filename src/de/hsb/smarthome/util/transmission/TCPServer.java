@@ -0,0 +1,607 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+import de.hsb.smarthome.util.transmission.TCPConnection.ConnectionState;
+import de.hsb.smarthome.util.transmission.TCPConnection.IConnectionCallback;
+import de.hsb.smarthome.util.transmission.TCPConnection.IDataOnTcpPortObserver;
+
+/**
+ * Server socket for many clients at the same time. A single thread accepts the
+ * clients and reads and writes all of them with a {@link Selector}. Every
+ * client gets its own read buffer, messages are separated by line breaks or
+ * sent as length-prefixed frames like in {@link TCPConnection}. The server
+ * thread writes the {@link OutputQueue} of a client when its channel is
+ * writable.
+ * <p>
+ * Every accepted client is represented by a {@link TCPConnection}, so the
+ * {@link IDataOnTcpPortObserver} and {@link IConnectionCallback} interfaces work
+ * the same way as for a single connection. The observers of a connection are
+ * called on a worker thread, one message after another, so a slow request does
+ * not block the other clients. While too many received messages of a client
+ * wait for its worker, the server stops reading that client.
+ *
+ */
+public class TCPServer extends Thread {
+
+	/**
+	 * Has to be implemented by classes which want to serve the clients of a
+	 * {@link TCPServer}.
+	 */
+	public interface IClientListener {
+
+		/**
+		 * This method will be called on the server thread for every accepted client,
+		 * before the first message is read. The returned callback gets the state
+		 * CONNECTED right away and should register the observers of the connection.
+		 *
+		 * @param connection
+		 *            - The connection to the client
+		 * @return the callback of the connection
+		 */
+		IConnectionCallback clientAccepted(TCPConnection connection);
+	}
+
+	/**
+	 * Creates a server and starts it.
+	 *
+	 * @param portNumber
+	 *            - The TCP port for the communication
+	 * @param timeout
+	 *            (ms) - A client which sends nothing for this time is disconnected.
+	 *            If no client is connected for this time, the server ends with the
+	 *            state TIMEOUT. 0 means no timeout.
+	 * @param delegate
+	 *            - The object which gets the state of the server: TIMEOUT, ERROR or
+	 *            CLOSED
+	 * @param listener
+	 *            - The object which gets the accepted clients
+	 * @return the started server
+	 */
+	public static TCPServer getInstance(int portNumber, int timeout, IConnectionCallback delegate,
+			IClientListener listener) {
+		TCPServer server = new TCPServer(portNumber, timeout, delegate, listener);
+		server.start();
+		return server;
+	}
+
+	private TCPServer(int portNumber, int timeout, IConnectionCallback delegate, IClientListener listener) {
+		super("TCPServer");
+		mPortNumber = portNumber;
+		mTimeout = timeout;
+		mDelegate = delegate;
+		mListener = listener;
+		mWorkers = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TCPServer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		ConnectionState endState = ConnectionState.CLOSED;
+		try {
+			mSelector = Selector.open();
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.bind(new InetSocketAddress(mPortNumber));
+			mServerChannel.configureBlocking(false);
+			mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+			mLogger.write(this, "Server listens on port " + mPortNumber, LoggerMode.INFO);
+
+			mIdleSince = System.currentTimeMillis();
+			while (mRunning) {
+				mSelector.select(SELECT_TIMEOUT);
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Client client = (Client) key.attachment();
+						if (key.isReadable()) {
+							read(client);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(client);
+						}
+					}
+				}
+
+				if (isTimedOut()) {
+					mLogger.write(this, "No client for " + mTimeout + " ms, server ends.", LoggerMode.INFO);
+					endState = ConnectionState.TIMEOUT;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (mRunning) {
+				mLogger.write(this, "Error - server failed: " + e.getMessage(), LoggerMode.ERROR);
+				endState = ConnectionState.TIMEOUT;
+			}
+		} finally {
+			shutdown(endState);
+		}
+	}
+
+	/**
+	 * @return number of connected clients
+	 */
+	public int getClientCount() {
+		return mClients.size();
+	}
+
+	/**
+	 * Closes the server and all client connections.
+	 */
+	public void close() {
+		mRunning = false;
+		if (mSelector != null) {
+			mSelector.wakeup();
+		}
+	}
+
+	/**
+	 * Makes the server thread write the output queue of the given connection as
+	 * soon as the channel is ready.
+	 *
+	 * @param connection
+	 * @throws IOException
+	 *             - If the connection is closed
+	 */
+	void flush(TCPConnection connection) throws IOException {
+		final Client client = mClients.get(connection);
+		if (client == null) {
+			throw new IOException("Connection is closed");
+		}
+		mTasks.add(new Runnable() {
+			@Override
+			public void run() {
+				if (client.key.isValid()) {
+					client.key.interestOps(readOps(client) | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Closes the channel of the given connection.
+	 *
+	 * @param connection
+	 */
+	void close(TCPConnection connection) {
+		Client client = mClients.remove(connection);
+		if (client == null) {
+			return;
+		}
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			mLogger.write(this, "While closing the channel - " + e.getMessage(), LoggerMode.TRACE);
+		}
+		if (mClients.isEmpty()) {
+			mIdleSince = System.currentTimeMillis();
+		}
+		mLogger.write(this, "Client disconnected, " + mClients.size() + " connected", LoggerMode.INFO);
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mServerChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		TCPConnection connection = new TCPConnection(this, channel);
+		Client client = new Client(connection, channel);
+		client.key = channel.register(mSelector, SelectionKey.OP_READ, client);
+		mClients.put(connection, client);
+		mLogger.write(this, "Client connected from " + channel.getRemoteAddress() + ", " + mClients.size()
+				+ " connected", LoggerMode.INFO);
+
+		connection.accepted(mListener.clientAccepted(connection));
+	}
+
+	private void read(Client client) {
+		int count;
+		try {
+			count = client.channel.read(client.readBuffer);
+		} catch (IOException e) {
+			client.connection.fail("Error while reading the channel: " + e.getMessage());
+			return;
+		}
+		if (count < 0) {
+			client.connection.close();
+			return;
+		}
+		client.lastRead = System.currentTimeMillis();
+		client.connection.received();
+
+		ByteBuffer buffer = client.readBuffer;
+		buffer.flip();
+		if (client.connection.isReadingFrames()) {
+			readFrames(client, buffer);
+		} else {
+			readLines(client, buffer);
+		}
+		buffer.clear();
+
+		if (client.key.isValid() && isFull(client)) {
+			// go on reading when the worker has taken the messages
+			client.paused = true;
+			client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+			if (!isFull(client)) {
+				// the worker was done before the client was paused
+				resume(client);
+			}
+		}
+	}
+
+	/**
+	 * Collects the lines in the buffer. A line longer than the maximum message
+	 * size is not collected any further, the rest of it is skipped.
+	 */
+	private void readLines(Client client, ByteBuffer buffer) {
+		byte[] array = buffer.array();
+		int start = buffer.position();
+		for (int i = start; i < buffer.limit(); i++) {
+			if (array[i] == '\n') {
+				if (client.skipped > 0) {
+					skip(client, i - start);
+				} else if (collect(client, array, start, i - start)) {
+					dispatch(client, client.takeLine());
+					start = i + 1;
+					continue;
+				}
+				// the skipped line ends here, also if it got too long in this buffer
+				dispatch(client, new TooLarge(client.skipped));
+				client.skipped = 0;
+				start = i + 1;
+			}
+		}
+		if (client.skipped > 0) {
+			skip(client, buffer.limit() - start);
+		} else {
+			collect(client, array, start, buffer.limit() - start);
+		}
+	}
+
+	/**
+	 * Counts the skipped bytes of the line which is too long.
+	 */
+	private static void skip(Client client, int length) {
+		client.skipped = (int) Math.min(Integer.MAX_VALUE, (long) client.skipped + length);
+	}
+
+	/**
+	 * Adds the bytes to the line of the client, or starts skipping the line if
+	 * it gets too long.
+	 * 
+	 * @return false if the line is skipped
+	 */
+	private boolean collect(Client client, byte[] array, int start, int length) {
+		int size = client.line.size() + length;
+		if (size > TCPConnection.getMaxMessageSize()) {
+			client.line.reset();
+			client.skipped = size;
+			return false;
+		}
+		client.line.write(array, start, length);
+		return true;
+	}
+
+	/**
+	 * Collects the frames in the buffer. The length and the payload of a frame
+	 * may be split over several reads.
+	 */
+	private void readFrames(Client client, ByteBuffer buffer) {
+		while (true) {
+			if (client.frame == null) {
+				while (buffer.hasRemaining() && client.frameHeader.hasRemaining()) {
+					client.frameHeader.put(buffer.get());
+				}
+				if (client.frameHeader.hasRemaining()) {
+					return;
+				}
+				client.frameHeader.flip();
+				int length = client.frameHeader.getInt();
+				client.frameHeader.clear();
+				if (length < 0 || length > TCPConnection.getMaxMessageSize()) {
+					client.connection.fail("Error - invalid frame length " + length);
+					return;
+				}
+				client.frame = ByteBuffer.allocate(length);
+			}
+
+			int count = Math.min(buffer.remaining(), client.frame.remaining());
+			buffer.get(client.frame.array(), client.frame.position(), count);
+			client.frame.position(client.frame.position() + count);
+			if (client.frame.hasRemaining()) {
+				return;
+			}
+			dispatch(client, client.frame.array());
+			client.frame = null;
+		}
+	}
+
+	/**
+	 * Writes the output queue of the client. Up to {@link #WRITE_BATCH}
+	 * transmissions are written with one gathering write.
+	 */
+	private void write(Client client) {
+		try {
+			while (true) {
+				if (client.writing == null) {
+					List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+					int count = 0;
+					long bytes = 0;
+					byte[][] chunks;
+					while (count < WRITE_BATCH && (chunks = client.connection.pollOutput()) != null) {
+						for (byte[] chunk : chunks) {
+							buffers.add(ByteBuffer.wrap(chunk));
+							bytes += chunk.length;
+						}
+						count++;
+					}
+					if (count == 0) {
+						client.key.interestOps(readOps(client));
+						return;
+					}
+					client.writing = buffers.toArray(new ByteBuffer[buffers.size()]);
+					client.writingCount = count;
+					client.writingBytes = bytes;
+				}
+				client.channel.write(client.writing);
+				if (client.writing[client.writing.length - 1].hasRemaining()) {
+					// socket buffer is full, go on when the channel is writable again
+					return;
+				}
+				client.connection.getOutputQueue().written(client.writingCount, client.writingBytes);
+				client.writing = null;
+			}
+		} catch (IOException e) {
+			client.connection.fail("Error while writing the channel: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Passes the line or frame to the observers of the connection on a worker
+	 * thread. The messages of one connection are passed one after another in the
+	 * order received.
+	 */
+	private void dispatch(final Client client, Object message) {
+		client.queuedBytes.addAndGet(sizeOf(message));
+		client.queued.incrementAndGet();
+		client.messages.add(message);
+		if (client.dispatching.compareAndSet(false, true)) {
+			mWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					Object next;
+					do {
+						while ((next = client.messages.poll()) != null) {
+							if (next instanceof byte[]) {
+								client.connection.receive((byte[]) next);
+							} else if (next instanceof TooLarge) {
+								client.connection.receiveTooLarge(((TooLarge) next).length);
+							} else {
+								client.connection.receive((String) next);
+							}
+							client.queued.decrementAndGet();
+							client.queuedBytes.addAndGet(-sizeOf(next));
+							if (client.paused && !isFull(client) && client.resuming.compareAndSet(false, true)) {
+								resumeLater(client);
+							}
+						}
+						client.dispatching.set(false);
+						// a message may have been added after the poll
+					} while (!client.messages.isEmpty() && client.dispatching.compareAndSet(false, true));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Indicates whether the client has more received messages waiting for the
+	 * worker than {@link #MAX_QUEUED} or more bytes than half the maximum message
+	 * size.
+	 */
+	private static boolean isFull(Client client) {
+		return client.queued.get() >= MAX_QUEUED
+				|| client.queuedBytes.get() >= TCPConnection.getMaxMessageSize() / 2;
+	}
+
+	private static int sizeOf(Object message) {
+		if (message instanceof byte[]) {
+			return ((byte[]) message).length;
+		}
+		return message instanceof String ? ((String) message).length() : 0;
+	}
+
+	/**
+	 * The interest in reading of the client, none while it is paused.
+	 */
+	private static int readOps(Client client) {
+		return client.paused ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Reads the paused client again, has to be called on the server thread.
+	 */
+	private static void resume(Client client) {
+		if (!client.paused) {
+			return;
+		}
+		client.paused = false;
+		// the client could not send anything while it was paused
+		client.lastRead = System.currentTimeMillis();
+		if (client.key.isValid()) {
+			client.key.interestOps(client.key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private void resumeLater(final Client client) {
+		mTasks.add(new Runnable() {
+			@Override
+			public void run() {
+				client.resuming.set(false);
+				resume(client);
+			}
+		});
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Disconnects clients which sent nothing within the timeout and indicates
+	 * whether the server has been without clients for the timeout.
+	 */
+	private boolean isTimedOut() {
+		if (mTimeout <= 0) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		for (Client client : mClients.values()) {
+			if (!client.paused && now - client.lastRead > mTimeout) {
+				client.connection.fail("Error - client timeout.");
+			}
+		}
+		return mClients.isEmpty() && now - mIdleSince > mTimeout;
+	}
+
+	private void shutdown(ConnectionState endState) {
+		mRunning = false;
+		for (Client client : mClients.values()) {
+			client.connection.close();
+		}
+		try {
+			if (mServerChannel != null) {
+				mServerChannel.close();
+			}
+			if (mSelector != null) {
+				mSelector.close();
+			}
+		} catch (IOException e) {
+			mLogger.write(this, "While closing the server - " + e.getMessage(), LoggerMode.TRACE);
+		}
+		mWorkers.shutdown();
+
+		if (mDelegate != null) {
+			mDelegate.tcpConnectionCallback(endState);
+		}
+		mLogger.write(this, "Server closed.", LoggerMode.TRACE);
+	}
+
+	private static final int WORKER_COUNT = 4;
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int WRITE_BATCH = 16;
+	// received messages of a client which may wait for the worker
+	private static final int MAX_QUEUED = 64;
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final int mPortNumber;
+	private final int mTimeout;
+	private final IConnectionCallback mDelegate;
+	private final IClientListener mListener;
+	private final ExecutorService mWorkers;
+	private final Map<TCPConnection, Client> mClients = new ConcurrentHashMap<TCPConnection, Client>();
+	private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Logger mLogger = Logger.getLogger();
+	private volatile Selector mSelector;
+	private ServerSocketChannel mServerChannel;
+	private volatile long mIdleSince;
+	private volatile boolean mRunning = true;
+
+	/**
+	 * Marks a line which was longer than the maximum message size.
+	 */
+	private static class TooLarge {
+
+		private TooLarge(int length) {
+			this.length = length;
+		}
+
+		private final int length;
+	}
+
+	/**
+	 * State of one client: its buffers and the received lines and frames which
+	 * wait for the observers.
+	 */
+	private static class Client {
+
+		private Client(TCPConnection connection, SocketChannel channel) {
+			this.connection = connection;
+			this.channel = channel;
+			this.lastRead = System.currentTimeMillis();
+		}
+
+		private String takeLine() {
+			String str = new String(line.toByteArray(), StandardCharsets.UTF_8);
+			line.reset();
+			// same as BufferedReader.readLine() for lines ending with \r\n
+			return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+		}
+
+		private final TCPConnection connection;
+		private final SocketChannel channel;
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private final ByteBuffer frameHeader = ByteBuffer.allocate(TCPConnection.FRAME_HEADER_SIZE);
+		private final Queue<Object> messages = new ConcurrentLinkedQueue<Object>();
+		private final AtomicBoolean dispatching = new AtomicBoolean();
+		// messages and bytes in the queue, the client is paused while it is full
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicLong queuedBytes = new AtomicLong();
+		private final AtomicBoolean resuming = new AtomicBoolean();
+		// only changed on the server thread
+		private volatile boolean paused;
+		private ByteBuffer frame;
+		// transmissions taken from the output queue which are being written
+		private ByteBuffer[] writing;
+		private int writingCount;
+		private long writingBytes;
+		// bytes of the line which is skipped, 0 if the line is collected
+		private int skipped;
+		private SelectionKey key;
+		private volatile long lastRead;
+	}
+}
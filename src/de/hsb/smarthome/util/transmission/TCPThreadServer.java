@@ -0,0 +1,177 @@
+package de.hsb.smarthome.util.transmission;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.hsb.smarthome.util.log.Logger;
+import de.hsb.smarthome.util.log.Logger.LoggerMode;
+import de.hsb.smarthome.util.transmission.TCPConnection.ConnectionState;
+import de.hsb.smarthome.util.transmission.TCPConnection.IConnectionCallback;
+import de.hsb.smarthome.util.transmission.TCPConnection.IDataOnTcpPortObserver;
+import de.hsb.smarthome.util.transmission.TCPServer.IClientListener;
+
+/**
+ * Server socket for many clients at the same time with two threads per client.
+ * The reader thread of a client reads its socket with blocking I/O and calls
+ * the observers itself, so the observers may block, e.g. on a FRITZ!Box
+ * request, without affecting other clients. The writer thread writes the
+ * output queue of the connection, since transmissions are also sent from other
+ * threads, e.g. the state pushes. The threads are created by a
+ * {@link ConnectionThreadFactory}, i.e. they are virtual threads if the JVM
+ * supports them.
+ * <p>
+ * Like for the {@link TCPServer}, every client is represented by a
+ * {@link TCPConnection}, so the {@link IDataOnTcpPortObserver} and
+ * {@link IConnectionCallback} interfaces work the same way as for a single
+ * connection.
+ *
+ */
+public class TCPThreadServer extends Thread {
+
+	/**
+	 * Creates a server and starts it.
+	 *
+	 * @param portNumber
+	 *            - The TCP port for the communication
+	 * @param timeout
+	 *            (ms) - A client which sends nothing for this time is disconnected.
+	 *            If no client is connected for this time, the server ends with the
+	 *            state TIMEOUT. 0 means no timeout.
+	 * @param delegate
+	 *            - The object which gets the state of the server: TIMEOUT or CLOSED
+	 * @param listener
+	 *            - The object which gets the accepted clients
+	 * @return the started server
+	 */
+	public static TCPThreadServer getInstance(int portNumber, int timeout, IConnectionCallback delegate,
+			IClientListener listener) {
+		TCPThreadServer server = new TCPThreadServer(portNumber, timeout, delegate, listener);
+		server.start();
+		return server;
+	}
+
+	private TCPThreadServer(int portNumber, int timeout, IConnectionCallback delegate, IClientListener listener) {
+		super("TCPThreadServer");
+		mPortNumber = portNumber;
+		mTimeout = timeout;
+		mDelegate = delegate;
+		mListener = listener;
+	}
+
+	@Override
+	public void run() {
+		ConnectionState endState = ConnectionState.CLOSED;
+		try {
+			mServerSocket = new ServerSocket(mPortNumber);
+			// wake up regularly to check the timeout
+			mServerSocket.setSoTimeout(ACCEPT_TIMEOUT);
+			mLogger.write(this, "Server listens on port " + mPortNumber + (mThreads.isVirtual()
+					? " with virtual threads" : " with platform threads"), LoggerMode.INFO);
+
+			mIdleSince = System.currentTimeMillis();
+			while (mRunning) {
+				try {
+					accept(mServerSocket.accept());
+				} catch (SocketTimeoutException e) {
+					// check the timeout
+				}
+
+				if (mTimeout > 0 && mClients.isEmpty() && System.currentTimeMillis() - mIdleSince > mTimeout) {
+					mLogger.write(this, "No client for " + mTimeout + " ms, server ends.", LoggerMode.INFO);
+					endState = ConnectionState.TIMEOUT;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (mRunning) {
+				mLogger.write(this, "Error - server failed: " + e.getMessage(), LoggerMode.ERROR);
+				endState = ConnectionState.TIMEOUT;
+			}
+		} finally {
+			shutdown(endState);
+		}
+	}
+
+	/**
+	 * @return number of connected clients
+	 */
+	public int getClientCount() {
+		return mClients.size();
+	}
+
+	/**
+	 * @return true if the clients are served by virtual threads
+	 */
+	public boolean isVirtual() {
+		return mThreads.isVirtual();
+	}
+
+	/**
+	 * Closes the server and all client connections.
+	 */
+	public void close() {
+		mRunning = false;
+		if (mServerSocket != null) {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				mLogger.write(this, "While closing the server socket - " + e.getMessage(), LoggerMode.TRACE);
+			}
+		}
+	}
+
+	private void accept(final Socket socket) throws IOException {
+		socket.setSoTimeout(mTimeout);
+		socket.setTcpNoDelay(true);
+		final TCPConnection connection = new TCPConnection(socket, mThreads);
+		mClients.add(connection);
+		mLogger.write(this, "Client connected from " + socket.getRemoteSocketAddress() + ", " + mClients.size()
+				+ " connected", LoggerMode.INFO);
+
+		mThreads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.accepted(mListener.clientAccepted(connection));
+					connection.serve();
+				} finally {
+					connection.close();
+					mClients.remove(connection);
+					if (mClients.isEmpty()) {
+						mIdleSince = System.currentTimeMillis();
+					}
+					mLogger.write(this, "Client disconnected, " + mClients.size() + " connected", LoggerMode.INFO);
+				}
+			}
+		}).start();
+	}
+
+	private void shutdown(ConnectionState endState) {
+		mRunning = false;
+		close();
+		for (TCPConnection connection : mClients) {
+			connection.close();
+		}
+		if (mDelegate != null) {
+			mDelegate.tcpConnectionCallback(endState);
+		}
+		mLogger.write(this, "Server closed.", LoggerMode.TRACE);
+	}
+
+	private static final int ACCEPT_TIMEOUT = 1000;
+
+	private final int mPortNumber;
+	private final int mTimeout;
+	private final IConnectionCallback mDelegate;
+	private final IClientListener mListener;
+	private final ConnectionThreadFactory mThreads = new ConnectionThreadFactory("TCPThreadServer-");
+	private final Set<TCPConnection> mClients = ConcurrentHashMap.newKeySet();
+	private final Logger mLogger = Logger.getLogger();
+	private volatile ServerSocket mServerSocket;
+	private volatile long mIdleSince;
+	private volatile boolean mRunning = true;
+}